@@ -65,14 +65,14 @@ returnStatement : Return expression? ;
 
 // If
 ifStatement : ifExpression
-            | If '(' condition ')' statementBody ;
-ifExpression : If '(' condition ')' statementBody Else statementBody ;
+            | If '(' expression ')' statementBody ;
+ifExpression : If '(' expression ')' statementBody Else statementBody ;
 
 // For
-forStatement : For '(' variable In (variable | range) ')' statementBody ;
+forStatement : For '(' variable In expression ')' statementBody ;
 
 // While
-whileStatement : While '(' condition ')' statementBody ;
+whileStatement : While '(' expression ')' statementBody ;
 
 // When
 whenStatement : When ('(' expression ')')? '{' whenList '}' ;
@@ -92,63 +92,35 @@ stringReference : Dollar Id ;
 stringExpression : Dollar '{' expression '}' ;
 stringText : ~('\\' | '"' | Dollar)+ | ';' | '\'' | Dollar ;
 
-// Range
-range : expressionForRange (To | DownTo) expressionForRange (Step expressionForRange)?;
-
 // Variable
 variable : Id ('[' expression ']')? ('.' (functionCallStatement | variable))? ;
 
 // Assign
 assignStatement : Override? Mode Id (':' type | (':' type)? 'get()'? '=' expression) ;
-assignmentExpression : variable '=' expression ;
-
-// Condition
-condition : (expressionForCondition | type) conditionOperator (expressionForCondition | type)
-          | condition logicalOperator condition ;
-
-// Operator
-logicalOperator : '&&' | '||' ;
-conditionOperator : '!'? ('>' | '<' | '==' | '<=' | '>=' | '!=' | Is | In) ;
-
-// Expression
-expression : whenStatement
-           | stringLiteral
-           | assignmentExpression
-           | ifExpression
-           | compoundStatement
-           | expression '?:' expression
-           | '(' expressionTerm ')'
-           | expressionTerm
-           | functionCallStatement
-           | condition
-           | range
-           | variable;
-
-expressionForCondition : stringLiteral
-                       | variable
-                       | ifExpression
-                       | variable
-                       | functionCallStatement
-                       | range
-                       | expressionForCondition '?:' expressionForCondition
-                       | '(' expressionTerm ')'
-                       | expressionTerm ;
-
-expressionForRange : variable
-                   | functionCallStatement
-                   | expressionForRange '?:' expressionForRange
-                   | '(' expressionTerm ')'
-                   | expressionTerm ;
-
-expressionTerm : expressionTerm ('+' | '-' | '+=' | '-=') expressionTerm
-               | expressionFactor ;
-expressionFactor : expressionFactor ('*' | '/' | '*=' | '/=') expressionFactor
-                 | expressionElement ;
-expressionElement : ('+' | '-')? functionCallStatement
-                  | ('+' | '-')? variable ('++' | '--')?
-                  | ('+' | '-')? ('++' | '--')? variable
-                  | ('+' | '-')? unsignedNumericLiteral
-                  | ('+' | '-')? '(' expression ')' ;
+
+// Expression (ordered from the highest precedence to the lowest)
+expression : expression op=('++' | '--') # expressionPostfix
+           | op=('+' | '-' | '++' | '--' | '!') expression # expressionPrefix
+           | expression op=('*' | '/') expression # expressionMultiplicative
+           | expression op=('+' | '-') expression # expressionAdditive
+           | expression op=To expression # expressionRange
+           | expression op=(DownTo | Step) expression # expressionInfix
+           | expression '?:' expression # expressionElvis
+           | expression negation='!'? op=In expression # expressionIn
+           | expression negation='!'? op=Is type # expressionIs
+           | expression op=('<' | '>' | '<=' | '>=') expression # expressionComparison
+           | expression op=('==' | '!=') expression # expressionEquality
+           | expression op='&&' expression # expressionConjunction
+           | expression op='||' expression # expressionDisjunction
+           | variable op=('=' | '+=' | '-=' | '*=' | '/=') expression # expressionAssign
+           | whenStatement # expressionWhen
+           | stringLiteral # expressionString
+           | ifExpression # expressionIf
+           | compoundStatement # expressionBlock
+           | '(' expression ')' # expressionParen
+           | functionCallStatement # expressionCall
+           | variable # expressionVariable
+           | unsignedNumericLiteral # expressionNumber ;
 
 // Numeric
 unsignedNumericLiteral : UnsignedDecimalLiteral 'L'?
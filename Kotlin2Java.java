@@ -1,11 +1,174 @@
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 public class Kotlin2Java {
-    public static void main(String[] args) throws Exception {
+    static boolean twoStageParsing = true;
+    static boolean verbose = false;
+    static boolean profileParser = false;
+    static boolean antlrLexer = false;
+    static boolean compareLexer = false;
+    static boolean checkFolding = false;
+    static String benchmark = null;
+    static boolean compactTokens = false;
+    static boolean streaming = false;
+    static boolean prune = false;
+    static List<String> keep = new ArrayList<>(); // Roots of --prune besides main
+    static boolean batch = false;
+    static String outputDirectory = null;
+    static int threads = Runtime.getRuntime().availableProcessors();
+    static String warmUp = null;
+    static String dfaCache = null;
+    static long snapshotInput = 1024; // Smallest file worth loading the DFA snapshot for
+
+    static final AtomicInteger parsedFiles = new AtomicInteger();
+    static final AtomicInteger fallbackFiles = new AtomicInteger();
+
+    public static void main(String[] arguments) throws Exception {
+        long startTime = System.nanoTime();
+
+        // Option
+        List<String> argumentList = new ArrayList<>();
+
+        for(int i = 0; i < arguments.length; i++) {
+            String argument = arguments[i];
+
+            if(argument.equals("--warm-up") && i + 1 < arguments.length) {
+                warmUp = arguments[++i];
+            } else if(argument.equals("--dfa-cache") && i + 1 < arguments.length) {
+                dfaCache = arguments[++i];
+            } else if(argument.equals("--dfa-cache-min") && i + 1 < arguments.length) {
+                snapshotInput = Long.parseLong(arguments[++i]);
+            } else if(argument.equals("--ll")) {
+                twoStageParsing = false;
+            } else if(argument.equals("--verbose")) {
+                verbose = true;
+            } else if(argument.equals("--profile-parser")) {
+                profileParser = true;
+            } else if(argument.equals("--antlr-lexer")) {
+                antlrLexer = true;
+            } else if(argument.equals("--compare-lexer")) {
+                compareLexer = true;
+            } else if(argument.equals("--check-folding")) {
+                checkFolding = true;
+            } else if(argument.equals("--bench") && i + 1 < arguments.length) {
+                benchmark = arguments[++i];
+            } else if(argument.equals("--compact-tokens")) {
+                compactTokens = true;
+            } else if(argument.equals("--stream")) {
+                streaming = true;
+            } else if(argument.equals("--prune")) {
+                prune = true;
+            } else if(argument.equals("--keep") && i + 1 < arguments.length) {
+                keep.addAll(Arrays.asList(arguments[++i].split(",")));
+                prune = true;
+            } else if(argument.equals("--batch")) {
+                batch = true;
+            } else if(argument.equals("--out") && i + 1 < arguments.length) {
+                outputDirectory = arguments[++i];
+            } else if(argument.equals("--threads") && i + 1 < arguments.length) {
+                threads = Integer.parseInt(arguments[++i]);
+            } else {
+                argumentList.add(argument);
+            }
+        }
+
+        String[] args = argumentList.toArray(new String[0]);
+
+        if(prune && streaming) {
+            System.err.println("Pruning needs the whole program. --stream ignored.");
+            streaming = false;
+        }
+        if(batch && streaming) {
+            System.err.println("Batch mode translates whole files. --stream ignored.");
+            streaming = false;
+        }
+
+        // DFA
+        int dfaStates = 0;
+
+        // Loading the snapshot takes longer than parsing a small file cold, so it is skipped for one,
+        // and the snapshot is then left as it is
+        if(dfaCache != null && warmUp == null && !batch && args.length > 0 && new File(args[0]).isFile() && new File(args[0]).length() < snapshotInput) {
+            if(verbose) {
+                System.err.println("DFA snapshot: not loaded for " + new File(args[0]).length() + " byte(s) of input");
+            }
+            dfaCache = null;
+        }
+        if(dfaCache != null && new File(dfaCache).exists()) {
+            if(KotlinDFASnapshot.load(new File(dfaCache), antlrLexer || compareLexer)) {
+                dfaStates = KotlinDFASnapshot.stateCount();
+                if(verbose) {
+                    System.err.println("DFA snapshot: " + dfaStates + " state(s) loaded in " + (System.nanoTime() - startTime) / 1000000 + " ms");
+                }
+            } else {
+                System.err.println("DFA snapshot does not match the grammar or is damaged. Ignored.");
+            }
+        }
+        if(warmUp != null) {
+            warmUp(new File(warmUp));
+            if(verbose) {
+                System.err.println("Warm-up: " + KotlinDFASnapshot.stateCount() + " DFA state(s) after " + (System.nanoTime() - startTime) / 1000000 + " ms");
+            }
+            if(args.length == 0) {
+                saveDFA(dfaStates);
+                return;
+            }
+        }
+
+        if(compareLexer) {
+            for(String arg: args) {
+                compareLexer(CharStreams.fromFileName(arg), true);
+            }
+            return;
+        }
+        if(checkFolding) {
+            KotlinFoldingCheck.run();
+            return;
+        }
+        if(benchmark != null) {
+            KotlinBenchmark.run(benchmark);
+            return;
+        }
+
+        if(profileParser) {
+            ParserProfile profile = new ParserProfile();
+
+            if(args.length == 0) {
+                profile.add(profile(CharStreams.fromStream(System.in)));
+            }
+            for(String arg: args) {
+                profile.add(profile(CharStreams.fromFileName(arg)));
+            }
+
+            profile.print(System.out);
+            return;
+        }
+
+        if(batch) {
+            KotlinBatchTranslator translator = new KotlinBatchTranslator(outputDirectory != null ? new File(outputDirectory) : null, threads);
+            for(String arg: args) {
+                translator.add(arg);
+            }
+            translator.run();
+
+            saveDFA(dfaStates);
+            return;
+        }
+
         // Input
         CharStream charStream;
         Boolean fromConsole = true;
@@ -30,15 +193,41 @@ public class Kotlin2Java {
         }
 
         // Process
-        KotlinLexer lexer = new KotlinLexer(charStream);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        KotlinParser parser = new KotlinParser(tokens);
-        ParseTreeVisitor visitor = new KotlinWalker();
+        KotlinWalker walker = new KotlinWalker();
+        if(streaming) {
+            walker.declareFunctions(lexer(charStream, new BaseErrorListener()));
+            charStream.seek(0);
+        }
+        TokenSource lexer = lexer(charStream);
+
+        if(streaming) {
+            KotlinTokenBuffer tokens = new KotlinTokenBuffer(lexer);
+            KotlinParser parser = new KotlinParser(tokens);
+            Writer writer = new BufferedWriter(fromConsole ? new OutputStreamWriter(System.out) : new FileWriter(fileName));
+            KotlinStreamTranslator translator = new KotlinStreamTranslator(parser, tokens, walker, writer);
+
+            translator.translate();
+            if(fromConsole) {
+                writer.write(System.lineSeparator());
+            }
+            writer.close();
+
+            parsedFiles.incrementAndGet();
+            if(translator.fallbackElements > 0) {
+                fallbackFiles.incrementAndGet();
+            }
+            if(verbose) {
+                System.err.println("SLL fallback: " + translator.fallbackElements + "/" + translator.elements + " element(s)");
+                System.err.println("Time to first output: " + (System.nanoTime() - startTime) / 1000000 + " ms");
+            }
+
+            saveDFA(dfaStates);
+            return;
+        }
 
-        String result = (String)visitor.visit(parser.prog());
+        String result = translate(lexer);
 
         // Output
-        fromConsole = true; // For debugging
         if(fromConsole) {
             System.out.println(result);
         } else {
@@ -48,715 +237,302 @@ public class Kotlin2Java {
             printWriter.close();
             fileWriter.close();
         }
-    }
-}
 
-enum Type {
-    Int, Integer, Double, String, Long, Object, Boolean, None, List, Void;
-
-    Type subType;
-
-    @Override
-    public String toString() {
-        switch(this) {
-            case Int: return "int";
-            case Integer: return "Integer";
-            case Double: return "Double";
-            case String: return "String";
-            case Long: return "long";
-            case Object: return "Object";
-            case Boolean: return "bool";
-            case Void: return "void";
-            case List: return "List<" + subType.toString() + ">";
-            default: return "None";
+        if(verbose) {
+            System.err.println("Time to first output: " + (System.nanoTime() - startTime) / 1000000 + " ms");
         }
-    }
-}
-
-class Expression {
-    String content;
-    Type type;
-
-    Expression(String _content, Type _type) {
-        content = _content;
-        type = _type;
-    }
 
-    @Override
-    public String toString() {
-        return content;
+        saveDFA(dfaStates);
     }
 
-    public Type getType() {
-        return type;
+    // The lowering passes, in order. constants collects the hoisted fields of the whole program
+    static KotlinIR lower(KotlinIR ir, KotlinConstantHoisting constants) {
+        ir = new KotlinLoopFusion().transform(ir);
+        ir = new KotlinWhenLowering().transform(ir);
+        ir = new KotlinElvisLowering().transform(ir);
+        ir = new KotlinRangeLowering().transform(ir);
+        ir = new KotlinConstantFolding().transform(ir);
+        ir = new KotlinTemplateFolding().transform(ir);
+        ir = new KotlinLambdaLowering().transform(ir);
+        return constants.transform(ir);
     }
-}
-
-class KotlinWalker extends KotlinBaseVisitor {
-    int typePriority(Type type) {
-        return 0; //TODO
-    }
-
-    Type typeInference(Type... types) {
-        Type type = types[0];
-
-        for (Type t: types) {
-            if(typePriority(type) < typePriority(t)) {
-                type = t;
-            }
-        }
 
-        return type;
-    }
-    
-    String nullSafe(Object string) {
-        if(string == null) {
-            return "";
-        } else if(string instanceof String) {
-            return (String)string;
-        } else {
-            return string.toString();
-        }
+    // The Java code for a whole file; the IR is released once it is written out
+    static String translate(TokenSource lexer) {
+        return translate(lexer, ConsoleErrorListener.INSTANCE);
     }
 
-    String visitChildren(RuleNode node, String seperator, int startIndex, int endIndex) {
+    // Syntax errors go to listener, which has to be the one the lexer reports to as well
+    static String translate(TokenSource lexer, ANTLRErrorListener listener) {
         StringBuilder result = new StringBuilder();
-
-        if(endIndex > startIndex) {
-            if(node.getChild(startIndex) instanceof TerminalNode) {
-                if(!node.getChild(startIndex).getText().equals("<EOF>")) {
-                    result.append(nullSafe(node.getChild(startIndex).getText()));
-                }
-            } else {
-                result.append(nullSafe(node.getChild(startIndex).accept(this)));
-            }
-        }
-        for(int i = startIndex + 1; i < endIndex; i++) {
-            if(node.getChild(i) instanceof TerminalNode) {
-                if(!node.getChild(i).getText().equals("<EOF>")) {
-                    result.append(seperator + nullSafe(node.getChild(i).getText()));
-                }
-            } else {
-                result.append(seperator + nullSafe(node.getChild(i).accept(this)));
-            }
-        }
-
+        new KotlinEmitter(result).emit(program(lexer, listener));
         return result.toString();
     }
 
-    String visitChildren(RuleNode node, String seperator) {
-        return visitChildren(node, seperator, 0, node.getChildCount());
-    }
-
-    @Override
-    public String visitChildren(RuleNode node) {
-        return visitChildren(node, "", 0, node.getChildCount());
-    }
-
-    @Override
-    public String visitProg(KotlinParser.ProgContext ctx) {
-        return visitChildren(ctx, "\n");
-    }
-
-    @Override
-    public String visitPackageDeclaration(KotlinParser.PackageDeclarationContext ctx) {
-        return "package " + this.visitPackageName(ctx.packageName()) + ";\n";
-    }
-
-    @Override
-    public String visitPackageName(KotlinParser.PackageNameContext ctx) {
-        return ctx.getText();
-    }
-
-    @Override
-    public String visitImportList(KotlinParser.ImportListContext ctx) {
-        return "import java.util.*;\n" + visitChildren(ctx, "\n") + "\n";
-    }
-
-    @Override
-    public String visitImportDeclaration(KotlinParser.ImportDeclarationContext ctx) {
-        return "import " + this.visitImportName(ctx.importName()) + ";";
-    }
-
-    @Override
-    public String visitImportName(KotlinParser.ImportNameContext ctx) {
-        return ctx.getText();
-    }
-
-    @Override
-    public String visitTopLevelBody(KotlinParser.TopLevelBodyContext ctx) {
-        return "class Main {\n" + visitChildren(ctx, "\n") + "\n}";
-    }
-
-    @Override
-    public String visitTopLevelBodyElement(KotlinParser.TopLevelBodyElementContext ctx) {
-        return visitChildren(ctx, "\n");
-    }
-
-    @Override public
-    String visitBody(KotlinParser.BodyContext ctx) {
-        return visitChildren(ctx, "\n");
-    }
-
-    @Override
-    public String visitBodyElement(KotlinParser.BodyElementContext ctx) {
-        if(ctx.functionCallStatement() != null || ctx.returnStatement() != null || ctx.expression() != null) {
-            return this.visit(ctx.getChild(0)).toString() + ";";
-        } else {
-            return this.visit(ctx.getChild(0)).toString();
-        }
-
+    static KotlinIR program(TokenSource lexer) {
+        return program(lexer, ConsoleErrorListener.INSTANCE);
     }
 
-    @Override
-    public String visitFunctionDeclaration(KotlinParser.FunctionDeclarationContext ctx) {
-        String name;
-        Type type = Type.Void;
-
-        if((name = ctx.Id().getText()).equals("main")) {
-            if(ctx.expression() != null) {
-                return "public static void main(String[] args)" + this.visitExpression(ctx.expression());
-            } else {
-                return "public static void main(String[] args)" + this.visitCompoundStatement(ctx.compoundStatement());
-            }
-        } else {
-            StringBuilder content = new StringBuilder();
-
-            content.append("static ");
-
-            if(ctx.type() != null) {
-                content.append(this.visitType(ctx.type()));
-            } else {
-                content.append(type.toString());
-            }
-
-            content.append(" " + name + "(");
-
-            if(ctx.functionDeclarationParameterList() != null) {
-                content.append(this.visitFunctionDeclarationParameterList(ctx.functionDeclarationParameterList()));
-            }
-
-            content.append(")");
-
-            if(ctx.expression() != null) {
-                content.append(this.visitExpression(ctx.expression()));
-            } else if (ctx.compoundStatement() != null) {
-                content.append(this.visitCompoundStatement(ctx.compoundStatement()));
+    // Parse tree, parser and tokens are only reachable from here, so they are released once the IR is built
+    static KotlinIR program(TokenSource lexer, ANTLRErrorListener listener) {
+        TokenStream tokens = compactTokens ? new KotlinTokenBuffer(lexer) : new CommonTokenStream(lexer);
+        KotlinParser parser = new KotlinParser(tokens);
+        KotlinParser.ProgContext tree = parse(parser, tokens, listener);
+        KotlinIR program = (KotlinIR)new KotlinWalker().visit(tree);
+        tree = null;
+
+        if(prune) {
+            KotlinDeadCodePruning pruning = new KotlinDeadCodePruning(keep);
+            program = pruning.prune(program);
+            reportPruning(lexer.getSourceName(), pruning.removed);
+        }
+        program = lower(program, new KotlinConstantHoisting());
+
+        if(verbose && !batch) {
+            System.err.println("SLL fallback: " + fallbackFiles + "/" + parsedFiles + " file(s)");
+            if(tokens instanceof KotlinTokenBuffer) {
+                KotlinTokenBuffer buffer = (KotlinTokenBuffer)tokens;
+                System.err.println("Token buffer: " + buffer.size() + " token(s) in " + buffer.bytes() / 1024 + " KB");
             }
-
-            return content.toString();
         }
-    }
-
-    @Override
-    public String visitFunctionDeclarationParameterList(KotlinParser.FunctionDeclarationParameterListContext ctx) {
-        String list = "";
 
-        if(ctx.functionDeclarationParameterList() != null) {
-            list = this.visitFunctionDeclarationParameterList(ctx.functionDeclarationParameterList()) + ", ";
-        }
-
-        return list + this.visitType(ctx.type()) + " " + ctx.Id().getText();
+        return program;
     }
 
-    @Override
-    public Expression visitFunctionCallStatement(KotlinParser.FunctionCallStatementContext ctx) {
-        StringBuilder content = new StringBuilder();
-        boolean list = false;
-        Type argumentType = Type.None;
-
-        if(ctx.Id() != null) {
-            if(ctx.Id().getText().equals("println")) {
-                content.append("System.out.println");
-            } else if(ctx.Id().getText().equals("print")) {
-                content.append("System.out.print");
-            } else if(ctx.Id().getText().equals("listOf")) {
-                //content.append("List.of"); //TODO
-                content.append("Arrays.asList");
-                list = true;
-            } else {
-                content.append(ctx.Id().getText());
-            }
-        } else {
-            content.append(this.visitType(ctx.type()));
-        }
-
-        if(ctx.compoundStatement() != null) {
-            content.append(this.visitCompoundStatement(ctx.compoundStatement()));
-        } else {
-            content.append("(");
-            if(ctx.functionCallArgumentList() != null) {
-                Expression argument = this.visitFunctionCallArgumentList(ctx.functionCallArgumentList());
-                argumentType = argument.getType();
-                content.append(argument.toString());
-            }
-            content.append(")");
+    // What --prune left out, with the size it would have taken in the output
+    static void reportPruning(String source, List<KotlinIR> removed) {
+        String prefix = batch ? source + ": " : "";
+        if(removed.isEmpty()) {
+            System.err.println(prefix + "Pruned: nothing");
+            return;
         }
 
-        if(ctx.functionCallStatement() != null) {
-            Expression expression = this.visitFunctionCallStatement(ctx.functionCallStatement());
-            return new Expression(content.toString() + "." + expression.toString(), expression.getType());
-        } else if(ctx.variable() != null) {
-            Expression expression = this.visitVariable(ctx.variable());
-            return new Expression(content.toString() + "." + expression.toString(), expression.getType());
-        } else {
-            if(list) {
-                Type type = Type.List;
-                type.subType = argumentType;
-
-                return new Expression(content.toString(), type);
-            } else {
-                return new Expression(content.toString(), Type.None); //TODO: Get function return
+        List<String> names = new ArrayList<>();
+        int functions = 0;
+        for(KotlinIR member: removed) {
+            names.add(KotlinDeadCodePruning.name(member));
+            if(member instanceof KotlinIR.Function) {
+                functions++;
             }
         }
-    }
-
-    @Override
-    public Expression visitFunctionCallArgumentList(KotlinParser.FunctionCallArgumentListContext ctx) {
-        if(ctx.functionCallArgumentList() != null) {
-            Expression list = this.visitFunctionCallArgumentList(ctx.functionCallArgumentList());
-            Expression expression = this.visitExpression(ctx.expression());
-            Type type = typeInference(list.getType(), expression.getType());
 
-            return new Expression( list.toString() + ", " + expression.toString(), type);
-        } else {
-            return this.visitExpression(ctx.expression());
-        }
+        StringBuilder output = new StringBuilder();
+        new KotlinEmitter(output).emit(lower(new KotlinIR.Group(removed, "\n"), new KotlinConstantHoisting()));
+        System.err.println(prefix + "Pruned: " + functions + " function(s), " + (removed.size() - functions) + " propert" + (removed.size() - functions == 1 ? "y" : "ies")
+            + ", " + output.length() + " char(s) of output: " + String.join(", ", names));
     }
 
-    @Override public String visitClassDeclaration(KotlinParser.ClassDeclarationContext ctx) { return (String)visitChildren(ctx); }
-
-    @Override public String visitClassDeclarationArgumentList(KotlinParser.ClassDeclarationArgumentListContext ctx) { return (String)visitChildren(ctx); }
-
-    @Override public String visitClassInheritance(KotlinParser.ClassInheritanceContext ctx) { return (String)visitChildren(ctx); }
-
-    @Override public String visitInterfaceDeclaration(KotlinParser.InterfaceDeclarationContext ctx) { return (String)visitChildren(ctx); }
+    // Parse every .kt file under the directory so the shared DFA is already built for the real input
+    static void warmUp(File directory) throws Exception {
+        File[] files = directory.listFiles();
 
-    @Override
-    public String visitStatementBody(KotlinParser.StatementBodyContext ctx) {
-        if(ctx.bodyElement() != null) {
-            return "\n" + this.visitBodyElement(ctx.bodyElement());
-        } else {
-            return this.visitCompoundStatement(ctx.compoundStatement());
+        if(files == null) {
+            System.err.println("Warm-up directory not exist.");
+            return;
         }
-    }
-
-    @Override
-    public String visitCompoundStatement(KotlinParser.CompoundStatementContext ctx) {
-        return "{\n" + this.visitBody(ctx.body()) + "\n}";
-    }
+        Arrays.sort(files);
 
-    @Override
-    public String visitReturnStatement(KotlinParser.ReturnStatementContext ctx) {
-        if(ctx.expression() != null) {
-            return "return " + this.visitExpression(ctx.expression()).toString();
-        } else {
-            return "return";
-        }
-    }
+        for(File file: files) {
+            if(file.isDirectory()) {
+                warmUp(file);
+            } else if(file.getName().endsWith(".kt")) {
+                TokenSource lexer = lexer(CharStreams.fromFileName(file.getPath()));
+                CommonTokenStream tokens = new CommonTokenStream(lexer);
+                KotlinParser parser = new KotlinParser(tokens);
 
-    @Override
-    public String visitIfStatement(KotlinParser.IfStatementContext ctx) {
-        if(ctx.ifExpression() != null) {
-            return this.visitIfExpression(ctx.ifExpression()).toString();
-        } else {
-            return "if(" + this.visitCondition(ctx.condition()) + ")" + this.visitStatementBody(ctx.statementBody());
+                // Only the DFA is kept, so the parse tree is never needed
+                parser.setBuildParseTree(false);
+                parse(parser, tokens);
+            }
         }
-    }
 
-    @Override
-    public Expression visitIfExpression(KotlinParser.IfExpressionContext ctx) { //TODO
-        String statementBody1 = this.visitStatementBody(ctx.statementBody(0));
-        String statementBody2 = this.visitStatementBody(ctx.statementBody(1));
-        Type type = Type.None;
-
-        return new Expression("if(" + this.visitCondition(ctx.condition()) + ")" + statementBody1.toString() + " else " + statementBody2.toString(), type);
+        parsedFiles.set(0);
+        fallbackFiles.set(0);
     }
 
-    @Override
-    public String visitForStatement(KotlinParser.ForStatementContext ctx) {
-        if(ctx.range() != null) {
-            return "for(" + visitForRange(ctx.range(), this.visitVariable(ctx.variable(0)).toString()) + ")" + this.visitStatementBody(ctx.statementBody());
-        } else {
-            Expression variable = this.visitVariable(ctx.variable(0));
-            Expression variableTarget = this.visitVariable(ctx.variable(1));
-            variableTarget.type.subType = Type.None; //TODO
-            return "for(" + variableTarget.type.subType.toString() + " " + variable.toString() + ": " + variableTarget.toString() + ")" + this.visitStatementBody(ctx.statementBody());
+    static void saveDFA(int loadedStates) throws Exception {
+        if(dfaCache != null && KotlinDFASnapshot.stateCount() != loadedStates) {
+            KotlinDFASnapshot.save(new File(dfaCache));
         }
     }
 
-    @Override
-    public String visitWhileStatement(KotlinParser.WhileStatementContext ctx) {
-        return "while(" + this.visitCondition(ctx.condition()) + ")" + this.visitStatementBody(ctx.statementBody());
+    static TokenSource lexer(CharStream charStream) {
+        return lexer(charStream, ConsoleErrorListener.INSTANCE);
     }
 
-    @Override
-    public String visitWhenStatement(KotlinParser.WhenStatementContext ctx) {
-        if(ctx.expression() != null) {
-            return "switch(" + this.visitExpression(ctx.expression()).toString() + ") {\n" + this.visitWhenList(ctx.whenList()) + "}";
+    static TokenSource lexer(CharStream charStream, ANTLRErrorListener listener) {
+        if(antlrLexer) {
+            KotlinLexer lexer = new KotlinLexer(charStream);
+            lexer.removeErrorListeners();
+            lexer.addErrorListener(listener);
+            return lexer;
         } else {
-            return "switch {\n" + this.visitWhenList(ctx.whenList()) + "\n}";
+            KotlinTokenSource lexer = new KotlinTokenSource(charStream);
+            lexer.listener = listener;
+            return lexer;
         }
     }
 
-    @Override
-    public String visitWhenList(KotlinParser.WhenListContext ctx) {
-        StringBuilder content = new StringBuilder();
+    // Check the hand-written lexer against the generated one and compare their throughput
+    static void compareLexer(CharStream charStream, boolean throughput) {
+        List<? extends Token> expected = new KotlinLexer(charStream).getAllTokens();
+        charStream.seek(0);
+        List<Token> actual = new ArrayList<>();
+        TokenSource tokenSource = new KotlinTokenSource(charStream);
 
-        for(int i = 0; i < ctx.getChildCount() / 3; i++) {
-            content.append(this.visitWhenCondition(ctx.whenCondition(i)) + ": " + this.visitStatementBody(ctx.statementBody(i)) + "\n");
+        for(Token token = tokenSource.nextToken(); token.getType() != Token.EOF; token = tokenSource.nextToken()) {
+            actual.add(token);
         }
-        return content.toString();
-    }
-
-    @Override
-    public String visitWhenCondition(KotlinParser.WhenConditionContext ctx) {
-        if(ctx.Else() != null) {
-            return "default";
-        } else if(ctx.Is() != null) {
-            return "case " + ""; //TODO
-        } else if(ctx.In() != null) {
-            return "case " + ""; //TODO
-        } else {
-            return "case " + this.visitExpression(ctx.expression()).toString();
-        }
-    }
 
-    @Override
-    public String visitType(KotlinParser.TypeContext ctx) {
-        if(ctx.Type() != null) {
-            if(ctx.getText().equals("Int")) {
-                return "int";
-            } else if(ctx.getText().equals("Int?")) {
-                return "Integer";
-            } else if(ctx.getText().equals("String") || ctx.getText().equals("String?")) {
-                return "String";
-            } else if(ctx.getText().equals("Double") || ctx.getText().equals("Double?")) {
-                return "Double";
-            } else if(ctx.getText().equals("Any") || ctx.getText().equals("Any?")) {
-                return "Object";
+        int mismatch = -1;
+        for(int i = 0; i < Math.max(expected.size(), actual.size()) && mismatch < 0; i++) {
+            if(i >= expected.size() || i >= actual.size()) {
+                mismatch = i;
             } else {
-                return null;
+                Token a = expected.get(i);
+                Token b = actual.get(i);
+                if(a.getType() != b.getType() || a.getStartIndex() != b.getStartIndex() || a.getStopIndex() != b.getStopIndex()
+                    || a.getLine() != b.getLine() || a.getCharPositionInLine() != b.getCharPositionInLine() || !a.getText().equals(b.getText())) {
+                    mismatch = i;
+                }
             }
-        } else {
-            return "List<" + this.visitType(ctx.type()) + ">";
-        }
-    }
-
-    @Override
-    public Expression visitStringLiteral(KotlinParser.StringLiteralContext ctx) {
-        return new Expression(visitChildren(ctx, " + ", 1, ctx.getChildCount() - 1), Type.String);
-    }
-
-    @Override
-    public String visitStringReference(KotlinParser.StringReferenceContext ctx) {
-        return ctx.Id().getText();
-    }
-
-    @Override
-    public String visitStringExpression(KotlinParser.StringExpressionContext ctx) {
-        return this.visitExpression(ctx.expression()).toString();
-    }
-
-    @Override
-    public String visitStringText(KotlinParser.StringTextContext ctx) {
-        return "\"" + this.visitChildren(ctx, " ") + "\"";
-    }
-
-    @Override
-    public String visitRange(KotlinParser.RangeContext ctx) {
-        return visitChildren(ctx); //TODO
-    }
-
-    public String visitForRange(KotlinParser.RangeContext ctx, String variable) {
-        Expression startExpression = this.visitExpressionForRange(ctx.expressionForRange(0));
-        Expression endExpression = this.visitExpressionForRange(ctx.expressionForRange(1));
-        Expression stepExpression = null;
-        Type type;
-
-        StringBuilder content = new StringBuilder();
-
-        if(ctx.Step() != null) {
-            stepExpression = this.visitExpressionForRange(ctx.expressionForRange(2));
-            type = typeInference(startExpression.getType(), endExpression.getType(), stepExpression.getType());
-        } else {
-            type = typeInference(startExpression.getType(), endExpression.getType());
         }
 
-        content.append(type.toString() + " " + variable + " = " + startExpression.toString() + "; ");
-
-        if(ctx.To() != null) {
-            content.append(variable + " <= " + endExpression.toString() + "; ");
-            if(ctx.Step() != null) {
-                content.append(variable + " += " + stepExpression.toString());
-            } else {
-                content.append(variable + " ++");
-            }
-        } else {
-            content.append(variable + " >= " + endExpression.toString() + "; ");
-            if(ctx.Step() != null) {
-                content.append(variable + " -= " + stepExpression.toString());
-            } else {
-                content.append(variable + " --");
+        if(mismatch >= 0) {
+            System.out.println(charStream.getSourceName() + ": token " + mismatch + " differs: "
+                + (mismatch < expected.size() ? expected.get(mismatch) : "none") + " / " + (mismatch < actual.size() ? actual.get(mismatch) : "none"));
+            return;
+        } else if(!throughput) {
+            System.out.println(charStream.getSourceName() + ": " + actual.size() + " tokens identical");
+            return;
+        }
+
+        long[] time = new long[2];
+        for(int round = 0; round < 15; round++) {
+            for(int i = 0; i < 2; i++) {
+                charStream.seek(0);
+                long start = System.nanoTime();
+                TokenSource lexer = i == 0 ? new KotlinLexer(charStream) : new KotlinTokenSource(charStream);
+                while(lexer.nextToken().getType() != Token.EOF);
+                if(round >= 5) {
+                    time[i] += System.nanoTime() - start;
+                }
             }
         }
 
-        return content.toString();
-    }
-
-    @Override
-    public Expression visitVariable(KotlinParser.VariableContext ctx) {
-        StringBuilder content = new StringBuilder();
-
-        content.append(ctx.Id().getText());
-
-        if(ctx.expression() != null) {
-            content.append("[" + this.visitExpression(ctx.expression()).toString() + "]");
-        }
-
-        if(ctx.functionCallStatement() != null) {
-            Expression expression = this.visitFunctionCallStatement(ctx.functionCallStatement());
-            return new Expression(content.toString() + "." + expression.toString(), expression.getType());
-        } else if(ctx.variable() != null) {
-            Expression expression = this.visitVariable(ctx.variable());
-            return new Expression(content.toString() + "." + expression.toString(), expression.getType());
-        } else {
-            return new Expression(content.toString(), Type.None); //TODO: Get variable type from initialization
-        }
+        double megabytes = charStream.size() * 10 / 1e6;
+        System.out.println(String.format("%s: %d tokens identical, KotlinLexer %.1f MB/s, KotlinTokenSource %.1f MB/s",
+            charStream.getSourceName(), actual.size(), megabytes / (time[0] / 1e9), megabytes / (time[1] / 1e9)));
     }
 
-    @Override
-    public String visitAssignStatement(KotlinParser.AssignStatementContext ctx) {
-        StringBuilder content = new StringBuilder();
-        String mode = ctx.Mode().getText();
-
-        if(mode.equals("val")) {
-            content.append("final ");
-        }
-
-        if(ctx.type() != null) {
-            content.append(this.visitType(ctx.type()) + " " + ctx.Id().getText());
+    static KotlinParser profile(CharStream charStream) {
+        TokenSource lexer = lexer(charStream);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        KotlinParser parser = new KotlinParser(tokens);
 
-            if(ctx.expression() != null) {
-                content.append(" = " + this.visitExpression(ctx.expression()).toString());
-            }
-        } else {
-            if(ctx.expression() != null) {
-                Expression expression = this.visitExpression(ctx.expression());
-                content.append(expression.getType().toString() + " " + ctx.Id().getText() + " = " + expression.toString());
-            }
-        }
+        parser.setProfile(true);
+        parser.setBuildParseTree(false);
+        parse(parser, tokens);
 
-        return content.toString() + ";";
+        return parser;
     }
 
-    @Override
-    public Expression visitAssignmentExpression(KotlinParser.AssignmentExpressionContext ctx) {
-        Expression variable = this.visitVariable(ctx.variable());
-        Expression expression = this.visitExpression(ctx.expression());
-
-        return new Expression(variable.toString() + " = " + expression.toString(), expression.getType());
+    // Try the cheap SLL prediction first and re-parse with full LL only if it fails
+    static KotlinParser.ProgContext parse(KotlinParser parser, TokenStream tokens) {
+        return parse(parser, tokens, ConsoleErrorListener.INSTANCE);
     }
 
-    @Override
-    public String visitCondition(KotlinParser.ConditionContext ctx) {
-        if(ctx.logicalOperator() != null) {
-            return this.visitCondition(ctx.condition(0)) + " " + this.visitLogicalOperator(ctx.logicalOperator()) + " " + this.visitCondition(ctx.condition(1));
-        } else {
-            String operand1 = this.visit(ctx.getChild(0)).toString();
-            String operand2 = this.visit(ctx.getChild(2)).toString();
-            String operator = this.visitConditionOperator(ctx.conditionOperator());
+    static KotlinParser.ProgContext parse(KotlinParser parser, TokenStream tokens, ANTLRErrorListener listener) {
+        parsedFiles.incrementAndGet();
 
-            return operand1 + " " + operator + " " + operand2;
+        if(!twoStageParsing) {
+            parser.removeErrorListeners();
+            parser.addErrorListener(listener);
+            return parser.prog();
         }
-    }
 
-    @Override
-    public String visitLogicalOperator(KotlinParser.LogicalOperatorContext ctx) {
-        return ctx.getText();
-    }
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
 
-    @Override
-    public String visitConditionOperator(KotlinParser.ConditionOperatorContext ctx) {
-        String operator = ctx.getText();
-        if(ctx.Is() != null) {
-            return operator.replace("is", "instanceof");
-        } else {
-            return operator;
-        }
-    }
+        try {
+            return parser.prog();
+        } catch(ParseCancellationException e) {
+            fallbackFiles.incrementAndGet();
 
-    @Override
-    public Expression visitExpression(KotlinParser.ExpressionContext ctx) {
-        if(ctx.whenStatement() != null) {
-            String expression = this.visitWhenStatement(ctx.whenStatement()); //TODO
-            return new Expression(expression.toString(), Type.None); //TODO
-        } else if(ctx.stringLiteral() != null) {
-            Expression expression = this.visitStringLiteral(ctx.stringLiteral());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.assignmentExpression() != null) {
-            Expression expression = this.visitAssignmentExpression(ctx.assignmentExpression());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.ifExpression() != null) {
-            Expression expression = this.visitIfExpression(ctx.ifExpression());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.compoundStatement() != null) {
-            String expression = this.visitCompoundStatement(ctx.compoundStatement()); //TODO
-            return new Expression(expression, Type.None); //TODO
-        } else if(ctx.expression(0) != null) {
-            Expression expression1 = this.visitExpression(ctx.expression(0));
-            Expression expression2 = this.visitExpression(ctx.expression(1));
-            return new Expression(expression1.toString() + " ?: " + expression2.toString(), Type.None); //TODO
-        } else if(ctx.expressionTerm() != null && ctx.getChildCount() == 3) {
-            Expression expression = this.visitExpressionTerm(ctx.expressionTerm());
-            return new Expression("(" + expression.toString() + ")", expression.getType());
-        } else if(ctx.expressionTerm() != null) {
-            Expression expression = this.visitExpressionTerm(ctx.expressionTerm());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.functionCallStatement() != null) {
-            Expression expression = this.visitFunctionCallStatement(ctx.functionCallStatement());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.condition() != null) {
-            String expression = this.visitCondition(ctx.condition());
-            return new Expression( expression, Type.Boolean);
-        } else if(ctx.range() != null) {
-            String expression = this.visitRange(ctx.range());
-            return new Expression(expression, Type.None); //TODO
-        } else if(ctx.variable() != null) {
-            Expression expression = this.visitVariable(ctx.variable());
-            return new Expression(expression.toString(), expression.getType());
-        } else {
-            return new Expression(visitChildren(ctx), Type.None);
-        }
-    }
+            tokens.seek(0);
+            parser.reset();
+            parser.addErrorListener(listener);
+            parser.setErrorHandler(new DefaultErrorStrategy());
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
 
-    @Override
-    public Expression visitExpressionForCondition(KotlinParser.ExpressionForConditionContext ctx) {
-        if(ctx.stringLiteral() != null) {
-            Expression expression = this.visitStringLiteral(ctx.stringLiteral());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.ifExpression() != null) {
-            Expression expression = this.visitIfExpression(ctx.ifExpression());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.expressionTerm() != null && ctx.getChildCount() == 3) {
-            Expression expression = this.visitExpressionTerm(ctx.expressionTerm());
-            return new Expression("(" + expression.toString() + ")", expression.getType());
-        } else if(ctx.expressionTerm() != null) {
-            Expression expression = this.visitExpressionTerm(ctx.expressionTerm());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.functionCallStatement() != null) {
-            Expression expression = this.visitFunctionCallStatement(ctx.functionCallStatement());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.range() != null) {
-            String expression = this.visitRange(ctx.range());
-            return new Expression(expression, Type.None); //TODO
-        } else if(ctx.variable() != null) {
-            Expression expression = this.visitVariable(ctx.variable());
-            return new Expression(expression.toString(), expression.getType());
-        } else {
-            return new Expression(visitChildren(ctx), Type.None);
+            return parser.prog();
         }
     }
+}
 
-    @Override
-    public Expression visitExpressionForRange(KotlinParser.ExpressionForRangeContext ctx) {
-        if(ctx.expressionTerm() != null && ctx.getChildCount() == 3) {
-            Expression expression = this.visitExpressionTerm(ctx.expressionTerm());
-            return new Expression("(" + expression.toString() + ")", expression.getType());
-        } else if(ctx.expressionTerm() != null) {
-            Expression expression = this.visitExpressionTerm(ctx.expressionTerm());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.functionCallStatement() != null) {
-            Expression expression = this.visitFunctionCallStatement(ctx.functionCallStatement());
-            return new Expression(expression.toString(), expression.getType());
-        } else if(ctx.variable() != null) {
-            Expression expression = this.visitVariable(ctx.variable());
-            return new Expression(expression.toString(), expression.getType());
-        } else {
-            return new Expression(visitChildren(ctx), Type.None);
-        }
+class ParserProfile {
+    static class Decision {
+        int decision;
+        String rule;
+        long invocations;
+        long time;
+        long sllTotalLook;
+        long sllMaxLook;
+        long llTotalLook;
+        long llMaxLook;
+        long ambiguities;
+        long llFallback;
     }
 
-    @Override
-    public Expression visitExpressionTerm(KotlinParser.ExpressionTermContext ctx) {
-        if(ctx.expressionFactor() != null) {
-            return this.visitExpressionFactor(ctx.expressionFactor());
-        } else {
-            Expression expressionTerm1 = this.visitExpressionTerm(ctx.expressionTerm(0));
-            Expression expressionTerm2 = this.visitExpressionTerm(ctx.expressionTerm(1));
+    List<Decision> decisions = new ArrayList<>();
+    int files = 0;
 
-            String content = expressionTerm1.toString() + " " + ctx.getChild(1).getText() + " " + expressionTerm2.toString();
-            Type type = typeInference(expressionTerm1.getType(), expressionTerm2.getType());
+    void add(Parser parser) {
+        DecisionInfo[] decisionInfo = parser.getParseInfo().getDecisionInfo();
 
-            return new Expression(content, type);
+        for(int i = decisions.size(); i < decisionInfo.length; i++) {
+            Decision decision = new Decision();
+            decision.decision = i;
+            decision.rule = parser.getRuleNames()[parser.getATN().getDecisionState(i).ruleIndex];
+            decisions.add(decision);
         }
-    }
-
-    @Override
-    public Expression visitExpressionFactor(KotlinParser.ExpressionFactorContext ctx) {
-        if(ctx.expressionElement() != null) {
-            return this.visitExpressionElement(ctx.expressionElement());
-        } else {
-            Expression expressionFactor1 = this.visitExpressionFactor(ctx.expressionFactor(0));
-            Expression expressionFactor2 = this.visitExpressionFactor(ctx.expressionFactor(1));
-
-            String content = expressionFactor1.toString() + " " + ctx.getChild(1).getText() + " " + expressionFactor2.toString();
-            Type type = typeInference(expressionFactor1.getType(), expressionFactor2.getType());
 
-            return new Expression(content, type);
+        for(DecisionInfo info: decisionInfo) {
+            Decision decision = decisions.get(info.decision);
+            decision.invocations += info.invocations;
+            decision.time += info.timeInPrediction;
+            decision.sllTotalLook += info.SLL_TotalLook;
+            decision.sllMaxLook = Math.max(decision.sllMaxLook, info.SLL_MaxLook);
+            decision.llTotalLook += info.LL_TotalLook;
+            decision.llMaxLook = Math.max(decision.llMaxLook, info.LL_MaxLook);
+            decision.ambiguities += info.ambiguities.size();
+            decision.llFallback += info.LL_Fallback;
         }
-    }
-
-    @Override
-    public Expression visitExpressionElement(KotlinParser.ExpressionElementContext ctx) {
-        String sign = "";
 
-        if(ctx.getChild(0).getText().equals("+") || ctx.getChild(0).getText().equals("-")) {
-            sign = ctx.getChild(0).getText();
-        }
+        files++;
+    }
 
-        if(ctx.functionCallStatement() != null) {
-            Expression expression = this.visitFunctionCallStatement(ctx.functionCallStatement());
-            return new Expression(sign + expression.toString(), expression.getType());
-        } else if(ctx.unsignedNumericLiteral() != null) {
-            Expression expression = this.visitUnsignedNumericLiteral(ctx.unsignedNumericLiteral());
-            return new Expression(sign + expression.toString(), expression.getType());
-        } else if(ctx.expression() != null) {
-            Expression expression = this.visitExpression(ctx.expression());
-            return new Expression(sign + "(" + expression.toString() + ")", expression.getType());
-        } else {
-            Expression expression = this.visitVariable(ctx.variable());
+    void print(PrintStream out) {
+        List<Decision> sorted = new ArrayList<>();
 
-            if(ctx.getChildCount() == 3) {
-                if(ctx.getChild(2).getText().equals("++") || ctx.getChild(2).getText().equals("--")) {
-                    return new Expression(sign + expression.toString() + ctx.getChild(2).getText(), expression.getType());
-                } else {
-                    return new Expression(sign + ctx.getChild(1).getText() + expression.toString(), expression.getType());
-                }
-            } else if(ctx.getChildCount() == 2) {
-                if(ctx.getChild(1).getText().equals("++") || ctx.getChild(1).getText().equals("--")) {
-                    return new Expression(expression.toString() + ctx.getChild(1).getText(), expression.getType());
-                } else if(ctx.getChild(0).getText().equals("++") || ctx.getChild(0).getText().equals("--"))  {
-                    return new Expression(ctx.getChild(0).getText() + expression.toString(), expression.getType());
-                } else {
-                    return new Expression(sign + expression.toString(), expression.getType());
-                }
-            } else {
-                return new Expression(expression.toString(), expression.getType());
+        for(Decision decision: decisions) {
+            if(decision.invocations > 0) {
+                sorted.add(decision);
             }
         }
-    }
+        Collections.sort(sorted, (a, b) -> Long.compare(b.time, a.time));
 
-    @Override
-    public Expression visitUnsignedNumericLiteral(KotlinParser.UnsignedNumericLiteralContext ctx) {
-        if(ctx.UnsignedDecimalLiteral() != null) {
-            if(ctx.getChildCount() == 2) {
-                return new Expression(ctx.getText(), Type.Long);
-            } else {
-                return new Expression(ctx.getText(), Type.Int);
-            }
-        } else {
-            return new Expression(ctx.getText(), Type.Double);
+        out.println("Parser profile of " + files + " file(s)");
+        out.println(String.format("%8s %-32s %11s %10s %12s %12s %10s %11s",
+            "decision", "rule", "invocations", "time(ms)", "SLL avg/max", "LL avg/max", "ambiguity", "LL fallback"));
+
+        for(Decision decision: sorted) {
+            out.println(String.format("%8d %-32s %11d %10.3f %12s %12s %10d %11d",
+                decision.decision, decision.rule, decision.invocations, decision.time / 1e6,
+                String.format("%.1f/%d", (double)decision.sllTotalLook / decision.invocations, decision.sllMaxLook),
+                decision.llFallback > 0 ? String.format("%.1f/%d", (double)decision.llTotalLook / decision.llFallback, decision.llMaxLook) : "-",
+                decision.ambiguities, decision.llFallback));
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+
+// Translates every .kt file under the given directories, files and @lists (one path per line) on a
+// work-stealing pool. Each file gets a lexer, parser and walker of its own, while the DFA is static
+// in the generated classes, so every task learns into and predicts from the same cache. Output goes
+// next to the source, or to the same relative path under the output directory, where a file that
+// is not under a given directory goes to the top.
+class KotlinBatchTranslator {
+    final File outputDirectory; // null to write next to the source
+    final int threads;
+    final List<File[]> files = new ArrayList<>(); // Source and the directory its output path is relative to
+
+    final AtomicInteger translated = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    KotlinBatchTranslator(File outputDirectory, int threads) {
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+    }
+
+    void add(String argument) throws IOException {
+        if(argument.startsWith("@")) {
+            for(String line: Files.readAllLines(new File(argument.substring(1)).toPath(), StandardCharsets.UTF_8)) {
+                if(!line.trim().isEmpty()) {
+                    add(line.trim());
+                }
+            }
+            return;
+        }
+
+        File file = new File(argument);
+        if(file.isDirectory()) {
+            scan(file, file);
+        } else if(file.isFile()) {
+            files.add(new File[] {file, file.getAbsoluteFile().getParentFile()});
+        } else {
+            System.err.println(argument + ": File not exist.");
+        }
+    }
+
+    void scan(File directory, File root) {
+        File[] children = directory.listFiles();
+        if(children == null) {
+            return;
+        }
+
+        for(File child: children) {
+            if(child.isDirectory()) {
+                scan(child, root);
+            } else if(child.getName().endsWith(".kt")) {
+                files.add(new File[] {child, root});
+            }
+        }
+    }
+
+    File target(File source, File root) {
+        String name = source.getName().substring(0, source.getName().lastIndexOf(".kt")) + ".java";
+        if(outputDirectory == null) {
+            return new File(source.getParentFile(), name);
+        }
+
+        String relative = root.getAbsoluteFile().toURI().relativize(source.getAbsoluteFile().getParentFile().toURI()).getPath();
+        return new File(new File(outputDirectory, relative), name);
+    }
+
+    void run() {
+        long startTime = System.nanoTime();
+
+        // The largest files first, so no thread is left with a big one at the end
+        files.sort((a, b) -> Long.compare(b[0].length(), a[0].length()));
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for(File[] file: files) {
+            tasks.add(pool.submit(() -> translate(file[0], file[1])));
+        }
+        for(ForkJoinTask<?> task: tasks) {
+            task.join();
+        }
+        pool.shutdown();
+
+        long time = System.nanoTime() - startTime;
+        System.err.println("Batch: " + translated.get() + " file(s) in " + time / 1000000 + " ms, "
+            + String.format("%.1f", translated.get() * 1e9 / Math.max(time, 1)) + " file(s)/s on " + threads + " thread(s)"
+            + (failed.get() > 0 ? ", " + failed.get() + " failed" : ""));
+        if(Kotlin2Java.verbose) {
+            System.err.println("SLL fallback: " + Kotlin2Java.fallbackFiles.get() + "/" + Kotlin2Java.parsedFiles.get() + " file(s)");
+        }
+    }
+
+    // A file too deeply nested for the stack fails on its own like any other
+    void translate(File source, File root) {
+        Errors errors = new Errors(source.getPath());
+
+        try {
+            String result = Kotlin2Java.translate(Kotlin2Java.lexer(CharStreams.fromFileName(source.getPath()), errors), errors);
+            File target = target(source, root);
+
+            if(target.getParentFile() != null) {
+                target.getParentFile().mkdirs();
+            }
+            Files.write(target.toPath(), result.getBytes(StandardCharsets.UTF_8));
+            translated.incrementAndGet();
+        } catch(Exception | StackOverflowError e) {
+            errors.messages.append(source).append(": ").append(e).append("\n");
+            failed.incrementAndGet();
+        }
+
+        if(errors.messages.length() > 0) {
+            System.err.print(errors.messages);
+        }
+    }
+
+    // The syntax errors of one file, written out together once it is done so that the messages of
+    // files translated at the same time are not interleaved
+    static class Errors extends BaseErrorListener {
+        final String file;
+        final StringBuilder messages = new StringBuilder();
+
+        Errors(String file) {
+            this.file = file;
+        }
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int column, String message, RecognitionException e) {
+            messages.append(file).append(':').append(line).append(':').append(column).append(": ").append(message).append('\n');
+        }
+    }
+}
@@ -0,0 +1,450 @@
+import com.sun.management.ThreadMXBean;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.DecisionInfo;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+// Measurements behind the optimizations, run with --bench <name>. The input is generated with a
+// fixed shape, so two builds can be compared on the same program.
+class KotlinBenchmark {
+    static Object retained; // Keeps what is measured reachable while the heap is measured
+
+    static void run(String name) throws IOException {
+        switch(name) {
+            case "heap":
+                heap();
+                break;
+            case "parse":
+                parse();
+                break;
+            case "lexer":
+                lexer();
+                break;
+            case "stream":
+                stream();
+                break;
+            case "nesting":
+                nesting();
+                break;
+            case "expressions":
+                expressions();
+                break;
+            case "prune":
+                prune();
+                break;
+            default:
+                System.err.println("Unknown benchmark " + name + ". Known: heap, parse, lexer, stream, nesting, expressions, prune");
+        }
+    }
+
+    // ==========================================================
+    // Benchmark
+    // ==========================================================
+
+    // Heap held by the parse tree and its tokens, and by the IR built from them once they are released
+    static void heap() {
+        String source = program(2000);
+        parse(source, false); // The DFA the parser builds is shared and kept, so it is built before measuring
+        long empty = usedHeap();
+
+        KotlinParser.ProgContext tree = parse(source, true);
+        retained = tree;
+        long treeHeap = usedHeap() - empty;
+
+        retained = new KotlinWalker().visit(tree);
+        tree = null;
+        long irHeap = usedHeap() - empty;
+        retained = null;
+
+        System.out.println(String.format("Retained heap of %d KB of Kotlin: parse tree and tokens %d KB, IR %d KB (%.1fx smaller)",
+            source.length() / 1024, treeHeap / 1024, irHeap / 1024, (double)treeHeap / irHeap));
+    }
+
+    // Parse time of a large program, first with the empty DFA of a new JVM and then with the DFA built,
+    // and how many decisions needed full-context prediction
+    static void parse() {
+        String source = program(2000);
+        double megabytes = source.length() / 1e6;
+
+        long start = System.nanoTime();
+        parse(source, false);
+        long cold = System.nanoTime() - start;
+        long sll = measure(() -> parse(source, false))[0];
+        Kotlin2Java.twoStageParsing = false;
+        long ll = measure(() -> parse(source, false))[0];
+        Kotlin2Java.twoStageParsing = true;
+
+        long decisions = 0;
+        long fullContext = 0;
+        for(DecisionInfo info: Kotlin2Java.profile(CharStreams.fromString(source, "benchmark")).getParseInfo().getDecisionInfo()) {
+            decisions += info.invocations;
+            fullContext += info.LL_Fallback;
+        }
+
+        System.out.println(String.format("Parse of %d KB of Kotlin: %d ms with an empty DFA, then %d ms (%.1f MB/s), %d ms with full LL prediction",
+            source.length() / 1024, cold / 1000000, sll / 1000000, megabytes / (sll / 1e9), ll / 1000000));
+        System.out.println(String.format("%d decisions, %d needing full context; %d of %d parses fell back from SLL",
+            decisions, fullContext, Kotlin2Java.fallbackFiles.get(), Kotlin2Java.parsedFiles.get()));
+    }
+
+    // KotlinTokenSource against the generated KotlinLexer, token for token on Testcase and a multi-MB
+    // program, with the throughput of both on the program; Testcase files are too small to time
+    static void lexer() throws IOException {
+        File[] files = new File("Testcase").listFiles((directory, name) -> name.endsWith(".kt"));
+        if(files == null) {
+            System.err.println("Testcase directory not exist. Only the generated program is compared.");
+        } else {
+            Arrays.sort(files);
+            for(File file: files) {
+                Kotlin2Java.compareLexer(CharStreams.fromFileName(file.getPath()), false);
+            }
+        }
+
+        Kotlin2Java.compareLexer(CharStreams.fromString(program(8000), "generated"), true);
+    }
+
+    // The visitor path, which builds the whole parse tree, against --stream, which keeps the tree of one
+    // top-level element at a time: the output must be identical on Testcase and a generated program
+    static void stream() throws IOException {
+        File[] files = new File("Testcase").listFiles((directory, name) -> name.endsWith(".kt"));
+        if(files != null) {
+            Arrays.sort(files);
+            for(File file: files) {
+                compare(file.getPath(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+        }
+
+        String source = program(2000);
+        if(!compare("generated", source)) {
+            return;
+        }
+
+        long[] visitor = measure(() -> translate(source));
+        long[] stream = measure(() -> stream(source));
+        System.out.println(String.format("Translation of %d KB of Kotlin: visitor path %d ms, %d MB allocated; stream path %d ms, %d MB allocated",
+            source.length() / 1024, visitor[0] / 1000000, visitor[1] / (1024 * 1024), stream[0] / 1000000, stream[1] / (1024 * 1024)));
+    }
+
+    static boolean compare(String name, String source) {
+        String expected = translate(source);
+        String actual = stream(source);
+
+        int i = 0;
+        while(i < Math.min(expected.length(), actual.length()) && expected.charAt(i) == actual.charAt(i)) {
+            i++;
+        }
+        System.out.println(name + (expected.equals(actual) ? ": identical" : ": differs from char " + i));
+        return expected.equals(actual);
+    }
+
+    // Walking and emitting a function nested ever deeper, and one ever longer. Each size doubles the
+    // input, so time and allocation should double with it, not quadruple.
+    static void nesting() {
+        for(int round = 0; round < 3; round++) { // Compiled by the JIT before any size is timed
+            walk(parse(nested(400), true));
+            walk(parse(straight(40000), true));
+        }
+
+        for(int depth = 50; depth <= 400; depth *= 2) {
+            walk("Nesting depth " + depth, nested(depth));
+        }
+        for(int statements = 5000; statements <= 40000; statements *= 2) {
+            walk(statements + " statements", straight(statements));
+        }
+    }
+
+    // The walker drops each element once it is walked, so every round walks a tree of its own. The
+    // garbage of parsing it is collected before, not while the walk is timed.
+    static void walk(String name, String source) {
+        long[] walk = measure(() -> {
+            KotlinParser.ProgContext tree = parse(source, true);
+            System.gc();
+            return tree;
+        }, KotlinBenchmark::walk);
+        System.out.println(String.format("%s: %.2f ms, %d KB allocated", name, walk[0] / 1e6, walk[1] / 1024));
+    }
+
+    static void walk(KotlinParser.ProgContext tree) {
+        StringBuilder output = new StringBuilder();
+        new KotlinEmitter(output).emit((KotlinIR)new KotlinWalker().visit(tree));
+    }
+
+    // Expression objects the walker creates for expression-heavy input, against the expression nodes of
+    // the parse tree. One per node means no child result is copied or wrapped on its way up.
+    static void expressions() {
+        String source = expressions(2000);
+        KotlinParser.ProgContext tree = parse(source, true);
+
+        int nodes = expressionNodes(tree);
+
+        Map<KotlinIR.Expression, Boolean> objects = new IdentityHashMap<>();
+        new KotlinIRTransformer() {
+            @Override
+            KotlinIR.Expression expression(KotlinIR.Expression expression) {
+                if(expression != null) {
+                    objects.put(expression, true);
+                }
+                return super.expression(expression);
+            }
+        }.transform((KotlinIR)new KotlinWalker().visit(tree));
+
+        long[] walk = measure(() -> {
+            KotlinParser.ProgContext input = parse(source, true);
+            System.gc();
+            return input;
+        }, KotlinBenchmark::walk);
+
+        System.out.println(String.format("Expressions of %d KB of Kotlin: %d expression nodes, %d Expression objects (%.2f per node), walk and emit %d bytes per node in %.1f ms",
+            source.length() / 1024, nodes, objects.size(), (double)objects.size() / nodes, walk[1] / nodes, walk[0] / 1e6));
+    }
+
+    static int expressionNodes(ParseTree tree) {
+        int count = tree instanceof KotlinParser.ExpressionContext ? 1 : 0;
+        for(int i = 0; i < tree.getChildCount(); i++) {
+            count += expressionNodes(tree.getChild(i));
+        }
+        return count;
+    }
+
+    // Output of a program whose main calls only a few of its functions, translated as it is and with
+    // --prune, and how long javac takes on each. Both have to compile, or the pruning removed too much.
+    static void prune() throws IOException {
+        String source = library(300, 15);
+        String full = translate(source, false);
+        String pruned = translate(source, true);
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if(javac == null) {
+            System.err.println("No Java compiler in this runtime. Only the output size is compared.");
+        }
+        long fullTime = javac == null ? 0 : javac(javac, full);
+        long prunedTime = javac == null ? 0 : javac(javac, pruned);
+        if(fullTime < 0 || prunedTime < 0) {
+            return;
+        }
+
+        System.out.println(String.format("Translation of %d KB of Kotlin, main calling 15 of 300 functions: %d KB of Java, %d KB with --prune (%.1fx smaller)",
+            source.length() / 1024, full.length() / 1024, pruned.length() / 1024, (double)full.length() / pruned.length()));
+        if(javac != null) {
+            System.out.println(String.format("javac: %d ms, %d ms with --prune", fullTime / 1000000, prunedTime / 1000000));
+        }
+    }
+
+    // Average time javac takes on the Java into a directory of its own, or -1 when it does not compile
+    static long javac(JavaCompiler javac, String java) throws IOException {
+        Path directory = Files.createTempDirectory("kotlin2java");
+        try {
+            Path file = directory.resolve("Main.java");
+            Files.write(file, java.getBytes(StandardCharsets.UTF_8));
+            String[] arguments = {"-proc:none", "-nowarn", "-d", directory.toString(), file.toString()};
+
+            if(javac.run(null, null, null, arguments) != 0) {
+                System.err.println("The translation does not compile.");
+                return -1;
+            }
+            return measure(() -> javac.run(null, null, new ByteArrayOutputStream(), arguments))[0];
+        } finally {
+            try(Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    // ==========================================================
+    // Helper
+    // ==========================================================
+
+    static long[] measure(Runnable run) {
+        return measure(() -> null, input -> run.run());
+    }
+
+    // Average time and bytes allocated of a run after the first few, which let the JIT compile it. The
+    // input of each run is made by setup, which is not measured.
+    static <T> long[] measure(Supplier<T> setup, Consumer<T> run) {
+        ThreadMXBean threads = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long time = 0;
+        long bytes = 0;
+
+        for(int round = 0; round < 15; round++) {
+            T input = setup.get();
+            long allocated = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            run.accept(input);
+            if(round >= 5) {
+                time += System.nanoTime() - start;
+                bytes += threads.getThreadAllocatedBytes(id) - allocated;
+            }
+        }
+        return new long[] {time / 10, bytes / 10};
+    }
+
+    static String translate(String source) {
+        BaseErrorListener silent = new BaseErrorListener();
+        return Kotlin2Java.translate(Kotlin2Java.lexer(CharStreams.fromString(source, "benchmark"), silent), silent);
+    }
+
+    // The same without reporting what --prune removes
+    static String translate(String source, boolean prune) {
+        KotlinIR program = (KotlinIR)new KotlinWalker().visit(parse(source, true));
+        if(prune) {
+            program = new KotlinDeadCodePruning(Kotlin2Java.keep).prune(program);
+        }
+        StringBuilder result = new StringBuilder();
+        new KotlinEmitter(result).emit(Kotlin2Java.lower(program, new KotlinConstantHoisting()));
+        return result.toString();
+    }
+
+    static String stream(String source) {
+        CharStream charStream = CharStreams.fromString(source, "benchmark");
+        KotlinWalker walker = new KotlinWalker();
+        walker.declareFunctions(Kotlin2Java.lexer(charStream, new BaseErrorListener()));
+        charStream.seek(0);
+
+        KotlinTokenBuffer tokens = new KotlinTokenBuffer(Kotlin2Java.lexer(charStream, new BaseErrorListener()));
+        KotlinParser parser = new KotlinParser(tokens);
+        parser.removeErrorListeners();
+        StringWriter writer = new StringWriter();
+        try {
+            new KotlinStreamTranslator(parser, tokens, walker, writer).translate();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    static KotlinParser.ProgContext parse(String source, boolean buildParseTree) {
+        TokenStream tokens = new CommonTokenStream(Kotlin2Java.lexer(CharStreams.fromString(source, "benchmark")));
+        KotlinParser parser = new KotlinParser(tokens);
+        parser.setBuildParseTree(buildParseTree);
+        return Kotlin2Java.parse(parser, tokens);
+    }
+
+    static long usedHeap() {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // An if in an if, depth times
+    static String nested(int depth) {
+        StringBuilder source = new StringBuilder("fun main() {\n    var x = 0\n");
+        for(int i = 0; i < depth; i++) {
+            source.append("if (x < " + i + ") {\n    x += " + i + "\n");
+        }
+        for(int i = 0; i < depth; i++) {
+            source.append("}\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    // main with that many statements
+    static String straight(int statements) {
+        StringBuilder source = new StringBuilder("fun main() {\n    var x = 0\n");
+        for(int i = 0; i < statements; i++) {
+            source.append("    x = x * " + i + " + " + (i + 1) + "\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    // functions functions of arithmetic, comparisons and parentheses
+    static String expressions(int functions) {
+        StringBuilder source = new StringBuilder();
+
+        for(int i = 0; i < functions; i++) {
+            source.append("fun e" + i + "(a: Int, b: Int): Int {\n");
+            source.append("    val c = (a + b) * (a - b) / (b + " + (i + 1) + ") - -a\n");
+            source.append("    val d = ((c * 2 + a) - (b - a * 3)) * ((a))\n");
+            source.append("    if (c > a && b < c || a == b + " + i + ") {\n");
+            source.append("        println(c * d + (a + 1) * (b + 2))\n");
+            source.append("    }\n");
+            source.append("    return c * d + (a + 1) * (b + 2) - (c - d) / (a * b + 1)\n");
+            source.append("}\n");
+        }
+        return source.toString();
+    }
+
+    // functions functions with a loop, an if, a when, a template and a collection chain each, and main
+    static String program(int functions) {
+        StringBuilder source = new StringBuilder();
+
+        for(int i = 0; i < functions; i++) {
+            source.append("fun f" + i + "(n: Int): Int {\n");
+            source.append("    val items = listOf(1, 2, 3, " + i + ")\n");
+            source.append("    var total = 0\n");
+            source.append("    for (x in 1..n) {\n");
+            source.append("        if (x / 2 * 2 == x) {\n");
+            source.append("            total += x * " + i + " + (n - x) / 3\n");
+            source.append("        } else {\n");
+            source.append("            total -= x\n");
+            source.append("        }\n");
+            source.append("    }\n");
+            source.append("    val label = when (total / 7) {\n");
+            source.append("        0 -> \"zero\"\n");
+            source.append("        1 -> \"one\"\n");
+            source.append("        else -> \"many\"\n");
+            source.append("    }\n");
+            source.append("    println(\"f" + i + ": $total $label\")\n");
+            source.append("    return total + items.filter { it > 1 }.map { it * 2 }.sum()\n");
+            source.append("}\n");
+        }
+
+        source.append("fun main() {\n");
+        for(int i = 0; i < functions; i++) {
+            source.append("    println(f" + i + "(10))\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+
+    // functions functions like those of program, in chains of five calling the next, and main calling the
+    // chains of the first called. There is no if with an else, which is emitted with a semicolon before
+    // the else and does not compile.
+    static String library(int functions, int called) {
+        StringBuilder source = new StringBuilder();
+
+        for(int i = 0; i < functions; i++) {
+            source.append("fun f" + i + "(n: Int): Int {\n");
+            source.append("    val items = listOf(1, 2, 3, " + i + ")\n");
+            source.append("    var total = 0\n");
+            source.append("    for (x in 1..n) {\n");
+            source.append("        if (x / 2 * 2 == x) {\n");
+            source.append("            total += x * " + i + " + (n - x) / 3\n");
+            source.append("        }\n");
+            source.append("    }\n");
+            source.append("    val label = when (total / 7) {\n");
+            source.append("        0 -> \"zero\"\n");
+            source.append("        1 -> \"one\"\n");
+            source.append("        else -> \"many\"\n");
+            source.append("    }\n");
+            source.append("    println(\"f" + i + ": $total $label\")\n");
+            source.append("    return total + items.filter { it > 1 }.map { it * 2 }.sum()" + (i % 5 < 4 && i + 1 < functions ? " + f" + (i + 1) + "(n - 1)" : "") + "\n");
+            source.append("}\n");
+        }
+
+        source.append("fun main() {\n");
+        for(int i = 0; i < called; i += 5) {
+            source.append("    println(f" + i + "(10))\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+}
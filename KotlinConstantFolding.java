@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Evaluates arithmetic, comparisons and logic on literals the way Kotlin does: Int wraps around on
+// overflow, Int with Long is Long and anything with a Double is Double. Division by zero and results
+// that have no literal (NaN, infinities) are left to run time. Identities are only applied where
+// they hold for every value of the other operand, and if and while statements with a constant
+// condition are reduced to the branch taken (a when on a constant is an if chain by now), leaving
+// out what follows a branch that cannot complete.
+class KotlinConstantFolding extends KotlinIRTransformer {
+    static final KotlinIR.Literal TRUE = new KotlinIR.Literal("true", Type.Boolean);
+    static final KotlinIR.Literal FALSE = new KotlinIR.Literal("false", Type.Boolean);
+    static final KotlinIR.Block empty = new KotlinIR.Block(new ArrayList<>());
+
+    // ==========================================================
+    // Statement
+    // ==========================================================
+
+    // A statement that is never run becomes an empty block, which a block drops
+    @Override
+    KotlinIR rewrite(KotlinIR statement) {
+        statement = transform(statement);
+
+        if(statement instanceof KotlinIR.If) {
+            KotlinIR.If branch = (KotlinIR.If)statement;
+            Boolean condition = bool(branch.condition);
+            if(condition != null) {
+                KotlinIR taken = condition ? branch.then : branch.otherwise;
+                return taken != null ? KotlinWhenLowering.unwrap(taken) : empty;
+            }
+        } else if(statement instanceof KotlinIR.While) {
+            if(bool(((KotlinIR.While)statement).condition) == Boolean.FALSE) {
+                return empty;
+            }
+        }
+        return statement;
+    }
+
+    // Statements after one that cannot complete, such as the return an if(true) was reduced to, are
+    // never run, and javac rejects them as unreachable
+    @Override
+    public KotlinIR visitBlock(KotlinIR.Block block) {
+        KotlinIR.Block result = (KotlinIR.Block)super.visitBlock(block);
+        List<KotlinIR> statements = null;
+        boolean reachable = true;
+
+        for(int i = 0; i < result.statements.size(); i++) {
+            KotlinIR statement = result.statements.get(i);
+            boolean removed = !reachable || (statement instanceof KotlinIR.Block && ((KotlinIR.Block)statement).statements.isEmpty());
+            reachable &= removed || KotlinWhenLowering.completes(statement);
+
+            if(statements == null && removed) {
+                statements = new ArrayList<>(result.statements.subList(0, i));
+            }
+            if(statements != null && !removed) {
+                statements.add(statement);
+            }
+        }
+
+        return statements == null ? result : new KotlinIR.Block(statements);
+    }
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    @Override
+    public KotlinIR visitParen(KotlinIR.Paren expression) {
+        KotlinIR.Expression inner = expression(expression.expression);
+
+        // (2 * 3) is 6, (x * 1) is x, and (20) is 20 so that -(20) folds too
+        if(inner instanceof KotlinIR.Literal || inner != expression.expression && (inner instanceof KotlinIR.Variable
+            || inner instanceof KotlinIR.Call || inner instanceof KotlinIR.Paren)) {
+            return inner;
+        }
+        return inner == expression.expression ? expression : new KotlinIR.Paren(inner);
+    }
+
+    @Override
+    public KotlinIR visitConditional(KotlinIR.Conditional expression) {
+        KotlinIR.Conditional conditional = (KotlinIR.Conditional)super.visitConditional(expression);
+        Boolean condition = bool(conditional.condition);
+        if(condition == null) {
+            return conditional;
+        }
+        return condition ? conditional.then : conditional.otherwise;
+    }
+
+    @Override
+    public KotlinIR visitPrefix(KotlinIR.Prefix expression) {
+        KotlinIR.Prefix prefix = (KotlinIR.Prefix)super.visitPrefix(expression);
+        Number number = number(prefix.operand);
+        Boolean bool = bool(prefix.operand);
+
+        switch(prefix.operator) {
+            case "-":
+                if(number instanceof Double) {
+                    return literal(-number.doubleValue());
+                } else if(number != null) {
+                    return literal(prefix.operand.getType(), -number.longValue());
+                }
+                break;
+            case "+":
+                if(number != null) {
+                    return prefix.operand;
+                }
+                break;
+            case "!":
+                if(bool != null) {
+                    return bool ? FALSE : TRUE;
+                }
+                break;
+        }
+        return prefix;
+    }
+
+    @Override
+    public KotlinIR visitBinary(KotlinIR.Binary expression) {
+        KotlinIR.Binary binary = (KotlinIR.Binary)super.visitBinary(expression);
+        KotlinIR.Expression left = binary.left;
+        KotlinIR.Expression right = binary.right;
+
+        switch(binary.operator) {
+            case "&&": case "||": {
+                boolean and = binary.operator.equals("&&");
+                Boolean a = bool(left);
+                Boolean b = bool(right);
+
+                // true && x is x, false && x is false; the right side is not evaluated
+                if(a != null) {
+                    return a == and ? right : left;
+                }
+                // x && true is x, x && false is false when x has no effect
+                if(b != null && b == and) {
+                    return left;
+                } else if(b != null && removable(left)) {
+                    return right;
+                }
+                return binary;
+            }
+            case "==": case "!=": {
+                Boolean a = bool(left);
+                Boolean b = bool(right);
+                if(a != null && b != null) {
+                    return (a == b) == binary.operator.equals("==") ? TRUE : FALSE;
+                }
+                break;
+            }
+        }
+
+        Number a = number(left);
+        Number b = number(right);
+        if(a != null && b != null) {
+            KotlinIR.Expression folded = evaluate(binary.operator, promote(left.getType(), right.getType()), a, b);
+            return folded != null ? folded : binary;
+        }
+
+        KotlinIR.Expression simplified = identity(binary, a, b);
+        return simplified != null ? simplified : binary;
+    }
+
+    // Int < Long < Double
+    static Type promote(Type a, Type b) {
+        if(a == Type.Double || b == Type.Double) {
+            return Type.Double;
+        } else if(a == Type.Long || b == Type.Long) {
+            return Type.Long;
+        } else {
+            return Type.Int;
+        }
+    }
+
+    // null when the operation has to happen at run time
+    KotlinIR.Expression evaluate(String operator, Type type, Number a, Number b) {
+        if(type == Type.Double) {
+            double x = a.doubleValue();
+            double y = b.doubleValue();
+
+            switch(operator) {
+                case "+": return literal(x + y);
+                case "-": return literal(x - y);
+                case "*": return literal(x * y);
+                case "/": return literal(x / y);
+                case "<": return x < y ? TRUE : FALSE;
+                case ">": return x > y ? TRUE : FALSE;
+                case "<=": return x <= y ? TRUE : FALSE;
+                case ">=": return x >= y ? TRUE : FALSE;
+                case "==": return x == y ? TRUE : FALSE;
+                case "!=": return x != y ? TRUE : FALSE;
+                default: return null;
+            }
+        }
+
+        // Int arithmetic is done in long and cut to 32 bits, which wraps the same way
+        long x = a.longValue();
+        long y = b.longValue();
+        switch(operator) {
+            case "+": return literal(type, x + y);
+            case "-": return literal(type, x - y);
+            case "*": return literal(type, x * y);
+            case "/": return y == 0 ? null : literal(type, x / y);
+            case "<": return x < y ? TRUE : FALSE;
+            case ">": return x > y ? TRUE : FALSE;
+            case "<=": return x <= y ? TRUE : FALSE;
+            case ">=": return x >= y ? TRUE : FALSE;
+            case "==": return x == y ? TRUE : FALSE;
+            case "!=": return x != y ? TRUE : FALSE;
+            default: return null;
+        }
+    }
+
+    // x + 0, x - 0, x * 1, x / 1 and x * 0, for the types where they hold whatever x is:
+    // -0.0 + 0 is 0.0 and NaN * 0 is NaN, so only * 1, / 1 and - 0 are applied to Doubles
+    KotlinIR.Expression identity(KotlinIR.Binary binary, Number a, Number b) {
+        KotlinIR.Expression x = a != null ? binary.right : binary.left;
+        Number constant = a != null ? a : b;
+        Type type = x.getType();
+
+        if(constant == null || type != binary.getType() || (type != Type.Int && type != Type.Long && type != Type.Double)) {
+            return null;
+        }
+        boolean zero = constant.doubleValue() == 0 && !(constant instanceof Double && 1 / constant.doubleValue() < 0);
+        boolean one = constant.doubleValue() == 1;
+        boolean integral = type != Type.Double;
+
+        switch(binary.operator) {
+            case "+":
+                return zero && integral ? x : null;
+            case "-":
+                return zero && b != null ? x : null;
+            case "*":
+                if(one) {
+                    return x;
+                } else if(zero && integral && removable(x)) {
+                    return literal(type, 0);
+                }
+                return null;
+            case "/":
+                return one && b != null ? x : null;
+            default:
+                return null;
+        }
+    }
+
+    // Leaving it out changes nothing: no effect and no exception, so no division, index or member access
+    static boolean removable(KotlinIR.Expression expression) {
+        if(expression instanceof KotlinIR.Literal) {
+            return true;
+        } else if(expression instanceof KotlinIR.Variable) {
+            return ((KotlinIR.Variable)expression).index == null && ((KotlinIR.Variable)expression).member == null;
+        } else if(expression instanceof KotlinIR.Paren) {
+            return removable(((KotlinIR.Paren)expression).expression);
+        } else if(expression instanceof KotlinIR.Prefix) {
+            KotlinIR.Prefix prefix = (KotlinIR.Prefix)expression;
+            return !prefix.operator.equals("++") && !prefix.operator.equals("--") && removable(prefix.operand);
+        } else if(expression instanceof KotlinIR.Binary) {
+            KotlinIR.Binary binary = (KotlinIR.Binary)expression;
+            return KotlinRangeLowering.pureOperators.contains(binary.operator) && !binary.operator.equals("/") && !binary.operator.equals("%")
+                && removable(binary.left) && removable(binary.right);
+        } else {
+            return false;
+        }
+    }
+
+    // ==========================================================
+    // Literal
+    // ==========================================================
+
+    // Long for Int and Long literals, Double for Double literals, null for anything else
+    static Number number(KotlinIR.Expression expression) {
+        if(!(expression instanceof KotlinIR.Literal)) {
+            return null;
+        }
+
+        String text = ((KotlinIR.Literal)expression).text;
+        try {
+            switch(expression.getType().kind) {
+                case Int: return Long.parseLong(text); // 2147483648 under a -
+                case Long: return Long.parseLong(text.endsWith("L") ? text.substring(0, text.length() - 1) : text);
+                case Double: return Double.parseDouble(text);
+                default: return null;
+            }
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static Boolean bool(KotlinIR.Expression expression) {
+        if(!(expression instanceof KotlinIR.Literal) || expression.getType() != Type.Boolean) {
+            return null;
+        }
+        return ((KotlinIR.Literal)expression).text.equals("true");
+    }
+
+    static KotlinIR.Literal literal(Type type, long value) {
+        if(type == Type.Long) {
+            return new KotlinIR.Literal(value + "L", Type.Long);
+        }
+        return new KotlinIR.Literal(String.valueOf((int)value), Type.Int);
+    }
+
+    // Double.toString is read back as the same double, -0.0 included
+    static KotlinIR.Literal literal(double value) {
+        if(Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        return new KotlinIR.Literal(Double.toString(value), Type.Double);
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+// Hoists listOf/setOf calls whose elements are all literals into unmodifiable static final fields,
+// so a function no longer builds its constant collections (and their varargs arrays) on every call.
+// Equal literals share one field, named after the val it is assigned to or else after the function
+// using it first. The fields are written just before the first function using them, which is the
+// same place whether the program is streamed or not, so one instance is kept for the whole program.
+class KotlinConstantHoisting extends KotlinIRTransformer {
+    HashMap<String, String> fields = new HashMap<>(); // Java code of the literal -> field
+    HashSet<String> names = new HashSet<>(); // Field names given out
+    List<KotlinIR> hoisted = new ArrayList<>(); // Fields first used by the current top-level function
+    String function; // Current top-level function
+    KotlinIR.Declaration declaration; // Innermost declaration being visited
+
+    @Override
+    public KotlinIR visitFunction(KotlinIR.Function function) {
+        if(functions == 0) {
+            this.function = function.name;
+        }
+        KotlinIR result = super.visitFunction(function);
+
+        if(functions > 0 || hoisted.isEmpty()) {
+            return result;
+        }
+
+        List<KotlinIR> members = new ArrayList<>(hoisted);
+        members.add(result);
+        hoisted.clear();
+        return new KotlinIR.Group(members, "\n");
+    }
+
+    @Override
+    public KotlinIR visitDeclaration(KotlinIR.Declaration declaration) {
+        KotlinIR.Declaration outer = this.declaration;
+        this.declaration = declaration;
+        try {
+            return super.visitDeclaration(declaration);
+        } finally {
+            this.declaration = outer;
+        }
+    }
+
+    @Override
+    public KotlinIR visitCall(KotlinIR.Call expression) {
+        KotlinIR.Call call = (KotlinIR.Call)super.visitCall(expression);
+        Type element = constant(call);
+        if(functions == 0 || element == null) {
+            return call;
+        }
+
+        String kind = call.name.equals("listOf") ? "List" : "Set";
+        KotlinIR.Call literal = new KotlinIR.Call(call.name, call.arguments, null, null, call.getType());
+        StringBuilder key = new StringBuilder();
+        new KotlinEmitter(key).emit(literal);
+
+        String name = fields.get(key.toString());
+        if(name == null) {
+            name = name(call.member == null && declaration != null && declaration.value == expression ? declaration.name : function + kind);
+            fields.put(key.toString(), name);
+            hoisted.add(new KotlinIR.Field(kind.equals("List") ? Type.list(element) : Type.set(element), name,
+                new KotlinIR.Call("Collections.unmodifiable" + kind, Collections.singletonList(literal), null, null, call.getType())));
+        }
+        return new KotlinIR.Variable(name, null, call.member, call.getType());
+    }
+
+    // $IS_VOWEL_SET for isVowelSet, $IS_VOWEL_SET1 if that is taken
+    String name(String base) {
+        String name = "$" + base.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+        String unique = name;
+        for(int i = 1; !names.add(unique); i++) {
+            unique = name + i;
+        }
+        return unique;
+    }
+
+    // Element type of listOf(...)/setOf(...) when every element is a literal of that type, null otherwise
+    static Type constant(KotlinIR.Call call) {
+        if(!(call.name.equals("listOf") || call.name.equals("setOf")) || call.block != null || call.arguments.isEmpty()) {
+            return null;
+        }
+
+        Type element = null;
+        for(KotlinIR.Expression argument: call.arguments) {
+            Type type = literalType(argument);
+            if(type == null || (element != null && type != element)) {
+                return null;
+            }
+            element = type;
+        }
+        return element;
+    }
+
+    // 1, -1, 2.5, true, "text"
+    static Type literalType(KotlinIR.Expression expression) {
+        if(expression instanceof KotlinIR.Prefix && ((KotlinIR.Prefix)expression).operator.equals("-")) {
+            expression = ((KotlinIR.Prefix)expression).operand;
+            if(!(expression instanceof KotlinIR.Literal) || expression.getType() == Type.Boolean) {
+                return null;
+            }
+        }
+
+        if(expression instanceof KotlinIR.Literal) {
+            return expression.getType() == Type.None ? null : expression.getType();
+        } else if(expression instanceof KotlinIR.StringTemplate) {
+            for(KotlinIR.Expression part: ((KotlinIR.StringTemplate)expression).parts) {
+                if(!(part instanceof KotlinIR.StringText)) {
+                    return null;
+                }
+            }
+            return Type.String;
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,596 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.antlr.v4.runtime.dfa.DFAState;
+
+// Saves and restores the shared KotlinLexer/KotlinParser DFA so that a new JVM
+// does not have to relearn it with ATN simulation
+class KotlinDFASnapshot {
+    static final int MAGIC = 0x4b444641;
+    static final int VERSION = 2;
+
+    static final int NULL_STATE = -1;
+    static final int ERROR_STATE = -2;
+
+    static final int CONTEXT_NULL = 0;
+    static final int CONTEXT_REFERENCE = 1;
+    static final int CONTEXT_EMPTY = 2;
+    static final int CONTEXT_SINGLETON = 3;
+    static final int CONTEXT_ARRAY = 4;
+
+    static final int SEMANTIC_NONE = 0;
+    static final int SEMANTIC_PREDICATE = 1;
+    static final int SEMANTIC_PRECEDENCE = 2;
+    static final int SEMANTIC_AND = 3;
+    static final int SEMANTIC_OR = 4;
+
+    // The lexer DFA of a snapshot loaded without it, written back unchanged when the snapshot is saved
+    static byte[] lexerSection = null;
+
+    static class LoadedConfigSet extends ATNConfigSet {
+        LoadedConfigSet(boolean fullCtx) {
+            super(fullCtx);
+        }
+
+        void setConflictingAlts(BitSet alts) {
+            conflictingAlts = alts;
+        }
+    }
+
+    static int fingerprint() {
+        return KotlinLexer._serializedATN.hashCode() * 31 + KotlinParser._serializedATN.hashCode();
+    }
+
+    static int stateCount() {
+        int count = 0;
+
+        for(DFA dfa: KotlinLexer._decisionToDFA) {
+            count += dfa.states.size();
+        }
+        for(DFA dfa: KotlinParser._decisionToDFA) {
+            count += dfa.states.size();
+        }
+
+        return count;
+    }
+
+    // ==========================================================
+    // Save
+    // ==========================================================
+
+    DataOutputStream out;
+    Map<PredictionContext, Integer> contextIds = new IdentityHashMap<>();
+
+    // Written to a file of its own next to the snapshot and moved over it, so a process loading it or
+    // saving it at the same time never sees half a snapshot
+    static void save(File file) throws IOException {
+        KotlinDFASnapshot snapshot = new KotlinDFASnapshot();
+        Path target = file.toPath().toAbsolutePath();
+        Path temporary = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                snapshot.out = out;
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(fingerprint());
+                byte[] lexer = lexerSection != null ? lexerSection : snapshot.section(KotlinLexer._decisionToDFA, true);
+                out.writeInt(lexer.length);
+                out.write(lexer);
+                snapshot.writeDFAs(KotlinParser._decisionToDFA, false);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // The lexer DFA goes first with its length, so that a run not using it can skip it
+    byte[] section(DFA[] dfas, boolean lexer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream file = out;
+        out = new DataOutputStream(bytes);
+        try {
+            writeDFAs(dfas, lexer);
+            out.flush();
+        } finally {
+            out = file;
+        }
+        return bytes.toByteArray();
+    }
+
+    void writeDFAs(DFA[] dfas, boolean lexer) throws IOException {
+        contextIds.clear(); // Contexts are numbered per section
+        out.writeInt(dfas.length);
+
+        for(DFA dfa: dfas) {
+            synchronized(dfa.states) {
+                writeDFA(dfa, lexer);
+            }
+        }
+    }
+
+    void writeDFA(DFA dfa, boolean lexer) throws IOException {
+        List<DFAState> states = dfa.getStates();
+        Map<DFAState, Integer> stateIds = new IdentityHashMap<>();
+
+        for(DFAState state: states) {
+            stateIds.put(state, stateIds.size());
+        }
+
+        out.writeInt(states.size());
+        for(DFAState state: states) {
+            writeConfigs(state.configs, lexer);
+            out.writeBoolean(state.isAcceptState);
+            out.writeInt(state.prediction);
+            out.writeBoolean(state.requiresFullContext);
+
+            if(state.predicates == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(state.predicates.length);
+                for(DFAState.PredPrediction predicate: state.predicates) {
+                    writeSemanticContext(predicate.pred);
+                    out.writeInt(predicate.alt);
+                }
+            }
+
+            if(lexer) {
+                writeLexerActionExecutor(state.lexerActionExecutor);
+            }
+        }
+        for(DFAState state: states) {
+            writeEdges(state.edges, stateIds);
+        }
+
+        if(dfa.isPrecedenceDfa()) {
+            writeEdges(dfa.s0.edges, stateIds);
+        } else {
+            writeState(dfa.s0, stateIds);
+        }
+    }
+
+    void writeEdges(DFAState[] edges, Map<DFAState, Integer> stateIds) throws IOException {
+        if(edges == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(edges.length);
+        for(DFAState edge: edges) {
+            writeState(edge, stateIds);
+        }
+    }
+
+    void writeState(DFAState state, Map<DFAState, Integer> stateIds) throws IOException {
+        if(state == null) {
+            out.writeInt(NULL_STATE);
+        } else if(state == ATNSimulator.ERROR) {
+            out.writeInt(ERROR_STATE);
+        } else {
+            Integer id = stateIds.get(state);
+            out.writeInt(id == null ? NULL_STATE : id);
+        }
+    }
+
+    void writeConfigs(ATNConfigSet configs, boolean lexer) throws IOException {
+        out.writeBoolean(configs.fullCtx);
+        out.writeInt(configs.uniqueAlt);
+        out.writeBoolean(configs.hasSemanticContext);
+        out.writeBoolean(configs.dipsIntoOuterContext);
+
+        out.writeInt(configs.size());
+        for(ATNConfig config: configs) {
+            out.writeInt(config.state.stateNumber);
+            out.writeInt(config.alt);
+            out.writeInt(config.reachesIntoOuterContext);
+            writeContext(config.context);
+            writeSemanticContext(config.semanticContext);
+
+            if(lexer) {
+                LexerATNConfig lexerConfig = (LexerATNConfig)config;
+                if(lexerConfig.hasPassedThroughNonGreedyDecision()) {
+                    throw new IOException("Non-greedy lexer decisions are not supported");
+                }
+                writeLexerActionExecutor(lexerConfig.getLexerActionExecutor());
+            }
+        }
+    }
+
+    void writeContext(PredictionContext context) throws IOException {
+        if(context == null) {
+            out.writeByte(CONTEXT_NULL);
+            return;
+        } else if(context == PredictionContext.EMPTY) {
+            out.writeByte(CONTEXT_EMPTY);
+            return;
+        }
+
+        Integer id = contextIds.get(context);
+        if(id != null) {
+            out.writeByte(CONTEXT_REFERENCE);
+            out.writeInt(id);
+            return;
+        }
+
+        if(context instanceof SingletonPredictionContext) {
+            out.writeByte(CONTEXT_SINGLETON);
+            writeContext(context.getParent(0));
+            out.writeInt(context.getReturnState(0));
+        } else {
+            out.writeByte(CONTEXT_ARRAY);
+            out.writeInt(context.size());
+            for(int i = 0; i < context.size(); i++) {
+                writeContext(context.getParent(i));
+                out.writeInt(context.getReturnState(i));
+            }
+        }
+
+        contextIds.put(context, contextIds.size());
+    }
+
+    void writeSemanticContext(SemanticContext context) throws IOException {
+        if(context == SemanticContext.NONE) {
+            out.writeByte(SEMANTIC_NONE);
+        } else if(context instanceof SemanticContext.Predicate) {
+            SemanticContext.Predicate predicate = (SemanticContext.Predicate)context;
+            out.writeByte(SEMANTIC_PREDICATE);
+            out.writeInt(predicate.ruleIndex);
+            out.writeInt(predicate.predIndex);
+            out.writeBoolean(predicate.isCtxDependent);
+        } else if(context instanceof SemanticContext.PrecedencePredicate) {
+            out.writeByte(SEMANTIC_PRECEDENCE);
+            out.writeInt(((SemanticContext.PrecedencePredicate)context).precedence);
+        } else {
+            SemanticContext[] operands;
+            if(context instanceof SemanticContext.AND) {
+                out.writeByte(SEMANTIC_AND);
+                operands = ((SemanticContext.AND)context).opnds;
+            } else {
+                out.writeByte(SEMANTIC_OR);
+                operands = ((SemanticContext.OR)context).opnds;
+            }
+
+            out.writeInt(operands.length);
+            for(SemanticContext operand: operands) {
+                writeSemanticContext(operand);
+            }
+        }
+    }
+
+    void writeLexerActionExecutor(LexerActionExecutor executor) throws IOException {
+        if(executor == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        out.writeInt(executor.getLexerActions().length);
+        for(LexerAction action: executor.getLexerActions()) {
+            out.writeInt(action.getActionType().ordinal());
+
+            switch(action.getActionType()) {
+                case SKIP: case MORE: case POP_MODE:
+                    break;
+                case TYPE:
+                    out.writeInt(((LexerTypeAction)action).getType());
+                    break;
+                case CHANNEL:
+                    out.writeInt(((LexerChannelAction)action).getChannel());
+                    break;
+                case MODE:
+                    out.writeInt(((LexerModeAction)action).getMode());
+                    break;
+                case PUSH_MODE:
+                    out.writeInt(((LexerPushModeAction)action).getMode());
+                    break;
+                default:
+                    throw new IOException("Unsupported lexer action " + action);
+            }
+        }
+    }
+
+    // ==========================================================
+    // Load
+    // ==========================================================
+
+    ByteBuffer in;
+    List<PredictionContext> contexts = new ArrayList<>();
+
+    // Returns false if the snapshot cannot be read, does not match this grammar or is damaged. The DFA
+    // is then left empty to be learnt again, as what was read of the snapshot cannot be trusted.
+    // The lexer DFA is only loaded when the ANTLR lexer is used; the hand-written one does not need it.
+    static boolean load(File file, boolean lexer) {
+        KotlinDFASnapshot snapshot = new KotlinDFASnapshot();
+
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            snapshot.in = in;
+            if(in.getInt() != MAGIC || in.getInt() != VERSION || in.getInt() != fingerprint()) {
+                return false;
+            }
+
+            int length = in.getInt();
+            int end = in.position() + length;
+            DFA[] lexerDFAs = null;
+            byte[] section = null;
+            if(lexer) {
+                lexerDFAs = snapshot.readDFAs(KotlinLexer._decisionToDFA, KotlinLexer._ATN, true);
+                if(in.position() != end) {
+                    throw new IOException("Lexer DFA length mismatch");
+                }
+            } else {
+                section = new byte[length];
+                in.get(section);
+            }
+            DFA[] parserDFAs = snapshot.readDFAs(KotlinParser._decisionToDFA, KotlinParser._ATN, false);
+
+            if(lexerDFAs != null) {
+                install(lexerDFAs, KotlinLexer._decisionToDFA);
+            }
+            install(parserDFAs, KotlinParser._decisionToDFA);
+            lexerSection = section;
+        } catch(IOException | RuntimeException e) {
+            reset(KotlinLexer._decisionToDFA);
+            reset(KotlinParser._decisionToDFA);
+            lexerSection = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    static void reset(DFA[] dfas) {
+        for(DFA dfa: dfas) {
+            synchronized(dfa.states) {
+                dfa.states.clear();
+
+                if(dfa.isPrecedenceDfa()) {
+                    dfa.s0.edges = new DFAState[0];
+                } else {
+                    dfa.s0 = null;
+                }
+            }
+        }
+    }
+
+    static void install(DFA[] loaded, DFA[] target) {
+        for(int i = 0; i < target.length; i++) {
+            synchronized(target[i].states) {
+                target[i].states.clear();
+                target[i].states.putAll(loaded[i].states);
+
+                if(target[i].isPrecedenceDfa()) {
+                    target[i].s0.edges = loaded[i].s0.edges;
+                } else {
+                    target[i].s0 = loaded[i].s0;
+                }
+            }
+        }
+    }
+
+    DFA[] readDFAs(DFA[] target, ATN atn, boolean lexer) throws IOException {
+        contexts.clear();
+        if(in.getInt() != target.length) {
+            throw new IOException("DFA count mismatch");
+        }
+
+        DFA[] dfas = new DFA[target.length];
+        for(int i = 0; i < target.length; i++) {
+            dfas[i] = new DFA(target[i].atnStartState, target[i].decision);
+            readDFA(dfas[i], atn, lexer);
+        }
+
+        return dfas;
+    }
+
+    void readDFA(DFA dfa, ATN atn, boolean lexer) throws IOException {
+        int count = count();
+        List<DFAState> states = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++) {
+            DFAState state = new DFAState(readConfigs(atn, lexer));
+            state.stateNumber = i;
+            state.isAcceptState = in.get() != 0;
+            state.prediction = in.getInt();
+            state.requiresFullContext = in.get() != 0;
+
+            int predicates = count();
+            if(predicates >= 0) {
+                state.predicates = new DFAState.PredPrediction[predicates];
+                for(int j = 0; j < predicates; j++) {
+                    SemanticContext predicate = readSemanticContext();
+                    state.predicates[j] = new DFAState.PredPrediction(predicate, in.getInt());
+                }
+            }
+
+            if(lexer) {
+                state.lexerActionExecutor = readLexerActionExecutor();
+            }
+
+            if(state.requiresFullContext) {
+                ((LoadedConfigSet)state.configs).setConflictingAlts(PredictionMode.getAlts(PredictionMode.getConflictingAltSubsets(state.configs)));
+            }
+            state.configs.setReadonly(true);
+
+            states.add(state);
+        }
+        for(DFAState state: states) {
+            state.edges = readEdges(states);
+            dfa.states.put(state, state);
+        }
+
+        if(dfa.isPrecedenceDfa()) {
+            DFAState[] edges = readEdges(states);
+            dfa.s0.edges = edges == null ? new DFAState[0] : edges;
+        } else {
+            dfa.s0 = readState(states);
+        }
+    }
+
+    DFAState[] readEdges(List<DFAState> states) throws IOException {
+        int length = count();
+
+        if(length < 0) {
+            return null;
+        }
+
+        DFAState[] edges = new DFAState[length];
+        for(int i = 0; i < length; i++) {
+            edges[i] = readState(states);
+        }
+
+        return edges;
+    }
+
+    // A damaged count must not allocate more than the rest of the snapshot could hold
+    int count() throws IOException {
+        int count = in.getInt();
+        if(count > in.remaining()) {
+            throw new IOException("Damaged DFA snapshot");
+        }
+        return count;
+    }
+
+    DFAState readState(List<DFAState> states) throws IOException {
+        int id = in.getInt();
+
+        if(id == NULL_STATE) {
+            return null;
+        } else if(id == ERROR_STATE) {
+            return ATNSimulator.ERROR;
+        } else {
+            return states.get(id);
+        }
+    }
+
+    ATNConfigSet readConfigs(ATN atn, boolean lexer) throws IOException {
+        boolean fullCtx = in.get() != 0;
+        ATNConfigSet configs = lexer ? new OrderedATNConfigSet() : new LoadedConfigSet(fullCtx);
+        int uniqueAlt = in.getInt();
+        boolean hasSemanticContext = in.get() != 0;
+        boolean dipsIntoOuterContext = in.get() != 0;
+
+        int count = count();
+        for(int i = 0; i < count; i++) {
+            ATNState state = atn.states.get(in.getInt());
+            int alt = in.getInt();
+            int reachesIntoOuterContext = in.getInt();
+            PredictionContext context = readContext();
+            SemanticContext semanticContext = readSemanticContext();
+
+            ATNConfig config;
+            if(lexer) {
+                config = new LexerATNConfig(state, alt, context, readLexerActionExecutor());
+            } else {
+                config = new ATNConfig(state, alt, context, semanticContext);
+            }
+            config.reachesIntoOuterContext = reachesIntoOuterContext;
+
+            // The saved set is already merged, so skip the lookup table that add() maintains
+            configs.configs.add(config);
+        }
+
+        configs.uniqueAlt = uniqueAlt;
+        configs.hasSemanticContext = hasSemanticContext;
+        configs.dipsIntoOuterContext = dipsIntoOuterContext;
+
+        return configs;
+    }
+
+    PredictionContext readContext() throws IOException {
+        int tag = in.get();
+
+        switch(tag) {
+            case CONTEXT_NULL:
+                return null;
+            case CONTEXT_EMPTY:
+                return PredictionContext.EMPTY;
+            case CONTEXT_REFERENCE:
+                return contexts.get(in.getInt());
+            case CONTEXT_SINGLETON: {
+                PredictionContext parent = readContext();
+                PredictionContext context = SingletonPredictionContext.create(parent, in.getInt());
+                contexts.add(context);
+                return context;
+            }
+            case CONTEXT_ARRAY: {
+                int size = count();
+                PredictionContext[] parents = new PredictionContext[size];
+                int[] returnStates = new int[size];
+                for(int i = 0; i < size; i++) {
+                    parents[i] = readContext();
+                    returnStates[i] = in.getInt();
+                }
+                PredictionContext context = new ArrayPredictionContext(parents, returnStates);
+                contexts.add(context);
+                return context;
+            }
+            default:
+                throw new IOException("Broken prediction context");
+        }
+    }
+
+    SemanticContext readSemanticContext() throws IOException {
+        int tag = in.get();
+
+        switch(tag) {
+            case SEMANTIC_NONE:
+                return SemanticContext.NONE;
+            case SEMANTIC_PREDICATE: {
+                int ruleIndex = in.getInt();
+                int predIndex = in.getInt();
+                return new SemanticContext.Predicate(ruleIndex, predIndex, in.get() != 0);
+            }
+            case SEMANTIC_PRECEDENCE:
+                return new SemanticContext.PrecedencePredicate(in.getInt());
+            case SEMANTIC_AND: case SEMANTIC_OR: {
+                int count = count();
+                SemanticContext context = readSemanticContext();
+                for(int i = 1; i < count; i++) {
+                    SemanticContext operand = readSemanticContext();
+                    context = tag == SEMANTIC_AND ? new SemanticContext.AND(context, operand) : new SemanticContext.OR(context, operand);
+                }
+                return context;
+            }
+            default:
+                throw new IOException("Broken semantic context");
+        }
+    }
+
+    LexerActionExecutor readLexerActionExecutor() throws IOException {
+        int count = count();
+
+        if(count < 0) {
+            return null;
+        }
+
+        LexerAction[] actions = new LexerAction[count];
+        for(int i = 0; i < count; i++) {
+            switch(LexerActionType.values()[in.getInt()]) {
+                case SKIP: actions[i] = LexerSkipAction.INSTANCE; break;
+                case MORE: actions[i] = LexerMoreAction.INSTANCE; break;
+                case POP_MODE: actions[i] = LexerPopModeAction.INSTANCE; break;
+                case TYPE: actions[i] = new LexerTypeAction(in.getInt()); break;
+                case CHANNEL: actions[i] = new LexerChannelAction(in.getInt()); break;
+                case MODE: actions[i] = new LexerModeAction(in.getInt()); break;
+                case PUSH_MODE: actions[i] = new LexerPushModeAction(in.getInt()); break;
+                default: throw new IOException("Broken lexer action");
+            }
+        }
+
+        return new LexerActionExecutor(actions);
+    }
+}
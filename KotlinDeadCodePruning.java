@@ -0,0 +1,125 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Leaves out the top-level functions and properties that main and the kept roots cannot reach.
+// References are followed by name, so every overload of a reachable name is kept, and so is a top
+// level member shadowed by a local of the same name. Classes, interfaces and anything else that is
+// not a function or a property are always kept, with every identifier in their text counted as a
+// reference, as they are not translated into IR yet.
+class KotlinDeadCodePruning {
+    final Set<String> roots;
+    final List<KotlinIR> removed = new ArrayList<>();
+
+    KotlinDeadCodePruning(Collection<String> roots) {
+        this.roots = new HashSet<>(roots);
+    }
+
+    // Collects the names a member refers to
+    static class ReferenceScan extends KotlinIRTransformer {
+        Set<String> names = new HashSet<>();
+
+        @Override
+        public KotlinIR visitText(KotlinIR.Text text) {
+            for(String word: text.text.split("[^A-Za-z0-9_]+")) {
+                if(!word.isEmpty()) {
+                    names.add(word);
+                }
+            }
+            return text;
+        }
+
+        @Override
+        public KotlinIR visitVariable(KotlinIR.Variable expression) {
+            names.add(expression.name);
+            return super.visitVariable(expression);
+        }
+
+        @Override
+        public KotlinIR visitCall(KotlinIR.Call expression) {
+            names.add(expression.name);
+            return super.visitCall(expression);
+        }
+    }
+
+    KotlinIR prune(KotlinIR program) {
+        if(!(program instanceof KotlinIR.Program)) {
+            return program;
+        }
+
+        List<KotlinIR> elements = new ArrayList<>(((KotlinIR.Program)program).elements);
+        for(int i = 0; i < elements.size(); i++) {
+            if(elements.get(i) instanceof KotlinIR.MainClass) {
+                elements.set(i, prune((KotlinIR.MainClass)elements.get(i)));
+            }
+        }
+        return removed.isEmpty() ? program : new KotlinIR.Program(elements);
+    }
+
+    KotlinIR.MainClass prune(KotlinIR.MainClass mainClass) {
+        Map<String, List<KotlinIR>> declared = new HashMap<>();
+        Map<KotlinIR, Boolean> reachable = new IdentityHashMap<>();
+        Deque<KotlinIR> work = new ArrayDeque<>();
+
+        for(KotlinIR member: mainClass.members) {
+            String name = name(member);
+            if(name == null || roots.contains(name) || name.equals("main")) {
+                reachable.put(member, true);
+                work.add(member);
+            }
+            if(name != null) {
+                declared.computeIfAbsent(name, key -> new ArrayList<>()).add(member);
+            }
+        }
+
+        // Without main or a kept root the file is a library, and everything in it is an entry point
+        boolean entry = false;
+        for(KotlinIR member: work) {
+            entry |= name(member) != null;
+        }
+        if(!entry) {
+            return mainClass;
+        }
+
+        while(!work.isEmpty()) {
+            ReferenceScan scan = new ReferenceScan();
+            scan.transform(work.remove());
+
+            for(String name: scan.names) {
+                for(KotlinIR member: declared.getOrDefault(name, Collections.emptyList())) {
+                    if(reachable.put(member, true) == null) {
+                        work.add(member);
+                    }
+                }
+            }
+        }
+
+        List<KotlinIR> members = new ArrayList<>();
+        for(KotlinIR member: mainClass.members) {
+            if(reachable.containsKey(member)) {
+                members.add(member);
+            } else {
+                removed.add(member);
+            }
+        }
+        return removed.isEmpty() ? mainClass : new KotlinIR.MainClass(members);
+    }
+
+    // Name of a top-level function or property, null for members that are always kept
+    static String name(KotlinIR member) {
+        if(member instanceof KotlinIR.Function) {
+            return ((KotlinIR.Function)member).name;
+        } else if(member instanceof KotlinIR.Declaration) {
+            return ((KotlinIR.Declaration)member).name;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,55 @@
+// Lowers a ?: b to a conditional evaluating a once: a != null ? a : b when a is a local variable,
+// ($elvisN = a) != null ? $elvisN : b otherwise, with $elvisN declared without a value before the
+// statement (in the initializer block of a top-level property). The assignment stays where a was,
+// so a is still evaluated in order and only when it is reached, and b only when a is null. Java
+// unboxes the left side when b is primitive (Int? ?: Int is an int), where a generic helper would
+// box b on every call.
+class KotlinElvisLowering extends KotlinIRTransformer {
+    static final KotlinIR.Literal NULL = new KotlinIR.Literal("null", Type.None);
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    // (a ?: b) is already in parentheses once lowered
+    @Override
+    public KotlinIR visitParen(KotlinIR.Paren expression) {
+        KotlinIR.Expression inner = expression(expression.expression);
+        if(inner != expression.expression && inner instanceof KotlinIR.Paren) {
+            return inner;
+        }
+        return inner == expression.expression ? expression : new KotlinIR.Paren(inner);
+    }
+
+    @Override
+    public KotlinIR visitBinary(KotlinIR.Binary expression) {
+        KotlinIR.Binary binary = (KotlinIR.Binary)super.visitBinary(expression);
+        if(!binary.operator.equals("?:")) {
+            return binary;
+        }
+
+        KotlinIR.Expression left = binary.left;
+        KotlinIR.Expression right = binary.right;
+
+        // A literal or a primitive is known to be null or not; null is parsed as a variable
+        if(left instanceof KotlinIR.Variable && ((KotlinIR.Variable)left).name.equals("null") && KotlinWhenLowering.simple(left)) {
+            return right;
+        } else if(left instanceof KotlinIR.Literal || KotlinWhenLowering.primitive(left.getType())) {
+            return left;
+        }
+
+        KotlinIR.Expression value = left;
+        if(!KotlinWhenLowering.simple(left)) {
+            String name = name("elvis");
+            before(new KotlinIR.Declaration(false, KotlinWhenLowering.declared(left), name, null));
+            value = new KotlinIR.Variable(name, null, null, left.getType());
+            left = new KotlinIR.Paren(new KotlinIR.Assign(value, "=", left));
+        }
+
+        if(right instanceof KotlinIR.Assign) {
+            right = new KotlinIR.Paren(right);
+        }
+        KotlinIR.Expression condition = new KotlinIR.Binary(left, "!=", NULL, Type.Boolean);
+        return new KotlinIR.Paren(new KotlinIR.Conditional(condition, value, right, binary.getType()));
+    }
+}
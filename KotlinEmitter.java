@@ -0,0 +1,416 @@
+import java.util.List;
+
+// Writes the Java code of the IR into one shared StringBuilder
+class KotlinEmitter implements KotlinIRVisitor<Void> {
+    StringBuilder output;
+
+    KotlinEmitter(StringBuilder output) {
+        this.output = output;
+    }
+
+    void emit(KotlinIR ir) {
+        ir.accept(this);
+    }
+
+    void emit(List<? extends KotlinIR> list, String seperator) {
+        for(int i = 0; i < list.size(); i++) {
+            if(i > 0) {
+                output.append(seperator);
+            }
+            list.get(i).accept(this);
+        }
+    }
+
+    // statementBody : bodyElement | compoundStatement ;
+    void emitBody(KotlinIR body) {
+        if(!(body instanceof KotlinIR.Block)) {
+            output.append("\n");
+        }
+        body.accept(this);
+    }
+
+    // ==========================================================
+    // Declaration
+    // ==========================================================
+
+    @Override
+    public Void visitProgram(KotlinIR.Program program) {
+        emit(program.elements, "\n");
+        return null;
+    }
+
+    @Override
+    public Void visitPackage(KotlinIR.Package declaration) {
+        output.append("package " + declaration.name + ";\n");
+        return null;
+    }
+
+    @Override
+    public Void visitImports(KotlinIR.Imports imports) {
+        // What the generated code uses of java.util and java.util.stream is written unqualified
+        output.append("import java.util.*;\nimport java.util.stream.*;\n");
+        emit(imports.imports, "\n");
+        output.append(imports.imports.isEmpty() ? "" : "\n");
+        return null;
+    }
+
+    @Override
+    public Void visitImport(KotlinIR.Import declaration) {
+        output.append("import " + declaration.name + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitMainClass(KotlinIR.MainClass mainClass) {
+        output.append("class Main {\n");
+        emit(mainClass.members, "\n");
+        output.append("\n}");
+        return null;
+    }
+
+    @Override
+    public Void visitFunction(KotlinIR.Function function) {
+        if(function.isMain()) {
+            output.append("public static void main(String[] args)");
+        } else {
+            output.append("static " + function.returnType + " " + function.name + "(");
+            for(int i = 0; i < function.parameters.size(); i++) {
+                if(i > 0) {
+                    output.append(", ");
+                }
+                output.append(function.parameters.get(i).type + " " + function.parameters.get(i).name);
+            }
+            output.append(")");
+        }
+
+        if(function.body != null) {
+            emit(function.body);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitField(KotlinIR.Field field) {
+        output.append("static final " + field.type + " " + field.name + " = ");
+        emit(field.value);
+        output.append(";");
+        return null;
+    }
+
+    @Override
+    public Void visitGroup(KotlinIR.Group group) {
+        emit(group.children, group.separator);
+        return null;
+    }
+
+    @Override
+    public Void visitText(KotlinIR.Text text) {
+        output.append(text.text);
+        return null;
+    }
+
+    // ==========================================================
+    // Statement
+    // ==========================================================
+
+    @Override
+    public Void visitExpressionStatement(KotlinIR.ExpressionStatement statement) {
+        emit(statement.expression);
+        output.append(";");
+        return null;
+    }
+
+    @Override
+    public Void visitJump(KotlinIR.Jump statement) {
+        output.append(statement.keyword + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitThrow(KotlinIR.Throw statement) {
+        output.append("throw ");
+        emit(statement.exception);
+        output.append(";");
+        return null;
+    }
+
+    @Override
+    public Void visitReturn(KotlinIR.Return statement) {
+        if(statement.value != null) {
+            output.append("return ");
+            emit(statement.value);
+        } else {
+            output.append("return");
+        }
+        output.append(";");
+        return null;
+    }
+
+    @Override
+    public Void visitDeclaration(KotlinIR.Declaration declaration) {
+        if(declaration.constant) {
+            output.append("final ");
+        }
+
+        if(declaration.type != null) {
+            output.append(declaration.type + " " + declaration.name);
+
+            if(declaration.value != null) {
+                output.append(" = ");
+                emit(declaration.value);
+            }
+        }
+
+        output.append(";");
+        return null;
+    }
+
+    @Override
+    public Void visitForRange(KotlinIR.ForRange statement) {
+        output.append("for(" + statement.type + " ");
+        emit(statement.variable);
+        output.append(" = ");
+        emit(statement.start);
+        output.append("; ");
+
+        emit(statement.variable);
+        output.append(statement.downTo ? " >= " : " <= ");
+        emit(statement.end);
+        output.append("; ");
+
+        emit(statement.variable);
+        if(statement.step != null) {
+            output.append(statement.downTo ? " -= " : " += ");
+            emit(statement.step);
+        } else {
+            output.append(statement.downTo ? " --" : " ++");
+        }
+
+        output.append(")");
+        emitBody(statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitForEach(KotlinIR.ForEach statement) {
+        output.append("for(" + statement.type + " ");
+        emit(statement.variable);
+        output.append(": ");
+        emit(statement.iterable);
+        output.append(")");
+        emitBody(statement.body);
+        return null;
+    }
+
+    @Override
+    public Void visitWhile(KotlinIR.While statement) {
+        output.append("while(");
+        emit(statement.condition);
+        output.append(")");
+        emitBody(statement.body);
+        return null;
+    }
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    @Override
+    public Void visitBlock(KotlinIR.Block block) {
+        output.append("{\n");
+        emit(block.statements, "\n");
+        output.append("\n}");
+        return null;
+    }
+
+    @Override
+    public Void visitIf(KotlinIR.If expression) {
+        output.append("if(");
+        emit(expression.condition);
+        output.append(")");
+        emitBody(expression.then);
+
+        if(expression.otherwise != null) {
+            output.append(" else ");
+            emitBody(expression.otherwise);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitConditional(KotlinIR.Conditional expression) {
+        emit(expression.condition);
+        output.append(" ? ");
+        emit(expression.then);
+        output.append(" : ");
+        emit(expression.otherwise);
+        return null;
+    }
+
+    // Only a switch is left of when, with a block per case
+    @Override
+    public Void visitWhen(KotlinIR.When expression) {
+        output.append("switch(");
+        emit(expression.subject);
+        output.append(") {\n");
+
+        for(KotlinIR.WhenBranch branch: expression.branches) {
+            if(branch.kind == KotlinIR.WhenBranch.Kind.Else) {
+                output.append("default: ");
+            } else {
+                output.append("case ");
+                emit(branch.condition);
+                output.append(": ");
+            }
+            emit(branch.body);
+            output.append("\n");
+        }
+
+        output.append("}");
+        return null;
+    }
+
+    @Override
+    public Void visitLiteral(KotlinIR.Literal expression) {
+        output.append(expression.text);
+        return null;
+    }
+
+    @Override
+    public Void visitStringTemplate(KotlinIR.StringTemplate expression) {
+        emit(expression.parts, " + ");
+        return null;
+    }
+
+    @Override
+    public Void visitStringText(KotlinIR.StringText expression) {
+        output.append("\"" + expression.text + "\"");
+        return null;
+    }
+
+    @Override
+    public Void visitVariable(KotlinIR.Variable expression) {
+        output.append(expression.name);
+
+        if(expression.index != null) {
+            output.append("[");
+            emit(expression.index);
+            output.append("]");
+        }
+        if(expression.member != null) {
+            output.append(".");
+            emit(expression.member);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCall(KotlinIR.Call expression) {
+        if(expression.name.equals("println")) {
+            output.append("System.out.println");
+        } else if(expression.name.equals("print")) {
+            output.append("System.out.print");
+        } else if(expression.name.equals("listOf")) {
+            //output.append("List.of"); //TODO
+            output.append("Arrays.asList");
+        } else if(expression.name.equals("setOf")) {
+            // setOf keeps the insertion order, and the set is sized for its elements
+            output.append("new LinkedHashSet<>(Arrays.asList");
+        } else {
+            output.append(expression.name);
+        }
+
+        if(expression.block != null) {
+            emit(expression.block);
+        } else {
+            output.append("(");
+            emit(expression.arguments, ", ");
+            output.append(")");
+        }
+        if(expression.name.equals("setOf")) {
+            output.append(")");
+        }
+
+        if(expression.member != null) {
+            output.append(".");
+            emit(expression.member);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(KotlinIR.Binary expression) {
+        emit(expression.left);
+        output.append(" " + expression.operator + " ");
+        emit(expression.right);
+        return null;
+    }
+
+    @Override
+    public Void visitRange(KotlinIR.Range expression) {
+        emit(expression.start);
+        output.append("..");
+        emit(expression.end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrefix(KotlinIR.Prefix expression) {
+        output.append(expression.operator);
+        emit(expression.operand);
+        return null;
+    }
+
+    @Override
+    public Void visitPostfix(KotlinIR.Postfix expression) {
+        emit(expression.operand);
+        output.append(expression.operator);
+        return null;
+    }
+
+    @Override
+    public Void visitIs(KotlinIR.Is expression) {
+        output.append(expression.negated ? "!(" : "");
+        emit(expression.operand);
+        // instanceof takes a class: Integer for int, List for List<String>
+        output.append(" instanceof " + (expression.target.isCollection() ? expression.target.kind : expression.target.boxed()));
+        output.append(expression.negated ? ")" : "");
+        return null;
+    }
+
+    @Override
+    public Void visitParen(KotlinIR.Paren expression) {
+        output.append("(");
+        emit(expression.expression);
+        output.append(")");
+        return null;
+    }
+
+    @Override
+    public Void visitCast(KotlinIR.Cast expression) {
+        output.append("(" + expression.getType() + ")");
+        emit(expression.operand);
+        return null;
+    }
+
+    @Override
+    public Void visitAssign(KotlinIR.Assign expression) {
+        emit(expression.target);
+        output.append(" " + expression.operator + " ");
+        emit(expression.value);
+        return null;
+    }
+
+    @Override
+    public Void visitLambda(KotlinIR.Lambda expression) {
+        if(expression.parameterType != null) {
+            output.append("(" + expression.parameterType.boxed() + " " + expression.parameter + ") -> ");
+        } else if(expression.parameter.isEmpty()) {
+            output.append("() -> ");
+        } else {
+            output.append(expression.parameter + " -> ");
+        }
+        emit(expression.body);
+        return null;
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.antlr.v4.runtime.*;
+
+// Checks KotlinConstantFolding against the JVM: random constant expressions on Int, Long and Double
+// literals are translated and folded, and each value is compared bit for bit with the one Java
+// computes with the same types, which are Kotlin's. An expression Kotlin would not give a literal
+// for (division by zero, NaN, infinities) has to be left unfolded. The seed is fixed, so a
+// mismatch is reported the same way on every run.
+class KotlinFoldingCheck {
+    static final String[] operators = {"+", "-", "*", "/"};
+    static final int files = 20;
+    static final int expressions = 500; // Per file
+    static final int depth = 4;
+
+    final Random random = new Random(1);
+    Number value; // Of the last expression built: Integer, Long or Double, null if not foldable
+
+    static void run() {
+        KotlinFoldingCheck check = new KotlinFoldingCheck();
+        int folded = 0;
+        int unfolded = 0;
+
+        for(int file = 0; file < files; file++) {
+            List<String> texts = new ArrayList<>();
+            List<Number> values = new ArrayList<>();
+            StringBuilder source = new StringBuilder("fun main() {\n");
+
+            for(int i = 0; i < expressions; i++) {
+                texts.add(check.expression(depth));
+                values.add(check.value);
+                source.append("    val a" + i + " = " + texts.get(i) + "\n");
+            }
+            source.append("}\n");
+
+            List<KotlinIR.Expression> results = fold(source.toString());
+            for(int i = 0; i < expressions; i++) {
+                KotlinIR.Expression result = i < results.size() ? results.get(i) : null;
+                if(!matches(values.get(i), result)) {
+                    StringBuilder actual = new StringBuilder();
+                    if(result != null) {
+                        new KotlinEmitter(actual).emit(result);
+                    }
+                    System.out.println("Constant folding: " + texts.get(i) + " is " + describe(values.get(i)) + ", folded to "
+                        + (result instanceof KotlinIR.Literal ? actual + " (" + result.getType() + ")" : actual.length() > 0 ? actual : "nothing"));
+                    return;
+                }
+                if(values.get(i) != null) {
+                    folded++;
+                } else {
+                    unfolded++;
+                }
+            }
+        }
+
+        System.out.println("Constant folding: " + (folded + unfolded) + " expressions identical, " + folded + " folded, " + unfolded + " left to run time");
+    }
+
+    // The values of the vals of main, folded
+    static List<KotlinIR.Expression> fold(String source) {
+        TokenStream tokens = new CommonTokenStream(Kotlin2Java.lexer(CharStreams.fromString(source, "folding")));
+        KotlinParser parser = new KotlinParser(tokens);
+        KotlinIR program = (KotlinIR)new KotlinWalker().visit(Kotlin2Java.parse(parser, tokens));
+        program = new KotlinConstantFolding().transform(program);
+
+        List<KotlinIR.Expression> values = new ArrayList<>();
+        new KotlinIRTransformer() {
+            @Override
+            public KotlinIR visitDeclaration(KotlinIR.Declaration declaration) {
+                values.add(declaration.value);
+                return declaration;
+            }
+        }.transform(program);
+        return values;
+    }
+
+    static boolean matches(Number expected, KotlinIR.Expression result) {
+        if(!(result instanceof KotlinIR.Literal)) {
+            return expected == null && result != null;
+        }
+
+        Number actual = KotlinConstantFolding.number(result);
+        if(expected == null || actual == null || type(expected) != result.getType()) {
+            return false;
+        } else if(expected instanceof Double) {
+            return Double.doubleToRawLongBits(expected.doubleValue()) == Double.doubleToRawLongBits(actual.doubleValue());
+        }
+        return expected.longValue() == actual.longValue();
+    }
+
+    static Type type(Number value) {
+        return value instanceof Integer ? Type.Int : value instanceof Long ? Type.Long : Type.Double;
+    }
+
+    static String describe(Number value) {
+        return value == null ? "not foldable" : value + " (" + type(value) + ")";
+    }
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    // Kotlin code of a random expression, with its value left in value
+    String expression(int depth) {
+        if(depth == 0 || random.nextInt(4) == 0) {
+            return literal();
+        }
+
+        if(random.nextInt(6) == 0) {
+            String operand = expression(depth - 1);
+            value = negate(value);
+            return "-(" + operand + ")";
+        }
+
+        String left = expression(depth - 1);
+        Number a = value;
+        String right = expression(depth - 1);
+        Number b = value;
+        String operator = operators[random.nextInt(operators.length)];
+        value = evaluate(operator, a, b);
+        return "(" + left + " " + operator + " " + right + ")";
+    }
+
+    String literal() {
+        switch(random.nextInt(9)) {
+            case 0: // The one negative Int literal that has no positive counterpart
+                value = Integer.MIN_VALUE;
+                return "-2147483648";
+            case 1: {
+                int[] edges = {0, 1, 2, Integer.MAX_VALUE};
+                value = edges[random.nextInt(edges.length)];
+                return value.toString();
+            }
+            case 2:
+                value = random.nextInt(100);
+                return value.toString();
+            case 3:
+                value = random.nextInt() & Integer.MAX_VALUE;
+                return value.toString();
+            case 4:
+                value = random.nextLong() & Long.MAX_VALUE;
+                return value + "L";
+            case 5: // Too big for an Int, so a Long without the L
+                value = Integer.MAX_VALUE + 1L + (random.nextLong() & Long.MAX_VALUE) % (Long.MAX_VALUE - Integer.MAX_VALUE);
+                return value.toString();
+            case 6:
+                value = (double)random.nextInt(1000) / 8;
+                return value.toString();
+            case 7:
+                value = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+                return value.toString();
+            default:
+                value = Double.longBitsToDouble(random.nextLong() & Long.MAX_VALUE);
+                if(Double.isNaN(value.doubleValue()) || Double.isInfinite(value.doubleValue())) {
+                    value = Double.MAX_VALUE;
+                }
+                return value.toString();
+        }
+    }
+
+    static Number negate(Number value) {
+        if(value instanceof Integer) {
+            return -value.intValue();
+        } else if(value instanceof Long) {
+            return -value.longValue();
+        } else if(value instanceof Double) {
+            return -value.doubleValue();
+        }
+        return null;
+    }
+
+    // a operator b as the JVM computes it, null when it throws or has no literal
+    static Number evaluate(String operator, Number a, Number b) {
+        if(a == null || b == null) {
+            return null;
+        }
+
+        if(a instanceof Double || b instanceof Double) {
+            double x = a.doubleValue();
+            double y = b.doubleValue();
+            double result;
+            switch(operator) {
+                case "+": result = x + y; break;
+                case "-": result = x - y; break;
+                case "*": result = x * y; break;
+                default: result = x / y; break;
+            }
+            return Double.isNaN(result) || Double.isInfinite(result) ? null : result;
+        } else if(a instanceof Long || b instanceof Long) {
+            long x = a.longValue();
+            long y = b.longValue();
+            switch(operator) {
+                case "+": return x + y;
+                case "-": return x - y;
+                case "*": return x * y;
+                default: return y == 0 ? null : x / y;
+            }
+        } else {
+            int x = a.intValue();
+            int y = b.intValue();
+            switch(operator) {
+                case "+": return x + y;
+                case "-": return x - y;
+                case "*": return x * y;
+                default: return y == 0 ? (Number)null : (Number)(x / y);
+            }
+        }
+    }
+}
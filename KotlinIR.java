@@ -0,0 +1,675 @@
+import java.util.Collections;
+import java.util.List;
+
+// Immutable intermediate representation built by KotlinWalker from the parse tree and turned
+// into Java by KotlinEmitter. Expressions carry their type, and so do declarations, parameters
+// and loop variables, as the interned Type; its Java name is only written out by the emitter.
+abstract class KotlinIR {
+    abstract <T> T accept(KotlinIRVisitor<T> visitor);
+
+    static <T> List<T> list(List<T> list) {
+        return Collections.unmodifiableList(list);
+    }
+
+    static Type nullSafe(Type type) {
+        return type != null ? type : Type.None;
+    }
+
+    // Type of a value that is one of two, where null is a branch that does not complete
+    static Type common(Type a, Type b) {
+        if(a == null || b == null) {
+            return nullSafe(a != null ? a : b);
+        } else if(a == Type.None || b == Type.None) {
+            return Type.None;
+        }
+        return a == b ? a : Type.Object;
+    }
+
+    // ==========================================================
+    // Declaration
+    // ==========================================================
+
+    static class Program extends KotlinIR {
+        final List<KotlinIR> elements;
+
+        Program(List<KotlinIR> elements) {
+            this.elements = list(elements);
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitProgram(this);
+        }
+    }
+
+    static class Package extends KotlinIR {
+        final String name;
+
+        Package(String name) {
+            this.name = name;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitPackage(this);
+        }
+    }
+
+    static class Imports extends KotlinIR {
+        final List<KotlinIR> imports;
+
+        Imports(List<KotlinIR> imports) {
+            this.imports = list(imports);
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitImports(this);
+        }
+    }
+
+    static class Import extends KotlinIR {
+        final String name;
+
+        Import(String name) {
+            this.name = name;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitImport(this);
+        }
+    }
+
+    // The top level body, wrapped into one Java class
+    static class MainClass extends KotlinIR {
+        final List<KotlinIR> members;
+
+        MainClass(List<KotlinIR> members) {
+            this.members = list(members);
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitMainClass(this);
+        }
+    }
+
+    static class Parameter {
+        final Type type;
+        final String name;
+
+        Parameter(Type type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+    }
+
+    static class Function extends KotlinIR {
+        final String name;
+        final Type returnType;
+        final List<Parameter> parameters;
+        final KotlinIR body; // Block, Expression or null
+
+        Function(String name, Type returnType, List<Parameter> parameters, KotlinIR body) {
+            this.name = name;
+            this.returnType = returnType;
+            this.parameters = list(parameters);
+            this.body = body;
+        }
+
+        boolean isMain() {
+            return name.equals("main");
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitFunction(this);
+        }
+    }
+
+    // static final member of the main class, for constants hoisted out of functions
+    static class Field extends KotlinIR {
+        final Type type;
+        final String name;
+        final Expression value;
+
+        Field(Type type, String name, Expression value) {
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitField(this);
+        }
+    }
+
+    // Children written one after another, for constructs that are not translated yet
+    static class Group extends KotlinIR {
+        final List<KotlinIR> children;
+        final String separator;
+
+        Group(List<KotlinIR> children, String separator) {
+            this.children = list(children);
+            this.separator = separator;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitGroup(this);
+        }
+    }
+
+    static class Text extends KotlinIR {
+        final String text;
+
+        Text(String text) {
+            this.text = text;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitText(this);
+        }
+    }
+
+    // ==========================================================
+    // Statement
+    // ==========================================================
+
+    static class ExpressionStatement extends KotlinIR {
+        final Expression expression;
+
+        ExpressionStatement(Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitExpressionStatement(this);
+        }
+    }
+
+    // break or continue
+    static class Jump extends KotlinIR {
+        final String keyword;
+
+        Jump(String keyword) {
+            this.keyword = keyword;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitJump(this);
+        }
+    }
+
+    static class Throw extends KotlinIR {
+        final Expression exception;
+
+        Throw(Expression exception) {
+            this.exception = exception;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitThrow(this);
+        }
+    }
+
+    static class Return extends KotlinIR {
+        final Expression value; // null for a bare return
+
+        Return(Expression value) {
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitReturn(this);
+        }
+    }
+
+    static class Declaration extends KotlinIR {
+        final boolean constant;
+        final Type type; // null only if there is neither a type nor a value
+        final String name;
+        final Expression value;
+
+        Declaration(boolean constant, Type type, String name, Expression value) {
+            this.constant = constant;
+            this.type = type;
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitDeclaration(this);
+        }
+    }
+
+    static class ForRange extends KotlinIR {
+        final Type type;
+        final Expression variable;
+        final Expression start;
+        final Expression end;
+        final Expression step; // null for a step of 1
+        final boolean downTo;
+        final KotlinIR body;
+
+        ForRange(Type type, Expression variable, Expression start, Expression end, Expression step, boolean downTo, KotlinIR body) {
+            this.type = type;
+            this.variable = variable;
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.downTo = downTo;
+            this.body = body;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitForRange(this);
+        }
+    }
+
+    static class ForEach extends KotlinIR {
+        final Type type;
+        final Expression variable;
+        final Expression iterable;
+        final KotlinIR body;
+
+        ForEach(Type type, Expression variable, Expression iterable, KotlinIR body) {
+            this.type = type;
+            this.variable = variable;
+            this.iterable = iterable;
+            this.body = body;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitForEach(this);
+        }
+    }
+
+    static class While extends KotlinIR {
+        final Expression condition;
+        final KotlinIR body;
+
+        While(Expression condition, KotlinIR body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitWhile(this);
+        }
+    }
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    abstract static class Expression extends KotlinIR {
+        final Type type;
+
+        Expression(Type type) {
+            this.type = type;
+        }
+
+        Type getType() {
+            return type;
+        }
+    }
+
+    // Type of a body used as a value: of its expression, or of the last one of a block. null for a body
+    // that does not complete, like return or throw, and None for one that has no value
+    static Type valueType(KotlinIR body) {
+        if(body instanceof Block) {
+            List<KotlinIR> statements = ((Block)body).statements;
+            return statements.isEmpty() ? Type.None : valueType(statements.get(statements.size() - 1));
+        } else if(body instanceof ExpressionStatement) {
+            return valueType(((ExpressionStatement)body).expression);
+        } else if(body instanceof Expression) {
+            return ((Expression)body).getType();
+        } else if(body instanceof Return || body instanceof Throw || body instanceof Jump) {
+            return null;
+        }
+        return Type.None;
+    }
+
+    // The type of the last expression
+    static class Block extends Expression {
+        final List<KotlinIR> statements;
+
+        Block(List<KotlinIR> statements) {
+            super(statements.isEmpty() ? Type.None : nullSafe(valueType(statements.get(statements.size() - 1))));
+            this.statements = list(statements);
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitBlock(this);
+        }
+    }
+
+    // Statement bodies are a Block or a single statement. As a value, an if has the type of both
+    // branches, Object when they differ; it has none without else
+    static class If extends Expression {
+        final Expression condition;
+        final KotlinIR then;
+        final KotlinIR otherwise; // null without else
+
+        If(Expression condition, KotlinIR then, KotlinIR otherwise) {
+            super(otherwise == null ? Type.None : common(valueType(then), valueType(otherwise)));
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitIf(this);
+        }
+    }
+
+    // condition ? then : otherwise, a when whose branches are single expressions
+    static class Conditional extends Expression {
+        final Expression condition;
+        final Expression then;
+        final Expression otherwise;
+
+        Conditional(Expression condition, Expression then, Expression otherwise, Type type) {
+            super(type);
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitConditional(this);
+        }
+    }
+
+    static class WhenBranch {
+        enum Kind {
+            Value, Else, Is, In
+        }
+
+        final Kind kind;
+        final boolean negated;
+        final Expression condition; // Value and In
+        final Type type; // Is
+        final KotlinIR body;
+
+        WhenBranch(Kind kind, boolean negated, Expression condition, Type type, KotlinIR body) {
+            this.kind = kind;
+            this.negated = negated;
+            this.condition = condition;
+            this.type = type;
+            this.body = body;
+        }
+    }
+
+    static class When extends Expression {
+        final Expression subject; // null for a when without subject
+        final List<WhenBranch> branches;
+
+        When(Expression subject, List<WhenBranch> branches, Type type) {
+            super(type);
+            this.subject = subject;
+            this.branches = list(branches);
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitWhen(this);
+        }
+    }
+
+    static class Literal extends Expression {
+        final String text;
+
+        Literal(String text, Type type) {
+            super(type);
+            this.text = text;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitLiteral(this);
+        }
+    }
+
+    static class StringTemplate extends Expression {
+        final List<Expression> parts;
+
+        StringTemplate(List<Expression> parts) {
+            super(Type.String);
+            this.parts = list(parts);
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitStringTemplate(this);
+        }
+    }
+
+    // Literal text inside a string template
+    static class StringText extends Expression {
+        final String text;
+
+        StringText(String text) {
+            super(Type.String);
+            this.text = text;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitStringText(this);
+        }
+    }
+
+    // name[index].member
+    static class Variable extends Expression {
+        final String name;
+        final Expression index;
+        final Expression member;
+
+        Variable(String name, Expression index, Expression member, Type type) {
+            super(type);
+            this.name = name;
+            this.index = index;
+            this.member = member;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitVariable(this);
+        }
+    }
+
+    // name(arguments).member or name { block }.member; the name is the Kotlin one
+    static class Call extends Expression {
+        final String name;
+        final List<Expression> arguments;
+        final Block block; // trailing block instead of the argument list
+        final Expression member;
+        final Type itType; // Type of it for a call on a list, null if unknown
+
+        Call(String name, List<Expression> arguments, Block block, Expression member, Type type) {
+            this(name, arguments, block, member, type, null);
+        }
+
+        Call(String name, List<Expression> arguments, Block block, Expression member, Type type, Type itType) {
+            super(type);
+            this.name = name;
+            this.arguments = list(arguments);
+            this.block = block;
+            this.member = member;
+            this.itType = itType;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitCall(this);
+        }
+    }
+
+    static class Binary extends Expression {
+        final Expression left;
+        final String operator;
+        final Expression right;
+
+        Binary(Expression left, String operator, Expression right, Type type) {
+            super(type);
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitBinary(this);
+        }
+    }
+
+    // start..end is not a Java value: it is lowered with the for or in it is part of, so it has no
+    // Java type to carry
+    static class Range extends Expression {
+        final Expression start;
+        final Expression end;
+
+        Range(Expression start, Expression end) {
+            super(Type.None);
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitRange(this);
+        }
+    }
+
+    static class Prefix extends Expression {
+        final String operator;
+        final Expression operand;
+
+        Prefix(String operator, Expression operand) {
+            super(operand.getType());
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitPrefix(this);
+        }
+    }
+
+    static class Postfix extends Expression {
+        final Expression operand;
+        final String operator;
+
+        Postfix(Expression operand, String operator) {
+            super(operand.getType());
+            this.operand = operand;
+            this.operator = operator;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitPostfix(this);
+        }
+    }
+
+    static class Is extends Expression {
+        final Expression operand;
+        final boolean negated;
+        final Type target;
+
+        Is(Expression operand, boolean negated, Type target) {
+            super(Type.Boolean);
+            this.operand = operand;
+            this.negated = negated;
+            this.target = target;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitIs(this);
+        }
+    }
+
+    static class Paren extends Expression {
+        final Expression expression;
+
+        Paren(Expression expression) {
+            super(expression.getType());
+            this.expression = expression;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitParen(this);
+        }
+    }
+
+    // (type)operand, where the operand binds tighter than the cast
+    static class Cast extends Expression {
+        final Expression operand;
+
+        Cast(Type type, Expression operand) {
+            super(type);
+            this.operand = operand;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitCast(this);
+        }
+    }
+
+    static class Assign extends Expression {
+        final Expression target;
+        final String operator;
+        final Expression value;
+
+        Assign(Expression target, String operator, Expression value) {
+            super(value.getType());
+            this.target = target;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitAssign(this);
+        }
+    }
+
+    // (type parameter) -> body, a Java lambda with one parameter, or none if the parameter is ""
+    static class Lambda extends Expression {
+        final Type parameterType; // null to leave it to Java
+        final String parameter;
+        final Expression body;
+
+        Lambda(Type parameterType, String parameter, Expression body) {
+            super(Type.Object);
+            this.parameterType = parameterType;
+            this.parameter = parameter;
+            this.body = body;
+        }
+
+        @Override
+        <T> T accept(KotlinIRVisitor<T> visitor) {
+            return visitor.visitLambda(this);
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Base of the lowering passes: rebuilds the IR bottom-up, and a node is only copied when one
+// of its children was replaced, so a pass that changes nothing allocates nothing.
+// Statement positions go through rewrite(), which a pass can override separately, and a pass can
+// put statements before the current one with before(), such as a temporary named by name().
+class KotlinIRTransformer implements KotlinIRVisitor<KotlinIR> {
+    List<KotlinIR> pending = null; // Statements to put before the current statement
+    int names = 0;
+    int functions = 0;
+
+    KotlinIR transform(KotlinIR ir) {
+        return ir == null ? null : ir.accept(this);
+    }
+
+    KotlinIR.Expression expression(KotlinIR.Expression expression) {
+        return (KotlinIR.Expression)transform(expression);
+    }
+
+    // The statement as lowered, null when the statements put before it replace it
+    KotlinIR rewrite(KotlinIR statement) {
+        return transform(statement);
+    }
+
+    void before(KotlinIR statement) {
+        if(pending == null) {
+            pending = new ArrayList<>();
+        }
+        pending.add(statement);
+    }
+
+    // Names are numbered per top-level function, the same whether the program is streamed or not
+    String name(String prefix) {
+        return "$" + prefix + (names++);
+    }
+
+    // The statement, preceded by the statements put before it; null when it is unchanged
+    List<KotlinIR> expand(KotlinIR statement) {
+        List<KotlinIR> outer = pending;
+        pending = null;
+
+        KotlinIR result = rewrite(statement);
+        List<KotlinIR> statements = pending;
+        pending = outer;
+
+        if(statements == null) {
+            return result == statement ? null : result == null ? Collections.emptyList() : Collections.singletonList(result);
+        }
+        if(result != null) {
+            statements.add(result);
+        }
+        return statements;
+    }
+
+    KotlinIR statement(KotlinIR statement) {
+        if(statement == null) {
+            return null;
+        }
+        List<KotlinIR> statements = expand(statement);
+        if(statements == null) {
+            return statement;
+        }
+        return statements.size() == 1 ? statements.get(0) : new KotlinIR.Block(statements);
+    }
+
+    List<KotlinIR> statements(List<KotlinIR> list) {
+        List<KotlinIR> result = null;
+
+        for(int i = 0; i < list.size(); i++) {
+            List<KotlinIR> statements = expand(list.get(i));
+
+            if(result == null && statements != null) {
+                result = new ArrayList<>(list.subList(0, i));
+            }
+            if(result != null) {
+                if(statements != null) {
+                    result.addAll(statements);
+                } else {
+                    result.add(list.get(i));
+                }
+            }
+        }
+
+        return result == null ? list : result;
+    }
+
+    // A top-level property is a field, so the statements it needs go in an initializer block after it
+    KotlinIR member(KotlinIR member) {
+        if(!(member instanceof KotlinIR.Declaration)) {
+            return transform(member);
+        }
+
+        names = 0;
+        List<KotlinIR> statements = expand(member);
+        if(statements == null) {
+            return member;
+        } else if(statements.size() == 1 && statements.get(0) instanceof KotlinIR.Declaration) {
+            return statements.get(0);
+        }
+
+        KotlinIR.Declaration field = (KotlinIR.Declaration)member;
+        List<KotlinIR> initializer = new ArrayList<>();
+        for(KotlinIR statement: statements) {
+            if(!(statement instanceof KotlinIR.Declaration) || !((KotlinIR.Declaration)statement).name.equals(field.name)) {
+                initializer.add(statement);
+                continue;
+            }
+
+            KotlinIR.Expression value = ((KotlinIR.Declaration)statement).value;
+            if(value != null) {
+                KotlinIR.Variable variable = new KotlinIR.Variable(field.name, null, null, value.getType());
+                initializer.add(new KotlinIR.ExpressionStatement(new KotlinIR.Assign(variable, "=", value)));
+            }
+        }
+        return new KotlinIR.Group(Arrays.asList(new KotlinIR.Declaration(field.constant, field.type, field.name, null), new KotlinIR.Block(initializer)), "\n");
+    }
+
+    List<KotlinIR> members(List<KotlinIR> list) {
+        List<KotlinIR> result = null;
+
+        for(int i = 0; i < list.size(); i++) {
+            KotlinIR element = member(list.get(i));
+
+            if(result == null && element != list.get(i)) {
+                result = new ArrayList<>(list.subList(0, i));
+            }
+            if(result != null) {
+                result.add(element);
+            }
+        }
+
+        return result == null ? list : result;
+    }
+
+    <T extends KotlinIR> List<T> transform(List<T> list) {
+        List<T> result = null;
+
+        for(int i = 0; i < list.size(); i++) {
+            @SuppressWarnings("unchecked")
+            T element = (T)transform(list.get(i));
+
+            if(result == null && element != list.get(i)) {
+                result = new ArrayList<>(list.subList(0, i));
+            }
+            if(result != null) {
+                result.add(element);
+            }
+        }
+
+        return result == null ? list : result;
+    }
+
+    // ==========================================================
+    // Declaration
+    // ==========================================================
+
+    @Override
+    public KotlinIR visitProgram(KotlinIR.Program program) {
+        List<KotlinIR> elements = transform(program.elements);
+        return elements == program.elements ? program : new KotlinIR.Program(elements);
+    }
+
+    @Override
+    public KotlinIR visitPackage(KotlinIR.Package declaration) {
+        return declaration;
+    }
+
+    @Override
+    public KotlinIR visitImports(KotlinIR.Imports imports) {
+        return imports;
+    }
+
+    @Override
+    public KotlinIR visitImport(KotlinIR.Import declaration) {
+        return declaration;
+    }
+
+    @Override
+    public KotlinIR visitMainClass(KotlinIR.MainClass mainClass) {
+        List<KotlinIR> members = members(mainClass.members);
+        return members == mainClass.members ? mainClass : new KotlinIR.MainClass(members);
+    }
+
+    @Override
+    public KotlinIR visitFunction(KotlinIR.Function function) {
+        if(functions++ == 0) {
+            names = 0;
+        }
+        try {
+            if(function.body == null || function.body instanceof KotlinIR.Block) {
+                KotlinIR body = transform(function.body);
+                return body == function.body ? function : new KotlinIR.Function(function.name, function.returnType, function.parameters, body);
+            }
+
+            // fun f() = expression keeps its expression body unless it needs statements before it
+            KotlinIR.Expression expression = (KotlinIR.Expression)function.body;
+            KotlinIR statement = function.returnType == Type.Void ? new KotlinIR.ExpressionStatement(expression) : new KotlinIR.Return(expression);
+            List<KotlinIR> statements = expand(statement);
+
+            if(statements == null) {
+                return function;
+            } else if(statements.size() == 1 && statements.get(0) instanceof KotlinIR.Return) {
+                KotlinIR.Expression value = ((KotlinIR.Return)statements.get(0)).value;
+                return value == expression ? function : new KotlinIR.Function(function.name, function.returnType, function.parameters, value);
+            } else if(statements.size() == 1 && statements.get(0) instanceof KotlinIR.ExpressionStatement) {
+                KotlinIR.Expression value = ((KotlinIR.ExpressionStatement)statements.get(0)).expression;
+                return value == expression ? function : new KotlinIR.Function(function.name, function.returnType, function.parameters, value);
+            }
+            return new KotlinIR.Function(function.name, function.returnType, function.parameters, new KotlinIR.Block(statements));
+        } finally {
+            functions--;
+        }
+    }
+
+    @Override
+    public KotlinIR visitField(KotlinIR.Field field) {
+        KotlinIR.Expression value = expression(field.value);
+        return value == field.value ? field : new KotlinIR.Field(field.type, field.name, value);
+    }
+
+    @Override
+    public KotlinIR visitGroup(KotlinIR.Group group) {
+        List<KotlinIR> children = members(group.children);
+        return children == group.children ? group : new KotlinIR.Group(children, group.separator);
+    }
+
+    @Override
+    public KotlinIR visitText(KotlinIR.Text text) {
+        return text;
+    }
+
+    // ==========================================================
+    // Statement
+    // ==========================================================
+
+    @Override
+    public KotlinIR visitExpressionStatement(KotlinIR.ExpressionStatement statement) {
+        KotlinIR.Expression expression = expression(statement.expression);
+        return expression == statement.expression ? statement : new KotlinIR.ExpressionStatement(expression);
+    }
+
+    @Override
+    public KotlinIR visitJump(KotlinIR.Jump statement) {
+        return statement;
+    }
+
+    @Override
+    public KotlinIR visitThrow(KotlinIR.Throw statement) {
+        KotlinIR.Expression exception = expression(statement.exception);
+        return exception == statement.exception ? statement : new KotlinIR.Throw(exception);
+    }
+
+    @Override
+    public KotlinIR visitReturn(KotlinIR.Return statement) {
+        KotlinIR.Expression value = expression(statement.value);
+        return value == statement.value ? statement : new KotlinIR.Return(value);
+    }
+
+    @Override
+    public KotlinIR visitDeclaration(KotlinIR.Declaration declaration) {
+        KotlinIR.Expression value = expression(declaration.value);
+        return value == declaration.value ? declaration : new KotlinIR.Declaration(declaration.constant, declaration.type, declaration.name, value);
+    }
+
+    @Override
+    public KotlinIR visitForRange(KotlinIR.ForRange statement) {
+        KotlinIR.Expression start = expression(statement.start);
+        KotlinIR.Expression end = expression(statement.end);
+        KotlinIR.Expression step = expression(statement.step);
+        KotlinIR body = statement(statement.body);
+
+        if(start == statement.start && end == statement.end && step == statement.step && body == statement.body) {
+            return statement;
+        }
+        return new KotlinIR.ForRange(statement.type, statement.variable, start, end, step, statement.downTo, body);
+    }
+
+    @Override
+    public KotlinIR visitForEach(KotlinIR.ForEach statement) {
+        KotlinIR.Expression iterable = expression(statement.iterable);
+        KotlinIR body = statement(statement.body);
+
+        if(iterable == statement.iterable && body == statement.body) {
+            return statement;
+        }
+        return new KotlinIR.ForEach(statement.type, statement.variable, iterable, body);
+    }
+
+    @Override
+    public KotlinIR visitWhile(KotlinIR.While statement) {
+        KotlinIR.Expression condition = expression(statement.condition);
+        KotlinIR body = statement(statement.body);
+
+        if(condition == statement.condition && body == statement.body) {
+            return statement;
+        }
+        return new KotlinIR.While(condition, body);
+    }
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    @Override
+    public KotlinIR visitBlock(KotlinIR.Block block) {
+        List<KotlinIR> statements = statements(block.statements);
+        return statements == block.statements ? block : new KotlinIR.Block(statements);
+    }
+
+    @Override
+    public KotlinIR visitIf(KotlinIR.If expression) {
+        KotlinIR.Expression condition = expression(expression.condition);
+        KotlinIR then = statement(expression.then);
+        KotlinIR otherwise = statement(expression.otherwise);
+
+        if(condition == expression.condition && then == expression.then && otherwise == expression.otherwise) {
+            return expression;
+        }
+        return new KotlinIR.If(condition, then, otherwise);
+    }
+
+    @Override
+    public KotlinIR visitConditional(KotlinIR.Conditional expression) {
+        KotlinIR.Expression condition = expression(expression.condition);
+        KotlinIR.Expression then = expression(expression.then);
+        KotlinIR.Expression otherwise = expression(expression.otherwise);
+
+        if(condition == expression.condition && then == expression.then && otherwise == expression.otherwise) {
+            return expression;
+        }
+        return new KotlinIR.Conditional(condition, then, otherwise, expression.getType());
+    }
+
+    @Override
+    public KotlinIR visitWhen(KotlinIR.When expression) {
+        KotlinIR.Expression subject = expression(expression.subject);
+        List<KotlinIR.WhenBranch> branches = null;
+
+        for(int i = 0; i < expression.branches.size(); i++) {
+            KotlinIR.WhenBranch branch = expression.branches.get(i);
+            KotlinIR.Expression condition = expression(branch.condition);
+            KotlinIR body = statement(branch.body);
+
+            if(branches == null && (condition != branch.condition || body != branch.body)) {
+                branches = new ArrayList<>(expression.branches.subList(0, i));
+            }
+            if(branches != null) {
+                branches.add(condition == branch.condition && body == branch.body ? branch : new KotlinIR.WhenBranch(branch.kind, branch.negated, condition, branch.type, body));
+            }
+        }
+
+        if(subject == expression.subject && branches == null) {
+            return expression;
+        }
+        return new KotlinIR.When(subject, branches == null ? expression.branches : branches, expression.getType());
+    }
+
+    @Override
+    public KotlinIR visitLiteral(KotlinIR.Literal expression) {
+        return expression;
+    }
+
+    @Override
+    public KotlinIR visitStringTemplate(KotlinIR.StringTemplate expression) {
+        List<KotlinIR.Expression> parts = transform(expression.parts);
+        return parts == expression.parts ? expression : new KotlinIR.StringTemplate(parts);
+    }
+
+    @Override
+    public KotlinIR visitStringText(KotlinIR.StringText expression) {
+        return expression;
+    }
+
+    @Override
+    public KotlinIR visitVariable(KotlinIR.Variable expression) {
+        KotlinIR.Expression index = expression(expression.index);
+        KotlinIR.Expression member = expression(expression.member);
+
+        if(index == expression.index && member == expression.member) {
+            return expression;
+        }
+        return new KotlinIR.Variable(expression.name, index, member, expression.getType());
+    }
+
+    @Override
+    public KotlinIR visitCall(KotlinIR.Call expression) {
+        List<KotlinIR.Expression> arguments = transform(expression.arguments);
+        KotlinIR.Block block = (KotlinIR.Block)transform(expression.block);
+        KotlinIR.Expression member = expression(expression.member);
+
+        if(arguments == expression.arguments && block == expression.block && member == expression.member) {
+            return expression;
+        }
+        return new KotlinIR.Call(expression.name, arguments, block, member, expression.getType(), expression.itType);
+    }
+
+    @Override
+    public KotlinIR visitBinary(KotlinIR.Binary expression) {
+        KotlinIR.Expression left = expression(expression.left);
+        KotlinIR.Expression right = expression(expression.right);
+
+        if(left == expression.left && right == expression.right) {
+            return expression;
+        }
+        return new KotlinIR.Binary(left, expression.operator, right, expression.getType());
+    }
+
+    @Override
+    public KotlinIR visitRange(KotlinIR.Range expression) {
+        KotlinIR.Expression start = expression(expression.start);
+        KotlinIR.Expression end = expression(expression.end);
+
+        if(start == expression.start && end == expression.end) {
+            return expression;
+        }
+        return new KotlinIR.Range(start, end);
+    }
+
+    @Override
+    public KotlinIR visitPrefix(KotlinIR.Prefix expression) {
+        KotlinIR.Expression operand = expression(expression.operand);
+        return operand == expression.operand ? expression : new KotlinIR.Prefix(expression.operator, operand);
+    }
+
+    @Override
+    public KotlinIR visitPostfix(KotlinIR.Postfix expression) {
+        KotlinIR.Expression operand = expression(expression.operand);
+        return operand == expression.operand ? expression : new KotlinIR.Postfix(operand, expression.operator);
+    }
+
+    @Override
+    public KotlinIR visitIs(KotlinIR.Is expression) {
+        KotlinIR.Expression operand = expression(expression.operand);
+        return operand == expression.operand ? expression : new KotlinIR.Is(operand, expression.negated, expression.target);
+    }
+
+    @Override
+    public KotlinIR visitParen(KotlinIR.Paren expression) {
+        KotlinIR.Expression inner = expression(expression.expression);
+        return inner == expression.expression ? expression : new KotlinIR.Paren(inner);
+    }
+
+    @Override
+    public KotlinIR visitCast(KotlinIR.Cast expression) {
+        KotlinIR.Expression operand = expression(expression.operand);
+        return operand == expression.operand ? expression : new KotlinIR.Cast(expression.getType(), operand);
+    }
+
+    @Override
+    public KotlinIR visitAssign(KotlinIR.Assign expression) {
+        KotlinIR.Expression target = expression(expression.target);
+        KotlinIR.Expression value = expression(expression.value);
+
+        if(target == expression.target && value == expression.value) {
+            return expression;
+        }
+        return new KotlinIR.Assign(target, expression.operator, value);
+    }
+
+    // Statements needed by the body go in it, as the body is run later, maybe many times
+    @Override
+    public KotlinIR visitLambda(KotlinIR.Lambda expression) {
+        List<KotlinIR> outer = pending;
+        pending = null;
+
+        KotlinIR.Expression body = expression(expression.body);
+        if(pending != null) {
+            pending.add(new KotlinIR.Return(body));
+            body = new KotlinIR.Block(pending);
+        }
+
+        pending = outer;
+        return body == expression.body ? expression : new KotlinIR.Lambda(expression.parameterType, expression.parameter, body);
+    }
+}
@@ -0,0 +1,37 @@
+interface KotlinIRVisitor<T> {
+    T visitProgram(KotlinIR.Program program);
+    T visitPackage(KotlinIR.Package declaration);
+    T visitImports(KotlinIR.Imports imports);
+    T visitImport(KotlinIR.Import declaration);
+    T visitMainClass(KotlinIR.MainClass mainClass);
+    T visitFunction(KotlinIR.Function function);
+    T visitField(KotlinIR.Field field);
+    T visitGroup(KotlinIR.Group group);
+    T visitText(KotlinIR.Text text);
+    T visitExpressionStatement(KotlinIR.ExpressionStatement statement);
+    T visitJump(KotlinIR.Jump statement);
+    T visitThrow(KotlinIR.Throw statement);
+    T visitReturn(KotlinIR.Return statement);
+    T visitDeclaration(KotlinIR.Declaration declaration);
+    T visitForRange(KotlinIR.ForRange statement);
+    T visitForEach(KotlinIR.ForEach statement);
+    T visitWhile(KotlinIR.While statement);
+    T visitBlock(KotlinIR.Block block);
+    T visitIf(KotlinIR.If expression);
+    T visitConditional(KotlinIR.Conditional expression);
+    T visitWhen(KotlinIR.When expression);
+    T visitLiteral(KotlinIR.Literal expression);
+    T visitStringTemplate(KotlinIR.StringTemplate expression);
+    T visitStringText(KotlinIR.StringText expression);
+    T visitVariable(KotlinIR.Variable expression);
+    T visitCall(KotlinIR.Call expression);
+    T visitBinary(KotlinIR.Binary expression);
+    T visitRange(KotlinIR.Range expression);
+    T visitPrefix(KotlinIR.Prefix expression);
+    T visitPostfix(KotlinIR.Postfix expression);
+    T visitIs(KotlinIR.Is expression);
+    T visitParen(KotlinIR.Paren expression);
+    T visitCast(KotlinIR.Cast expression);
+    T visitAssign(KotlinIR.Assign expression);
+    T visitLambda(KotlinIR.Lambda expression);
+}
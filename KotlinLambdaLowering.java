@@ -0,0 +1,327 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Lowers the collection calls with a trailing lambda that were not fused into a loop. forEach
+// becomes Iterable.forEach, and a run of filter/map/sortedBy/any/all/none becomes one stream,
+// collected back into a list unless it ends in a check or in a call the stream has itself
+// (count, sum, first, any). The lambda takes it as its parameter and
+// returns its last expression. A lambda that captures nothing is created once by the JVM and
+// never again, so vals holding a literal are inlined into it instead of being captured, and
+// it.f() becomes the unbound T::f. A bound method reference (System.out::println) would
+// capture its receiver, so println(it) stays a lambda.
+class KotlinLambdaLowering extends KotlinIRTransformer {
+    static final List<String> streamed = Arrays.asList("filter", "map", "sortedBy", "any", "all", "none");
+    static final List<String> checks = Arrays.asList("any", "all", "none");
+
+    HashMap<String, KotlinIR.Expression> constants = new HashMap<>(); // val -> its literal, in the current function
+
+    // Finds the vals of a function that are declared once with a literal value
+    static class ConstantScan extends KotlinIRTransformer {
+        HashMap<String, KotlinIR.Expression> literals = new HashMap<>();
+        HashMap<String, Integer> declarations = new HashMap<>();
+
+        void declare(String name) {
+            declarations.put(name, declarations.getOrDefault(name, 0) + 1);
+        }
+
+        HashMap<String, KotlinIR.Expression> scan(KotlinIR.Function function) {
+            for(KotlinIR.Parameter parameter: function.parameters) {
+                declare(parameter.name);
+            }
+            transform(function.body);
+
+            HashMap<String, KotlinIR.Expression> constants = new HashMap<>();
+            for(String name: literals.keySet()) {
+                if(declarations.get(name) == 1) {
+                    constants.put(name, literals.get(name));
+                }
+            }
+            return constants;
+        }
+
+        @Override
+        public KotlinIR visitDeclaration(KotlinIR.Declaration declaration) {
+            declare(declaration.name);
+            if(declaration.constant && KotlinConstantHoisting.literalType(declaration.value) != null) {
+                literals.put(declaration.name, declaration.value);
+            }
+            return super.visitDeclaration(declaration);
+        }
+
+        @Override
+        public KotlinIR visitForRange(KotlinIR.ForRange statement) {
+            declare(((KotlinIR.Variable)statement.variable).name);
+            return super.visitForRange(statement);
+        }
+
+        @Override
+        public KotlinIR visitForEach(KotlinIR.ForEach statement) {
+            declare(((KotlinIR.Variable)statement.variable).name);
+            return super.visitForEach(statement);
+        }
+
+        @Override
+        public KotlinIR visitLambda(KotlinIR.Lambda expression) {
+            declare(expression.parameter);
+            return super.visitLambda(expression);
+        }
+    }
+
+    // Finds a lambda, not looking inside it
+    static class LambdaScan extends KotlinIRTransformer {
+        boolean found = false;
+
+        @Override
+        public KotlinIR visitLambda(KotlinIR.Lambda expression) {
+            found = true;
+            return expression;
+        }
+    }
+
+    // Replaces it with the name of the lambda's parameter, and the constants it uses with their literal
+    static class Inline extends KotlinIRTransformer {
+        final String parameter;
+        final HashMap<String, KotlinIR.Expression> constants;
+
+        Inline(String parameter, HashMap<String, KotlinIR.Expression> constants) {
+            this.parameter = parameter;
+            this.constants = constants;
+        }
+
+        @Override
+        public KotlinIR visitVariable(KotlinIR.Variable expression) {
+            KotlinIR.Variable variable = (KotlinIR.Variable)super.visitVariable(expression);
+
+            if(variable.name.equals("it") && !parameter.equals("it")) {
+                return new KotlinIR.Variable(parameter, variable.index, variable.member, variable.getType());
+            } else if(variable.index == null && variable.member == null && constants.containsKey(variable.name)) {
+                return constants.get(variable.name);
+            }
+            return variable;
+        }
+
+        // A lambda inside has an it of its own
+        @Override
+        public KotlinIR visitLambda(KotlinIR.Lambda expression) {
+            KotlinIR.Expression body = new Inline(expression.parameter, constants).expression(expression.body);
+            return body == expression.body ? expression : new KotlinIR.Lambda(expression.parameterType, expression.parameter, body);
+        }
+    }
+
+    @Override
+    public KotlinIR visitFunction(KotlinIR.Function function) {
+        HashMap<String, KotlinIR.Expression> outer = constants;
+        constants = new ConstantScan().scan(function);
+
+        try {
+            return super.visitFunction(function);
+        } finally {
+            constants = outer;
+        }
+    }
+
+    // ==========================================================
+    // Chain
+    // ==========================================================
+
+    @Override
+    public KotlinIR visitVariable(KotlinIR.Variable expression) {
+        KotlinIR.Variable variable = (KotlinIR.Variable)super.visitVariable(expression);
+        KotlinIR.Expression member = chain(variable.member);
+        return member == variable.member ? variable : narrow(new KotlinIR.Variable(variable.name, variable.index, member, variable.getType()));
+    }
+
+    @Override
+    public KotlinIR visitCall(KotlinIR.Call expression) {
+        KotlinIR.Call call = (KotlinIR.Call)super.visitCall(expression);
+        if(lowered(call)) {
+            return call; // Rewritten by the chain it is part of
+        }
+
+        KotlinIR.Expression member = chain(call.member);
+        return member == call.member ? call : narrow(new KotlinIR.Call(call.name, call.arguments, call.block, member, call.getType(), call.itType));
+    }
+
+    // Stream.count() is a long where Kotlin's count() is an Int, so a chain ending in it is cast back
+    static KotlinIR.Expression narrow(KotlinIR.Expression expression) {
+        KotlinIR.Expression last = expression;
+        while(last instanceof KotlinIR.Variable && ((KotlinIR.Variable)last).member != null || last instanceof KotlinIR.Call && ((KotlinIR.Call)last).member != null) {
+            last = last instanceof KotlinIR.Variable ? ((KotlinIR.Variable)last).member : ((KotlinIR.Call)last).member;
+        }
+
+        if(expression.getType() == Type.Int && last instanceof KotlinIR.Call && ((KotlinIR.Call)last).name.equals("count") && last.getType() == Type.Long) {
+            return new KotlinIR.Cast(Type.Int, expression);
+        }
+        return expression;
+    }
+
+    static boolean lowered(KotlinIR.Call call) {
+        return call.block != null && (call.name.equals("forEach") || streamed.contains(call.name));
+    }
+
+    // The member chain after a receiver, with its collection calls lowered
+    KotlinIR.Expression chain(KotlinIR.Expression member) {
+        if(!(member instanceof KotlinIR.Call) || !lowered((KotlinIR.Call)member)) {
+            return member;
+        }
+
+        KotlinIR.Call call = (KotlinIR.Call)member;
+        if(call.name.equals("forEach")) {
+            return stage(call, "forEach", false, chain(call.member));
+        }
+
+        // One stream for the calls in a row: stream().filter(...).map(...).collect(toList())
+        List<KotlinIR.Call> stages = new ArrayList<>();
+        KotlinIR.Expression rest = call;
+        while(rest instanceof KotlinIR.Call && lowered((KotlinIR.Call)rest)) {
+            KotlinIR.Call stage = (KotlinIR.Call)rest;
+            stages.add(stage);
+            rest = stage.member;
+
+            if(checks.contains(stage.name) || stage.name.equals("forEach")) {
+                break; // Ends the stream
+            }
+        }
+
+        KotlinIR.Call last = stages.get(stages.size() - 1);
+        KotlinIR.Expression tail = chain(rest);
+        if(last.name.equals("forEach")) {
+            tail = stage(last, "forEach", false, tail);
+            stages.remove(stages.size() - 1);
+        } else if(!checks.contains(last.name)) {
+            tail = terminal(tail);
+        }
+
+        for(int i = stages.size() - 1; i >= 0; i--) {
+            KotlinIR.Call stage = stages.get(i);
+            switch(stage.name) {
+                case "sortedBy":
+                    KotlinIR.Expression comparator = call("Comparator.comparing", null, lambda(stage, true));
+                    tail = new KotlinIR.Call("sorted", Collections.singletonList(comparator), null, tail, stage.getType());
+                    break;
+                case "any":
+                    tail = stage(stage, "anyMatch", true, tail);
+                    break;
+                case "all":
+                    tail = stage(stage, "allMatch", true, tail);
+                    break;
+                case "none":
+                    tail = stage(stage, "noneMatch", true, tail);
+                    break;
+                default:
+                    tail = stage(stage, stage.name, true, tail);
+                    break;
+            }
+        }
+        return call("stream", tail);
+    }
+
+    // The end of a stream that does not end in a check. count, sum, first and any right after it are run by
+    // the stream, which then builds no list; anything else runs on the list the stream is collected into.
+    KotlinIR.Expression terminal(KotlinIR.Expression tail) {
+        KotlinIR.Call call = tail instanceof KotlinIR.Call && ((KotlinIR.Call)tail).arguments.isEmpty() ? (KotlinIR.Call)tail : null;
+        KotlinIR.Expression result = null;
+
+        switch(call != null ? call.name : "") {
+            case "count":
+                if(call.member == null) {
+                    result = new KotlinIR.Call("count", new ArrayList<>(), null, null, Type.Long); // Cast by narrow()
+                } else if(call.block == null) {
+                    // Kotlin's count() of the list is size() in Java
+                    return call("collect", new KotlinIR.Call("size", new ArrayList<>(), null, call.member, Type.Int), call("Collectors.toList", null));
+                }
+                break;
+            case "sum": {
+                Type element = call.itType;
+                if(call.block == null && element != null && (element.nonNull() == Type.Int || element.nonNull() == Type.Long || element.nonNull() == Type.Double)) {
+                    // mapToInt(Integer::intValue).sum() for a List<Int>
+                    KotlinIR.Expression unbox = new KotlinIR.Variable(element.boxed() + "::" + element.nonNull() + "Value", null, null, Type.Object);
+                    result = call("mapTo" + element.kind, new KotlinIR.Call("sum", new ArrayList<>(), null, call.member, element.nonNull()), unbox);
+                }
+                break;
+            }
+            case "first": {
+                String message = call.block != null ? "Collection contains no element matching the predicate." : "List is empty.";
+                KotlinIR.Expression exception = new KotlinIR.Lambda(null, "", call("new NoSuchElementException", null, new KotlinIR.StringText(message)));
+                result = call("findFirst", call("orElseThrow", call.member, exception));
+                break;
+            }
+            case "any":
+                if(call.block == null) {
+                    result = call("findAny", call("isPresent", call.member));
+                }
+                break;
+        }
+
+        if(result == null) {
+            return call("collect", tail, call("Collectors.toList", null));
+        }
+        return call.block != null ? stage(call, "filter", true, result) : result;
+    }
+
+    // name(lambda), followed by member
+    KotlinIR.Expression stage(KotlinIR.Call call, String name, boolean result, KotlinIR.Expression member) {
+        return new KotlinIR.Call(name, Collections.singletonList(lambda(call, result)), null, member, call.getType());
+    }
+
+    // ==========================================================
+    // Lambda
+    // ==========================================================
+
+    // The trailing block as a Java lambda; with result, it returns its last expression
+    KotlinIR.Expression lambda(KotlinIR.Call call, boolean result) {
+        Type type = call.itType == Type.None ? null : call.itType;
+        String parameter = nested(call.block) ? name("it") : "it";
+        Inline inline = new Inline(parameter, constants);
+        List<KotlinIR> statements = call.block.statements;
+
+        if(statements.size() == 1 && statements.get(0) instanceof KotlinIR.ExpressionStatement) {
+            KotlinIR.Expression body = inline.expression(((KotlinIR.ExpressionStatement)statements.get(0)).expression);
+            KotlinIR.Expression reference = reference(type, parameter, body);
+            return reference != null ? reference : new KotlinIR.Lambda(type, parameter, body);
+        }
+
+        List<KotlinIR> body = new ArrayList<>();
+        for(int i = 0; i < statements.size(); i++) {
+            KotlinIR statement = inline.transform(statements.get(i));
+            if(result && i == statements.size() - 1 && statement instanceof KotlinIR.ExpressionStatement) {
+                statement = new KotlinIR.Return(((KotlinIR.ExpressionStatement)statement).expression);
+            }
+            body.add(statement);
+        }
+        return new KotlinIR.Lambda(type, parameter, new KotlinIR.Block(body));
+    }
+
+    // String::f for it.f(), which is unbound and so captures nothing. The boxed types are left out,
+    // as Integer::toString could also be the static Integer.toString(int).
+    static KotlinIR.Expression reference(Type type, String parameter, KotlinIR.Expression body) {
+        if(type != Type.String || !(body instanceof KotlinIR.Variable)) {
+            return null;
+        }
+
+        KotlinIR.Variable variable = (KotlinIR.Variable)body;
+        if(!variable.name.equals(parameter) || variable.index != null || !(variable.member instanceof KotlinIR.Call)) {
+            return null;
+        }
+
+        KotlinIR.Call call = (KotlinIR.Call)variable.member;
+        if(!call.arguments.isEmpty() || call.block != null || call.member != null) {
+            return null;
+        }
+        return new KotlinIR.Variable(type + "::" + call.name, null, null, Type.Object);
+    }
+
+    // Whether a lambda inside already uses it, which Java does not let this one use again
+    static boolean nested(KotlinIR.Block block) {
+        LambdaScan scan = new LambdaScan();
+        scan.transform(block);
+        return scan.found;
+    }
+
+    static KotlinIR.Expression call(String name, KotlinIR.Expression member, KotlinIR.Expression... arguments) {
+        return new KotlinIR.Call(name, new ArrayList<>(Arrays.asList(arguments)), null, member, Type.None);
+    }
+}
@@ -0,0 +1,379 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Fuses a chain of collection calls with trailing lambdas, list.filter{}.map{}.forEach{}, into one
+// for loop over the list, with it bound to a fresh local per stage. sortedBy is a barrier: the
+// elements are collected into one list, sorted, and the rest of the chain loops over that list.
+// Only chains that are a whole statement are fused, as a forEach statement, a declaration or a return.
+class KotlinLoopFusion extends KotlinIRTransformer {
+    static final List<String> intermediate = Arrays.asList("filter", "map", "sortedBy");
+    static final List<String> terminal = Arrays.asList("forEach", "any", "count", "sum", "first");
+
+    KotlinIR.Block value = null; // Trailing block whose last statement is the lambda's result
+
+    // Renames it, except inside lambdas, which have an it of their own
+    static class Rename extends KotlinIRTransformer {
+        final String name;
+
+        Rename(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public KotlinIR visitVariable(KotlinIR.Variable expression) {
+            KotlinIR.Variable variable = (KotlinIR.Variable)super.visitVariable(expression);
+            if(!variable.name.equals("it")) {
+                return variable;
+            }
+            return new KotlinIR.Variable(name, variable.index, variable.member, variable.getType());
+        }
+
+        @Override
+        public KotlinIR visitCall(KotlinIR.Call expression) {
+            List<KotlinIR.Expression> arguments = transform(expression.arguments);
+            KotlinIR.Expression member = expression(expression.member);
+
+            if(arguments == expression.arguments && member == expression.member) {
+                return expression;
+            }
+            return new KotlinIR.Call(expression.name, arguments, expression.block, member, expression.getType(), expression.itType);
+        }
+    }
+
+    // Finds text the parser recovered from a syntax error, which is kept as a literal of no type
+    static class Recovered extends KotlinIRTransformer {
+        boolean found = false;
+
+        @Override
+        public KotlinIR visitLiteral(KotlinIR.Literal expression) {
+            found |= expression.getType() == Type.None;
+            return expression;
+        }
+
+        @Override
+        public KotlinIR visitStringTemplate(KotlinIR.StringTemplate expression) {
+            return expression; // Its tokens are literals of no type too
+        }
+    }
+
+    // The loops of one chain as they are built
+    class Loop {
+        List<KotlinIR> statements = new ArrayList<>();
+        KotlinIR.Expression iterable;
+        Type elementType;
+        String element;
+        List<KotlinIR> body;
+        String variable; // it of the current stage
+        Type type;
+
+        Loop(KotlinIR.Expression iterable, Type type) {
+            open(iterable, type);
+        }
+
+        void open(KotlinIR.Expression iterable, Type type) {
+            this.iterable = iterable;
+            this.elementType = type;
+            this.element = name("it");
+            this.variable = element;
+            this.type = type;
+            this.body = new ArrayList<>();
+        }
+
+        void close() {
+            statements.add(new KotlinIR.ForEach(elementType, variable(element), iterable, new KotlinIR.Block(body)));
+        }
+
+        // The statements of the lambda with it renamed, except the last one when it is the result
+        KotlinIR.Expression inline(KotlinIR.Block lambda, boolean result) {
+            List<KotlinIR> statements = lambda.statements;
+            Rename rename = new Rename(variable);
+
+            for(int i = 0; i < statements.size() - (result ? 1 : 0); i++) {
+                body.add(rename.transform(statements.get(i)));
+            }
+            if(!result) {
+                return null;
+            }
+            return rename.expression(result(lambda));
+        }
+    }
+
+    // The expression the lambda returns, null if its last statement is not a well-formed expression
+    static KotlinIR.Expression result(KotlinIR.Block lambda) {
+        KotlinIR last = lambda.statements.isEmpty() ? null : lambda.statements.get(lambda.statements.size() - 1);
+        if(!(last instanceof KotlinIR.ExpressionStatement)) {
+            return null;
+        }
+
+        KotlinIR.Expression expression = ((KotlinIR.ExpressionStatement)last).expression;
+        Recovered recovered = new Recovered();
+        recovered.expression(expression);
+        return recovered.found ? null : expression;
+    }
+
+    static KotlinIR.Variable variable(String name) {
+        return new KotlinIR.Variable(name, null, null, Type.None);
+    }
+
+    static KotlinIR.Expression call(String receiver, String name, KotlinIR.Expression... arguments) {
+        KotlinIR.Call call = new KotlinIR.Call(name, new ArrayList<>(Arrays.asList(arguments)), null, null, Type.None);
+        return receiver == null ? call : new KotlinIR.Variable(receiver, null, call, Type.None);
+    }
+
+    // The result of a lambda is not a statement, so it is left to be lowered as an expression
+    @Override
+    public KotlinIR visitCall(KotlinIR.Call expression) {
+        KotlinIR.Block outer = value;
+        value = expression.name.equals("forEach") ? null : expression.block;
+        try {
+            return super.visitCall(expression);
+        } finally {
+            value = outer;
+        }
+    }
+
+    @Override
+    public KotlinIR visitBlock(KotlinIR.Block block) {
+        boolean valued = block == value;
+        block = (KotlinIR.Block)super.visitBlock(block);
+        List<KotlinIR> statements = null;
+
+        for(int i = 0; i < block.statements.size(); i++) {
+            KotlinIR statement = block.statements.get(i);
+            boolean result = valued && i == block.statements.size() - 1 && statement instanceof KotlinIR.ExpressionStatement;
+            List<KotlinIR> fused = result ? null : fuse(statement);
+
+            if(statements == null && fused != null) {
+                statements = new ArrayList<>(block.statements.subList(0, i));
+            }
+            if(statements != null) {
+                statements.addAll(fused != null ? fused : Collections.singletonList(statement));
+            }
+        }
+
+        return statements == null ? block : new KotlinIR.Block(statements);
+    }
+
+    // The statements replacing the statement, null if it is not a chain that can be fused
+    List<KotlinIR> fuse(KotlinIR statement) {
+        KotlinIR.Expression chain;
+
+        if(statement instanceof KotlinIR.ExpressionStatement) {
+            chain = ((KotlinIR.ExpressionStatement)statement).expression;
+        } else if(statement instanceof KotlinIR.Declaration) {
+            chain = ((KotlinIR.Declaration)statement).value;
+        } else if(statement instanceof KotlinIR.Return) {
+            chain = ((KotlinIR.Return)statement).value;
+        } else {
+            return null;
+        }
+
+        List<KotlinIR.Call> stages = new ArrayList<>();
+        KotlinIR.Expression source = source(chain, stages);
+        if(source == null || !fusible(stages)) {
+            return null;
+        }
+
+        String last = stages.get(stages.size() - 1).name;
+        if(!(statement instanceof KotlinIR.ExpressionStatement) && last.equals("forEach")) {
+            return null;
+        }
+
+        Loop loop = new Loop(source, stages.get(0).itType);
+        List<KotlinIR> before = new ArrayList<>();
+        List<KotlinIR> after = new ArrayList<>();
+        String result = null;
+
+        for(int i = 0; i < stages.size(); i++) {
+            KotlinIR.Call stage = stages.get(i);
+            boolean isLast = i == stages.size() - 1;
+
+            switch(stage.name) {
+                case "filter": {
+                    KotlinIR.Expression condition = loop.inline(stage.block, true);
+                    loop.body.add(new KotlinIR.If(new KotlinIR.Prefix("!", new KotlinIR.Paren(condition)), new KotlinIR.Jump("continue"), null));
+                    break;
+                }
+                case "map": {
+                    KotlinIR.Expression value = loop.inline(stage.block, true);
+                    Type type = isLast ? value.getType() : stages.get(i + 1).itType;
+                    if(type == null || type == Type.None) {
+                        return null;
+                    }
+
+                    String variable = name("it");
+                    loop.body.add(new KotlinIR.Declaration(true, type, variable, value));
+                    loop.variable = variable;
+                    loop.type = type;
+                    break;
+                }
+                case "sortedBy": {
+                    if(stage.block.statements.size() != 1) {
+                        return null;
+                    }
+
+                    // Collect, sort once, then loop over the sorted list
+                    String sorted = name("sorted");
+                    String parameter = name("it");
+                    KotlinIR.Expression key = new Rename(parameter).expression(result(stage.block));
+                    KotlinIR.Expression comparator = call(null, "Comparator.comparing", new KotlinIR.Lambda(loop.type, parameter, key));
+
+                    before.add(new KotlinIR.Declaration(false, Type.list(loop.type), sorted, call(null, "new ArrayList<>")));
+                    loop.body.add(new KotlinIR.ExpressionStatement(call(sorted, "add", variable(loop.variable))));
+                    loop.close();
+                    loop.statements.add(new KotlinIR.ExpressionStatement(call(sorted, "sort", comparator)));
+
+                    if(isLast) {
+                        result = sorted;
+                        loop.body = null;
+                    } else {
+                        loop.open(variable(sorted), loop.type);
+                    }
+                    break;
+                }
+                case "forEach": {
+                    loop.inline(stage.block, false);
+                    break;
+                }
+                case "any": {
+                    result = name("any");
+                    before.add(new KotlinIR.Declaration(false, Type.Boolean, result, new KotlinIR.Literal("false", Type.Boolean)));
+                    KotlinIR found = new KotlinIR.Block(Arrays.asList(
+                        new KotlinIR.ExpressionStatement(new KotlinIR.Assign(variable(result), "=", new KotlinIR.Literal("true", Type.Boolean))),
+                        new KotlinIR.Jump("break")));
+                    loop.body.add(stage.block != null ? new KotlinIR.If(loop.inline(stage.block, true), found, null) : found);
+                    break;
+                }
+                case "count": {
+                    result = name("count");
+                    before.add(new KotlinIR.Declaration(false, Type.Int, result, new KotlinIR.Literal("0", Type.Int)));
+                    KotlinIR increment = new KotlinIR.ExpressionStatement(new KotlinIR.Postfix(variable(result), "++"));
+                    loop.body.add(stage.block != null ? new KotlinIR.If(loop.inline(stage.block, true), increment, null) : increment);
+                    break;
+                }
+                case "sum": {
+                    result = name("sum");
+                    before.add(new KotlinIR.Declaration(false, loop.type, result, new KotlinIR.Literal("0", Type.Int)));
+                    loop.body.add(new KotlinIR.ExpressionStatement(new KotlinIR.Assign(variable(result), "+=", variable(loop.variable))));
+                    break;
+                }
+                case "first": {
+                    result = name("first");
+                    String found = name("found");
+                    before.add(new KotlinIR.Declaration(false, loop.type.nullable(), result, new KotlinIR.Literal("null", Type.None)));
+                    before.add(new KotlinIR.Declaration(false, Type.Boolean, found, new KotlinIR.Literal("false", Type.Boolean)));
+                    KotlinIR first = new KotlinIR.Block(Arrays.asList(
+                        new KotlinIR.ExpressionStatement(new KotlinIR.Assign(variable(result), "=", variable(loop.variable))),
+                        new KotlinIR.ExpressionStatement(new KotlinIR.Assign(variable(found), "=", new KotlinIR.Literal("true", Type.Boolean))),
+                        new KotlinIR.Jump("break")));
+                    loop.body.add(stage.block != null ? new KotlinIR.If(loop.inline(stage.block, true), first, null) : first);
+
+                    String message = stage.block != null ? "Collection contains no element matching the predicate." : "List is empty.";
+                    after.add(new KotlinIR.If(new KotlinIR.Prefix("!", variable(found)), new KotlinIR.Throw(call(null, "new NoSuchElementException", new KotlinIR.StringText(message))), null));
+                    break;
+                }
+            }
+
+            // A chain that ends in filter or map builds the list in the same loop
+            if(isLast && result == null && !stage.name.equals("forEach")) {
+                result = name("list");
+                before.add(new KotlinIR.Declaration(false, Type.list(loop.type), result, call(null, "new ArrayList<>")));
+                loop.body.add(new KotlinIR.ExpressionStatement(call(result, "add", variable(loop.variable))));
+            }
+        }
+
+        if(loop.body != null) {
+            loop.close();
+        }
+
+        List<KotlinIR> statements = new ArrayList<>(before);
+        statements.addAll(loop.statements);
+        statements.addAll(after);
+
+        if(statement instanceof KotlinIR.Declaration) {
+            KotlinIR.Declaration declaration = (KotlinIR.Declaration)statement;
+            statements.add(new KotlinIR.Declaration(declaration.constant, declaration.type, declaration.name, variable(result)));
+        } else if(statement instanceof KotlinIR.Return) {
+            statements.add(new KotlinIR.Return(variable(result)));
+        }
+        return statements;
+    }
+
+    // The chain up to the first collection call; the calls from there on are added to stages
+    KotlinIR.Expression source(KotlinIR.Expression chain, List<KotlinIR.Call> stages) {
+        KotlinIR.Expression member;
+
+        if(chain instanceof KotlinIR.Variable) {
+            member = ((KotlinIR.Variable)chain).member;
+        } else if(chain instanceof KotlinIR.Call && ((KotlinIR.Call)chain).block == null) {
+            member = ((KotlinIR.Call)chain).member;
+        } else {
+            return null;
+        }
+
+        if(member == null) {
+            return null;
+        } else if(isStage(member)) {
+            for(KotlinIR.Expression stage = member; stage != null; stage = ((KotlinIR.Call)stage).member) {
+                if(!isStage(stage)) {
+                    return null;
+                }
+                stages.add((KotlinIR.Call)stage);
+            }
+            member = null;
+        } else {
+            member = source(member, stages);
+            if(member == null) {
+                return null;
+            }
+        }
+
+        // The walker typed the chain by its result, and the type of the source without the stages is not
+        // known, so it is left as None. The loop goes by the itType of the stages and does not need it.
+        if(chain instanceof KotlinIR.Variable) {
+            KotlinIR.Variable variable = (KotlinIR.Variable)chain;
+            return new KotlinIR.Variable(variable.name, variable.index, member, Type.None);
+        } else {
+            KotlinIR.Call call = (KotlinIR.Call)chain;
+            return new KotlinIR.Call(call.name, call.arguments, null, member, Type.None, call.itType);
+        }
+    }
+
+    boolean isStage(KotlinIR.Expression expression) {
+        if(!(expression instanceof KotlinIR.Call)) {
+            return false;
+        }
+        KotlinIR.Call call = (KotlinIR.Call)expression;
+        return call.itType != null && call.itType != Type.None && call.arguments.isEmpty() && (intermediate.contains(call.name) || terminal.contains(call.name));
+    }
+
+    // Intermediate stages take a lambda returning its last expression, and only the last stage may be terminal.
+    // A lambda only partly recovered from a syntax error is left to be lowered unfused.
+    boolean fusible(List<KotlinIR.Call> stages) {
+        if(stages.isEmpty()) {
+            return false;
+        }
+
+        for(int i = 0; i < stages.size(); i++) {
+            KotlinIR.Call stage = stages.get(i);
+            boolean lambda = stage.block != null && !stage.block.statements.isEmpty();
+
+            if(terminal.contains(stage.name) && i != stages.size() - 1) {
+                return false;
+            }
+            if(stage.name.equals("sum")) {
+                if(stage.block != null) {
+                    return false;
+                }
+            } else if((intermediate.contains(stage.name) || stage.name.equals("forEach")) && !lambda) {
+                return false;
+            }
+            if(stage.block != null && !stage.name.equals("forEach") && result(stage.block) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
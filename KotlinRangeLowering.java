@@ -0,0 +1,314 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+// Lowers x in a..b, x in a downTo b and x in r step s to bound comparisons (plus a modulo check
+// for steps), so no range object is created. x in a small listOf/setOf of Int or Long literals,
+// written there or through a val only used that way, becomes a chain of == checks. Anything else
+// on the right becomes contains(). The value and the start are evaluated more than once, so ones
+// with a side effect are stored in a temporary the first time.
+class KotlinRangeLowering extends KotlinIRTransformer {
+    static final KotlinIR.Literal zero = new KotlinIR.Literal("0", Type.Int);
+    static final int maxChain = 8;
+
+    HashMap<String, KotlinIR.Call> membershipSets = new HashMap<>(); // val name -> its literal
+
+    // Finds the vals of a function that hold a literal collection and are only used on the right of in
+    static class MembershipScan extends KotlinIRTransformer {
+        HashMap<String, KotlinIR.Call> literals = new HashMap<>();
+        HashMap<String, Integer> declarations = new HashMap<>();
+        HashMap<String, Integer> uses = new HashMap<>();
+        HashMap<String, Integer> memberships = new HashMap<>();
+
+        static void count(HashMap<String, Integer> counts, String name) {
+            counts.put(name, counts.getOrDefault(name, 0) + 1);
+        }
+
+        HashMap<String, KotlinIR.Call> scan(KotlinIR.Function function) {
+            for(KotlinIR.Parameter parameter: function.parameters) {
+                count(declarations, parameter.name);
+            }
+            transform(function.body);
+
+            HashMap<String, KotlinIR.Call> sets = new HashMap<>();
+            for(String name: literals.keySet()) {
+                if(declarations.get(name) == 1 && uses.getOrDefault(name, 0).equals(memberships.getOrDefault(name, 0))) {
+                    sets.put(name, literals.get(name));
+                }
+            }
+            return sets;
+        }
+
+        String name(KotlinIR.Expression expression) {
+            while(expression instanceof KotlinIR.Paren) {
+                expression = ((KotlinIR.Paren)expression).expression;
+            }
+            if(!(expression instanceof KotlinIR.Variable)) {
+                return null;
+            }
+            KotlinIR.Variable variable = (KotlinIR.Variable)expression;
+            return variable.index == null && variable.member == null ? variable.name : null;
+        }
+
+        @Override
+        public KotlinIR visitFunction(KotlinIR.Function function) {
+            for(KotlinIR.Parameter parameter: function.parameters) {
+                count(declarations, parameter.name);
+            }
+            return super.visitFunction(function);
+        }
+
+        @Override
+        public KotlinIR visitDeclaration(KotlinIR.Declaration declaration) {
+            count(declarations, declaration.name);
+            if(declaration.constant && declaration.value instanceof KotlinIR.Call) {
+                KotlinIR.Call call = (KotlinIR.Call)declaration.value;
+                if(call.member == null && call.arguments.size() <= maxChain && KotlinConstantHoisting.constant(call) != null) {
+                    literals.put(declaration.name, call);
+                }
+            }
+            return super.visitDeclaration(declaration);
+        }
+
+        @Override
+        public KotlinIR visitVariable(KotlinIR.Variable expression) {
+            count(uses, expression.name);
+            return super.visitVariable(expression);
+        }
+
+        @Override
+        public KotlinIR visitBinary(KotlinIR.Binary expression) {
+            if((expression.operator.equals("in") || expression.operator.equals("!in")) && name(expression.right) != null) {
+                count(memberships, name(expression.right));
+            }
+            return super.visitBinary(expression);
+        }
+    }
+
+    @Override
+    public KotlinIR visitFunction(KotlinIR.Function function) {
+        HashMap<String, KotlinIR.Call> outer = membershipSets;
+        membershipSets = new MembershipScan().scan(function);
+        try {
+            return super.visitFunction(function);
+        } finally {
+            membershipSets = outer;
+        }
+    }
+
+    @Override
+    public KotlinIR visitBinary(KotlinIR.Binary expression) {
+        KotlinIR.Binary binary = (KotlinIR.Binary)super.visitBinary(expression);
+        KotlinIR.Expression left = binary.left;
+        KotlinIR.Expression right = binary.right;
+
+        if(binary.operator.equals("in") || binary.operator.equals("!in")) {
+            KotlinIR.Expression membership = membership(left, right, binary.operator.equals("!in"));
+            return membership != null ? membership : binary;
+        }
+
+        // Lowered checks are && / || chains, which bind looser than the operator around them
+        left = group(left, binary.operator);
+        right = group(right, binary.operator);
+        if(left == binary.left && right == binary.right) {
+            return binary;
+        }
+        return new KotlinIR.Binary(left, binary.operator, right, binary.getType());
+    }
+
+    // null if the check has to stay as it is
+    KotlinIR.Expression membership(KotlinIR.Expression value, KotlinIR.Expression collection, boolean negated) {
+        KotlinIR.Expression range = collection;
+        KotlinIR.Expression step = null;
+        boolean downTo = false;
+
+        while(range instanceof KotlinIR.Paren) {
+            range = ((KotlinIR.Paren)range).expression;
+        }
+
+        KotlinIR.Expression literal = range;
+        if(range instanceof KotlinIR.Variable && membershipSets.containsKey(((KotlinIR.Variable)range).name)) {
+            KotlinIR.Variable variable = (KotlinIR.Variable)range;
+            if(variable.index == null && variable.member == null) {
+                literal = membershipSets.get(variable.name);
+            }
+        }
+        KotlinIR.Expression chain = compareChain(value, literal, negated);
+        if(chain != null) {
+            return chain;
+        }
+
+        if(range instanceof KotlinIR.Binary && ((KotlinIR.Binary)range).operator.equals("step")) {
+            step = ((KotlinIR.Binary)range).right;
+            range = ((KotlinIR.Binary)range).left;
+        }
+        if(range instanceof KotlinIR.Binary && ((KotlinIR.Binary)range).operator.equals("downTo")) {
+            downTo = true;
+        } else if(!(range instanceof KotlinIR.Range)) {
+            if(step != null) {
+                return null;
+            }
+
+            KotlinIR.Expression contains = call(collection, "contains", value);
+            if(contains == null || !negated) {
+                return contains;
+            }
+            return new KotlinIR.Prefix("!", contains);
+        }
+
+        KotlinIR.Expression start = range instanceof KotlinIR.Range ? ((KotlinIR.Range)range).start : ((KotlinIR.Binary)range).left;
+        KotlinIR.Expression end = range instanceof KotlinIR.Range ? ((KotlinIR.Range)range).end : ((KotlinIR.Binary)range).right;
+
+        // The value, the start, the end and the step are evaluated once each, in this order. The value and a
+        // start the step needs again are stored where they are first evaluated if they have an effect, and an
+        // end or a step with one is not skipped: the checks are joined by & and | instead of && and ||.
+        KotlinIR.Expression first = value;
+        if(!pure(value)) {
+            value = temporary(value, start.getType());
+            first = store(value, first);
+        }
+        KotlinIR.Expression firstStart = start;
+        if(step != null && !pure(start)) {
+            start = temporary(start, start.getType());
+            firstStart = store(start, firstStart);
+        }
+        boolean strict = !pure(end) || !pure(step);
+        String and = negated ? (strict ? "|" : "||") : (strict ? "&" : "&&");
+
+        // x in a..b step s is a <= x <= b && (x - a) % s == 0, x in a downTo b is x <= a && x >= b,
+        // negated by De Morgan
+        KotlinIR.Expression check = new KotlinIR.Binary(
+            compare(first, downTo ? (negated ? ">" : "<=") : (negated ? "<" : ">="), firstStart),
+            and,
+            compare(value, downTo ? (negated ? "<" : ">=") : (negated ? ">" : "<="), end),
+            Type.Boolean);
+
+        if(step != null) {
+            KotlinIR.Expression distance = new KotlinIR.Paren(downTo ? subtract(start, value) : subtract(value, start));
+            KotlinIR.Expression remainder = new KotlinIR.Binary(distance, "%", operand(step), distance.getType());
+            check = new KotlinIR.Binary(check, and, new KotlinIR.Binary(remainder, negated ? "!=" : "==", zero, Type.Boolean), Type.Boolean);
+        }
+
+        return check;
+    }
+
+    // Declared before the statement, of the type of the expression or else of the given one
+    KotlinIR.Variable temporary(KotlinIR.Expression expression, Type type) {
+        type = expression.getType() != Type.None ? expression.getType() : type;
+        String name = name("range");
+        before(new KotlinIR.Declaration(false, type == Type.None ? Type.Object : type, name, null));
+        return new KotlinIR.Variable(name, null, null, type);
+    }
+
+    static KotlinIR.Expression store(KotlinIR.Expression temporary, KotlinIR.Expression expression) {
+        return new KotlinIR.Paren(new KotlinIR.Assign(temporary, "=", expression));
+    }
+
+    // x == a || x == b || ..., negated x != a && x != b && ...; null when the elements are not Int or
+    // Long literals of the value's type. A chain of String.equals is slower than one lookup in the
+    // hoisted set, and Doubles keep contains(), which compares NaN and -0.0 with equals
+    KotlinIR.Expression compareChain(KotlinIR.Expression value, KotlinIR.Expression collection, boolean negated) {
+        if(!(collection instanceof KotlinIR.Call) || ((KotlinIR.Call)collection).member != null) {
+            return null;
+        }
+
+        KotlinIR.Call call = (KotlinIR.Call)collection;
+        Type element = KotlinConstantHoisting.constant(call);
+        if((element != Type.Int && element != Type.Long) || element != value.getType() || call.arguments.size() > maxChain) {
+            return null;
+        }
+
+        // A value with an effect is stored by the first check, which is always evaluated
+        KotlinIR.Expression first = value;
+        if(!pure(value)) {
+            value = temporary(value, element);
+            first = store(value, first);
+        }
+
+        KotlinIR.Expression chain = null;
+        for(KotlinIR.Expression argument: call.arguments) {
+            KotlinIR.Expression check = compare(chain == null ? first : value, negated ? "!=" : "==", argument);
+            chain = chain == null ? check : new KotlinIR.Binary(chain, negated ? "&&" : "||", check, Type.Boolean);
+        }
+        return chain;
+    }
+
+    KotlinIR.Expression compare(KotlinIR.Expression left, String operator, KotlinIR.Expression right) {
+        return new KotlinIR.Binary(operand(left), operator, operand(right), Type.Boolean);
+    }
+
+    KotlinIR.Expression subtract(KotlinIR.Expression left, KotlinIR.Expression right) {
+        return new KotlinIR.Binary(operand(left), "-", operand(right), left.getType());
+    }
+
+    // Operands that are not a single term get parentheses
+    KotlinIR.Expression operand(KotlinIR.Expression expression) {
+        if(expression instanceof KotlinIR.Literal || expression instanceof KotlinIR.Variable || expression instanceof KotlinIR.Call
+            || expression instanceof KotlinIR.Paren || expression instanceof KotlinIR.Prefix || expression instanceof KotlinIR.Postfix) {
+            return expression;
+        }
+        return new KotlinIR.Paren(expression);
+    }
+
+    KotlinIR.Expression group(KotlinIR.Expression expression, String operator) {
+        if(!(expression instanceof KotlinIR.Binary)) {
+            return expression;
+        }
+
+        int inner = precedence(((KotlinIR.Binary)expression).operator);
+        if(inner < precedence("") && inner < precedence(operator)) {
+            return new KotlinIR.Paren(expression);
+        }
+        return expression;
+    }
+
+    // Of the operators a lowered check is joined with, lowest first; any other operator binds tighter
+    static int precedence(String operator) {
+        switch(operator) {
+            case "||": return 0;
+            case "&&": return 1;
+            case "|": return 2;
+            case "&": return 3;
+            default: return 4;
+        }
+    }
+
+    // receiver.name(argument), appended at the end of a variable or call chain; null for other receivers
+    KotlinIR.Expression call(KotlinIR.Expression receiver, String name, KotlinIR.Expression argument) {
+        if(receiver == null) {
+            return new KotlinIR.Call(name, new ArrayList<>(Collections.singletonList(argument)), null, null, Type.Boolean);
+        } else if(receiver instanceof KotlinIR.Variable) {
+            KotlinIR.Variable variable = (KotlinIR.Variable)receiver;
+            KotlinIR.Expression member = variable.member == null ? call(null, name, argument) : call(variable.member, name, argument);
+            return member == null ? null : new KotlinIR.Variable(variable.name, variable.index, member, Type.Boolean);
+        } else if(receiver instanceof KotlinIR.Call && ((KotlinIR.Call)receiver).block == null) {
+            KotlinIR.Call call = (KotlinIR.Call)receiver;
+            KotlinIR.Expression member = call.member == null ? call(null, name, argument) : call(call.member, name, argument);
+            return member == null ? null : new KotlinIR.Call(call.name, call.arguments, null, member, Type.Boolean, call.itType);
+        } else {
+            return null;
+        }
+    }
+
+    static final List<String> pureOperators = Arrays.asList("+", "-", "*", "/", "%", "!", "<", ">", "<=", ">=", "==", "!=", "&&", "||");
+
+    // Evaluating it twice gives the same value and has no effect: literals, variables and properties, arithmetic on them
+    boolean pure(KotlinIR.Expression expression) {
+        if(expression == null || expression instanceof KotlinIR.Literal || expression instanceof KotlinIR.StringText) {
+            return true;
+        } else if(expression instanceof KotlinIR.Variable) {
+            return pure(((KotlinIR.Variable)expression).index) && pure(((KotlinIR.Variable)expression).member);
+        } else if(expression instanceof KotlinIR.Paren) {
+            return pure(((KotlinIR.Paren)expression).expression);
+        } else if(expression instanceof KotlinIR.Prefix) {
+            return pureOperators.contains(((KotlinIR.Prefix)expression).operator) && pure(((KotlinIR.Prefix)expression).operand);
+        } else if(expression instanceof KotlinIR.Binary) {
+            KotlinIR.Binary binary = (KotlinIR.Binary)expression;
+            return pureOperators.contains(binary.operator) && pure(binary.left) && pure(binary.right);
+        } else {
+            return false;
+        }
+    }
+}
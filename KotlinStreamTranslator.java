@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.*;
+import org.antlr.v4.runtime.misc.IntervalSet;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+// Translates the prog rule one topLevelBodyElement at a time. Each element is written out as
+// soon as it is parsed, then its subtree and its tokens are dropped, so memory does not grow
+// with the number of elements. The prog and topLevelBody rules are entered by hand in the same
+// ATN states as the generated code, so prediction and error recovery see the same rule stack.
+class KotlinStreamTranslator {
+    KotlinParser parser;
+    KotlinTokenBuffer tokens;
+    KotlinWalker walker;
+    KotlinConstantHoisting constants = new KotlinConstantHoisting();
+    Writer writer;
+
+    ANTLRErrorStrategy recovery = new DefaultErrorStrategy();
+    ANTLRErrorStrategy bail = new BailErrorStrategy();
+
+    ParserRuleContext prog;
+    ParserRuleContext body;
+    boolean progWritten = false;
+    boolean bodyWritten = false;
+
+    int elements = 0;
+    int fallbackElements = 0;
+
+    KotlinStreamTranslator(KotlinParser parser, KotlinTokenBuffer tokens, KotlinWalker walker, Writer writer) {
+        this.parser = parser;
+        this.tokens = tokens;
+        this.walker = walker;
+        this.writer = writer;
+    }
+
+    void translate() throws IOException {
+        ATN atn = parser.getATN();
+        fullLL();
+
+        // prog : packageDeclaration? importList? topLevelBody? EOF ;
+        prog = new KotlinParser.ProgContext(null, parser.getState());
+        parser.enterRule(prog, atn.ruleToStartState[KotlinParser.RULE_prog].stateNumber, KotlinParser.RULE_prog);
+        try {
+            parser.enterOuterAlt(prog, 1);
+
+            if(optional(KotlinParser.RULE_prog, KotlinParser.RULE_packageDeclaration)) {
+                parser.packageDeclaration();
+            }
+            boolean imports = optional(KotlinParser.RULE_prog, KotlinParser.RULE_importList);
+            if(imports) {
+                parser.importList();
+            }
+            flush(prog);
+
+            if(optional(KotlinParser.RULE_prog, KotlinParser.RULE_topLevelBody)) {
+                if(progWritten) {
+                    writer.write("\n");
+                }
+                if(!imports) {
+                    StringBuilder output = new StringBuilder();
+                    new KotlinEmitter(output).emit(new KotlinIR.Imports(new ArrayList<>()));
+                    writer.append(output).write("\n");
+                }
+                writer.write("class Main {\n");
+                progWritten = true;
+
+                topLevelBody();
+                prog.removeLastChild();
+
+                writer.write("\n}");
+            }
+
+            parser.setState(matchState(KotlinParser.RULE_prog, Token.EOF));
+            parser.match(Token.EOF);
+        } catch(RecognitionException e) {
+            prog.exception = e;
+            recovery.reportError(parser, e);
+            recovery.recover(parser, e);
+        } finally {
+            parser.exitRule();
+        }
+        flush(prog);
+
+        writer.flush();
+    }
+
+    // topLevelBody : topLevelBodyElement+ ;
+    void topLevelBody() throws IOException {
+        ATN atn = parser.getATN();
+        int invokingState = invokingState(KotlinParser.RULE_topLevelBody, KotlinParser.RULE_topLevelBodyElement);
+        PlusBlockStartState loop = (PlusBlockStartState)decisionState(KotlinParser.RULE_topLevelBody, KotlinParser.RULE_topLevelBodyElement);
+        IntervalSet first = atn.nextTokens(atn.states.get(invokingState));
+
+        body = new KotlinParser.TopLevelBodyContext(prog, parser.getState());
+        parser.enterRule(body, atn.ruleToStartState[KotlinParser.RULE_topLevelBody].stateNumber, KotlinParser.RULE_topLevelBody);
+        IntervalSet follow = atn.getExpectedTokens(loop.loopBackState.stateNumber, body);
+        try {
+            parser.enterOuterAlt(body, 1);
+            parser.setState(loop.stateNumber);
+            recovery.sync(parser);
+
+            do {
+                parser.setState(invokingState);
+                topLevelBodyElement(invokingState, follow);
+                elements++;
+
+                parser.setState(loop.loopBackState.stateNumber);
+                recovery.sync(parser);
+
+                flush(body);
+                tokens.discard(tokens.index() - 1);
+            } while(first.contains(tokens.LA(1)));
+        } catch(RecognitionException e) {
+            body.exception = e;
+            recovery.reportError(parser, e);
+            recovery.recover(parser, e);
+        } finally {
+            parser.exitRule();
+        }
+        flush(body);
+    }
+
+    // Same two-stage strategy as Kotlin2Java.parse, but only the failing element is parsed again.
+    // SLL does not see what follows the element, so a bad next token also counts as a failure.
+    void topLevelBodyElement(int invokingState, IntervalSet follow) {
+        if(!Kotlin2Java.twoStageParsing) {
+            parser.topLevelBodyElement();
+            return;
+        }
+
+        int start = tokens.index();
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(bail);
+
+        boolean parsed;
+        try {
+            parser.topLevelBodyElement();
+            parsed = follow.contains(tokens.LA(1));
+        } catch(ParseCancellationException e) {
+            parsed = false;
+        }
+
+        if(!parsed) {
+            fallbackElements++;
+
+            body.removeLastChild();
+            tokens.seek(start);
+            parser.setState(invokingState);
+            fullLL();
+
+            parser.topLevelBodyElement();
+        }
+
+        fullLL();
+    }
+
+    void fullLL() {
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        parser.removeErrorListeners();
+        parser.addErrorListener(ConsoleErrorListener.INSTANCE);
+        parser.setErrorHandler(recovery);
+    }
+
+    // Builds the IR of the children parsed so far and writes them joined by newlines
+    void flush(ParserRuleContext ctx) throws IOException {
+        if(ctx.children == null || ctx.children.isEmpty()) {
+            return;
+        }
+
+        boolean written = ctx == body ? bodyWritten : progWritten;
+        boolean content = false;
+        for(ParseTree child: ctx.children) {
+            if(!(child instanceof TerminalNode) || !child.getText().equals("<EOF>")) {
+                content = true;
+            }
+        }
+
+        if(content) {
+            if(written) {
+                writer.write("\n");
+            }
+            StringBuilder output = new StringBuilder();
+            new KotlinEmitter(output).emit(Kotlin2Java.lower(new KotlinIR.Group(walker.children(ctx), "\n"), constants));
+            writer.append(output);
+
+            if(ctx == body) {
+                bodyWritten = true;
+            } else {
+                progWritten = true;
+            }
+        }
+
+        ctx.children.clear();
+    }
+
+    // Checks an optional rule reference the way the generated code does before calling it
+    boolean optional(int rule, int calledRule) {
+        ATN atn = parser.getATN();
+        int invokingState = invokingState(rule, calledRule);
+
+        parser.setState(decisionState(rule, calledRule).stateNumber);
+        recovery.sync(parser);
+
+        if(!atn.nextTokens(atn.states.get(invokingState)).contains(tokens.LA(1))) {
+            return false;
+        }
+        parser.setState(invokingState);
+        return true;
+    }
+
+    // The state whose rule transition calls calledRule
+    int invokingState(int rule, int calledRule) {
+        for(ATNState state: parser.getATN().states) {
+            if(state != null && state.ruleIndex == rule && state.getNumberOfTransitions() == 1) {
+                Transition transition = state.transition(0);
+                if(transition instanceof RuleTransition && ((RuleTransition)transition).ruleIndex == calledRule) {
+                    return state.stateNumber;
+                }
+            }
+        }
+        throw new IllegalStateException(KotlinParser.ruleNames[rule] + " does not call " + KotlinParser.ruleNames[calledRule]);
+    }
+
+    // The ?/+ block whose first alternative is the call of calledRule
+    DecisionState decisionState(int rule, int calledRule) {
+        int invokingState = invokingState(rule, calledRule);
+
+        for(ATNState state: parser.getATN().states) {
+            if(state instanceof DecisionState && state.ruleIndex == rule && state.transition(0).target.stateNumber == invokingState) {
+                return (DecisionState)state;
+            }
+        }
+        throw new IllegalStateException("no decision before " + KotlinParser.ruleNames[calledRule]);
+    }
+
+    int matchState(int rule, int tokenType) {
+        for(ATNState state: parser.getATN().states) {
+            if(state != null && state.ruleIndex == rule && state.getNumberOfTransitions() == 1) {
+                Transition transition = state.transition(0);
+                if(transition instanceof AtomTransition && ((AtomTransition)transition).label == tokenType) {
+                    return state.stateNumber;
+                }
+            }
+        }
+        throw new IllegalStateException(KotlinParser.ruleNames[rule] + " does not match " + tokenType);
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Types of the variables and functions in scope. Each scope is a pair of hash maps on a stack,
+// keyed by interned identifiers; lookups walk from the innermost scope outwards.
+class KotlinSymbolTable {
+    static class Symbol {
+        final Type type;
+
+        Symbol(Type type) {
+            this.type = type;
+        }
+    }
+
+    static final Symbol unknown = new Symbol(Type.None);
+
+    ArrayList<HashMap<String, Symbol>> variables = new ArrayList<>();
+    ArrayList<HashMap<String, Symbol>> functions = new ArrayList<>();
+
+    KotlinSymbolTable() {
+        push();
+    }
+
+    void push() {
+        variables.add(new HashMap<>());
+        functions.add(new HashMap<>());
+    }
+
+    void pop() {
+        variables.remove(variables.size() - 1);
+        functions.remove(functions.size() - 1);
+    }
+
+    void declareVariable(String name, Type type) {
+        variables.get(variables.size() - 1).put(name, new Symbol(type));
+    }
+
+    void declareFunction(String name, Type type) {
+        functions.get(functions.size() - 1).put(name, new Symbol(type));
+    }
+
+    Symbol variable(String name) {
+        return lookup(variables, name);
+    }
+
+    Symbol function(String name) {
+        return lookup(functions, name);
+    }
+
+    Symbol lookup(ArrayList<HashMap<String, Symbol>> scopes, String name) {
+        for(int i = scopes.size() - 1; i >= 0; i--) {
+            Symbol symbol = scopes.get(i).get(name);
+            if(symbol != null) {
+                return symbol;
+            }
+        }
+        return unknown;
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Folds string templates: adjacent text is merged into one literal, Int/Long literals and nested
+// templates are spliced into the text, and empty text is dropped, so a template is one concatenation.
+// That is also what a loop gets: HotSpot allocates a concatenation at its exact size, while a
+// StringBuilder reused across iterations copies on toString() all the same and runs at half the
+// speed (bench/TemplateBenchmark).
+class KotlinTemplateFolding extends KotlinIRTransformer {
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    @Override
+    public KotlinIR visitStringTemplate(KotlinIR.StringTemplate expression) {
+        if(expression.parts.size() == 1 && expression.parts.get(0) instanceof KotlinIR.StringText) {
+            return expression;
+        }
+
+        List<KotlinIR.Expression> parts = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        fold(expression, parts, text);
+        if(text.length() > 0 || parts.isEmpty()) {
+            parts.add(new KotlinIR.StringText(text.toString()));
+        }
+
+        // "text", or one expression, which is "null" when it is null
+        if(parts.size() == 1) {
+            KotlinIR.Expression part = parts.get(0);
+            return part instanceof KotlinIR.StringText ? new KotlinIR.StringTemplate(parts) : valueOf(part);
+        }
+
+        // One of the first two operands has to be a String for + to concatenate
+        for(int i = 0; i < parts.size(); i++) {
+            parts.set(i, operand(parts.get(i)));
+        }
+        if(!isString(parts.get(0)) && !isString(parts.get(1))) {
+            parts.set(0, valueOf(parts.get(0)));
+        }
+        return new KotlinIR.StringTemplate(parts);
+    }
+
+    // Adds the parts of the template to parts, with the text not added yet in text
+    void fold(KotlinIR.StringTemplate template, List<KotlinIR.Expression> parts, StringBuilder text) {
+        for(KotlinIR.Expression part: template.parts) {
+            if(part instanceof KotlinIR.StringTemplate) {
+                fold((KotlinIR.StringTemplate)part, parts, text);
+                continue;
+            }
+
+            part = expression(part);
+            String constant = constant(part);
+            if(constant != null) {
+                text.append(constant);
+            } else {
+                if(text.length() > 0) {
+                    parts.add(new KotlinIR.StringText(text.toString()));
+                    text.setLength(0);
+                }
+                parts.add(part);
+            }
+        }
+    }
+
+    // Text of a part that is known when translating: text and decimal Int/Long literals
+    String constant(KotlinIR.Expression part) {
+        if(part instanceof KotlinIR.StringText) {
+            return ((KotlinIR.StringText)part).text;
+        }
+
+        String sign = "";
+        if(part instanceof KotlinIR.Prefix && ((KotlinIR.Prefix)part).operator.equals("-")) {
+            sign = "-";
+            part = ((KotlinIR.Prefix)part).operand;
+        }
+        if(!(part instanceof KotlinIR.Literal)) {
+            return null;
+        }
+
+        String literal = ((KotlinIR.Literal)part).text;
+        if(part.getType() == Type.Long && literal.endsWith("L")) {
+            literal = literal.substring(0, literal.length() - 1);
+        } else if(part.getType() != Type.Int) {
+            return null;
+        }
+        if(!literal.matches("0|[1-9][0-9]*")) {
+            return null;
+        }
+        return sign.equals("-") && literal.equals("0") ? "0" : sign + literal;
+    }
+
+    boolean isString(KotlinIR.Expression part) {
+        return part instanceof KotlinIR.StringText || part.getType() == Type.String;
+    }
+
+    static KotlinIR.Expression valueOf(KotlinIR.Expression part) {
+        return new KotlinIR.Call("String.valueOf", new ArrayList<>(Arrays.asList(part)), null, null, Type.String);
+    }
+
+    // Operands that are not a single term get parentheses, "a" + (b + c)
+    KotlinIR.Expression operand(KotlinIR.Expression expression) {
+        if(expression instanceof KotlinIR.Literal || expression instanceof KotlinIR.Variable || expression instanceof KotlinIR.Call
+            || expression instanceof KotlinIR.Paren || expression instanceof KotlinIR.StringText || expression instanceof KotlinIR.Prefix
+            || expression instanceof KotlinIR.Postfix) {
+            return expression;
+        }
+        return new KotlinIR.Paren(expression);
+    }
+}
@@ -0,0 +1,344 @@
+import java.util.Arrays;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+// Token stream that keeps every token as a row of parallel int arrays instead of one
+// CommonToken object each. It is also the lexer's TokenFactory, so the lexer writes
+// straight into the arrays, and Token objects are only created as views when asked for.
+// Only the views of the last few tokens asked for are kept, so the parser's repeated lookahead
+// reuses them; the ones the parse tree holds belong to the tree, not to the buffer.
+// Off-channel tokens are dropped, the same as CommonTokenStream hides them from the parser.
+// Token indices are absolute; discard() drops the rows before an index for streaming.
+class KotlinTokenBuffer implements TokenStream, TokenFactory<Token> {
+    class CompactToken implements Token {
+        final int index;
+
+        CompactToken(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getText() {
+            int row = row(index);
+
+            if(types[row] == Token.EOF) {
+                return "<EOF>";
+            } else if(texts != null && texts[row] != null) {
+                return texts[row];
+            } else {
+                return input.getText(Interval.of(starts[row], stops[row]));
+            }
+        }
+
+        @Override
+        public int getType() {
+            return types[row(index)];
+        }
+
+        @Override
+        public int getLine() {
+            return lines[row(index)];
+        }
+
+        @Override
+        public int getCharPositionInLine() {
+            return columns[row(index)];
+        }
+
+        @Override
+        public int getChannel() {
+            return Token.DEFAULT_CHANNEL;
+        }
+
+        @Override
+        public int getTokenIndex() {
+            return index;
+        }
+
+        @Override
+        public int getStartIndex() {
+            return starts[row(index)];
+        }
+
+        @Override
+        public int getStopIndex() {
+            return stops[row(index)];
+        }
+
+        @Override
+        public TokenSource getTokenSource() {
+            return tokenSource;
+        }
+
+        @Override
+        public CharStream getInputStream() {
+            return input;
+        }
+
+        @Override
+        public String toString() {
+            String text = getText().replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+            return "[@" + index + "," + getStartIndex() + ":" + getStopIndex() + "='" + text + "',<" + getType() + ">," + getLine() + ":" + getCharPositionInLine() + "]";
+        }
+    }
+
+    TokenSource tokenSource;
+    CharStream input;
+
+    int[] types = new int[1024];
+    int[] starts = new int[1024];
+    int[] stops = new int[1024];
+    int[] lines = new int[1024];
+    int[] columns = new int[1024];
+    String[] texts;
+    CompactToken[] views = new CompactToken[64]; // By index modulo the length, a power of 2
+
+    int offset = 0; // Index of the token in row 0
+    int size = 0;
+    int position = 0;
+    boolean fetchedEOF = false;
+
+    KotlinTokenBuffer(TokenSource tokenSource) {
+        this.tokenSource = tokenSource;
+        this.input = tokenSource.getInputStream();
+        tokenSource.setTokenFactory(this);
+    }
+
+    // ==========================================================
+    // TokenFactory
+    // ==========================================================
+
+    @Override
+    public Token create(Pair<TokenSource, CharStream> source, int type, String text, int channel, int start, int stop, int line, int charPositionInLine) {
+        // Tokens conjured by error recovery (start < 0) and off-channel tokens are not buffered
+        if(start < 0 || source.a != tokenSource || channel != Token.DEFAULT_CHANNEL) {
+            CommonToken token = new CommonToken(source, type, channel, start, stop);
+            token.setLine(line);
+            token.setCharPositionInLine(charPositionInLine);
+            if(text != null) {
+                token.setText(text);
+            }
+            return token;
+        }
+
+        if(size - offset == types.length) {
+            int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            stops = Arrays.copyOf(stops, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            columns = Arrays.copyOf(columns, capacity);
+            if(texts != null) {
+                texts = Arrays.copyOf(texts, capacity);
+            }
+        }
+
+        int row = size - offset;
+        types[row] = type;
+        starts[row] = start;
+        stops[row] = stop;
+        lines[row] = line;
+        columns[row] = charPositionInLine;
+        if(text != null) {
+            if(texts == null) {
+                texts = new String[types.length];
+            }
+            texts[row] = text;
+        }
+        size++;
+
+        return view(size - 1);
+    }
+
+    @Override
+    public Token create(int type, String text) {
+        return new CommonToken(type, text);
+    }
+
+    // ==========================================================
+    // TokenStream
+    // ==========================================================
+
+    boolean fetch(int index) {
+        while(size <= index && !fetchedEOF) {
+            tokenSource.nextToken();
+            fetchedEOF = size > offset && types[size - 1 - offset] == Token.EOF;
+        }
+        return index < size;
+    }
+
+    int row(int index) {
+        if(index < offset) {
+            throw new IndexOutOfBoundsException("token " + index + " was discarded");
+        }
+        return index - offset;
+    }
+
+    // Drop every token before the index, they can no longer be read or seeked to
+    void discard(int index) {
+        int count = Math.min(index, size) - offset;
+        if(count <= 0) {
+            return;
+        }
+
+        int rows = size - offset - count;
+        System.arraycopy(types, count, types, 0, rows);
+        System.arraycopy(starts, count, starts, 0, rows);
+        System.arraycopy(stops, count, stops, 0, rows);
+        System.arraycopy(lines, count, lines, 0, rows);
+        System.arraycopy(columns, count, columns, 0, rows);
+        if(texts != null) {
+            System.arraycopy(texts, count, texts, 0, rows);
+            Arrays.fill(texts, rows, rows + count, null);
+        }
+        offset += count;
+    }
+
+    @Override
+    public Token get(int index) {
+        if(index < offset || !fetch(index)) {
+            throw new IndexOutOfBoundsException("token index " + index + " out of range 0.." + (size - 1));
+        }
+        return view(index);
+    }
+
+    CompactToken view(int index) {
+        int slot = index & (views.length - 1);
+        if(views[slot] == null || views[slot].index != index) {
+            views[slot] = new CompactToken(index);
+        }
+        return views[slot];
+    }
+
+    @Override
+    public Token LT(int k) {
+        if(k == 0) {
+            return null;
+        }
+
+        int index = position + (k > 0 ? k - 1 : k);
+        if(index < 0) {
+            return null;
+        }
+        if(!fetch(index)) {
+            return get(size - 1);
+        }
+        return get(index);
+    }
+
+    @Override
+    public int LA(int i) {
+        if(i == 0) {
+            return 0;
+        }
+
+        int index = position + (i > 0 ? i - 1 : i);
+        if(index < 0) {
+            return 0;
+        }
+        if(!fetch(index)) {
+            return Token.EOF;
+        }
+        return types[row(index)];
+    }
+
+    @Override
+    public void consume() {
+        if(LA(1) == Token.EOF) {
+            throw new IllegalStateException("cannot consume EOF");
+        }
+        position++;
+        fetch(position);
+    }
+
+    @Override
+    public int mark() {
+        return 0;
+    }
+
+    @Override
+    public void release(int marker) {
+    }
+
+    @Override
+    public int index() {
+        return position;
+    }
+
+    @Override
+    public void seek(int index) {
+        fetch(index);
+        position = Math.min(Math.max(index, offset), Math.max(size - 1, 0));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String getSourceName() {
+        return tokenSource.getSourceName();
+    }
+
+    @Override
+    public TokenSource getTokenSource() {
+        return tokenSource;
+    }
+
+    @Override
+    public String getText(Interval interval) {
+        int start = interval.a;
+        int stop = interval.b;
+
+        if(start < 0 || stop < 0) {
+            return "";
+        }
+        fetch(stop);
+        start = Math.max(start, offset);
+        stop = Math.min(stop, size - 1);
+
+        StringBuilder text = new StringBuilder();
+        for(int i = start; i <= stop && types[row(i)] != Token.EOF; i++) {
+            text.append(get(i).getText());
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String getText() {
+        fetch(Integer.MAX_VALUE - 1);
+        return getText(Interval.of(offset, size - 1));
+    }
+
+    @Override
+    public String getText(RuleContext ctx) {
+        return getText(ctx.getSourceInterval());
+    }
+
+    @Override
+    public String getText(Token start, Token stop) {
+        if(start == null || stop == null) {
+            return "";
+        }
+        return getText(Interval.of(start.getTokenIndex(), stop.getTokenIndex()));
+    }
+
+    // Everything the buffer holds on to: the arrays with their 16 byte headers, the texts set by the
+    // lexer and the views kept. References and object headers are counted as with compressed oops.
+    long bytes() {
+        long bytes = 5 * (16 + 4L * types.length) + 16 + 4L * views.length;
+
+        for(CompactToken view: views) {
+            bytes += view != null ? 24 : 0; // Header, index and the reference to the buffer
+        }
+        if(texts != null) {
+            bytes += 16 + 4L * texts.length;
+            for(String text: texts) {
+                bytes += text != null ? 24 + 16 + 2L * text.length() : 0;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,309 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+// Hand-written replacement for the generated KotlinLexer. It emits the token types of the
+// KotlinLexer vocabulary with the same longest-match / first-rule-wins semantics, but scans
+// a plain char[] instead of simulating the lexer ATN.
+class KotlinTokenSource implements TokenSource {
+    static final String[] TYPE_WORDS = {"Int", "Unit", "Any", "Long", "String", "Double", "Boolean"};
+    static final String[] MODE_WORDS = {"val", "var"};
+
+    // Fixed-text tokens grouped by first character, longest first
+    static final char[][][] literals = new char[128][][];
+    static final int[][] literalTypes = new int[128][];
+
+    static {
+        List<String> texts = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        Vocabulary vocabulary = KotlinLexer.VOCABULARY;
+
+        for(int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+            String name = vocabulary.getLiteralName(type);
+            if(name != null) {
+                texts.add(unquote(name));
+                types.add(type);
+            }
+        }
+        for(String word: TYPE_WORDS) {
+            texts.add(word);
+            types.add(KotlinLexer.Type);
+        }
+        for(String word: MODE_WORDS) {
+            texts.add(word);
+            types.add(KotlinLexer.Mode);
+        }
+
+        Integer[] order = new Integer[texts.size()];
+        for(int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt((Integer i) -> -texts.get(i).length()).thenComparingInt(types::get));
+
+        for(int first = 0; first < 128; first++) {
+            List<Integer> group = new ArrayList<>();
+            for(Integer i: order) {
+                if(texts.get(i).charAt(0) == first) {
+                    group.add(i);
+                }
+            }
+            if(!group.isEmpty()) {
+                literals[first] = new char[group.size()][];
+                literalTypes[first] = new int[group.size()];
+                for(int j = 0; j < group.size(); j++) {
+                    literals[first][j] = texts.get(group.get(j)).toCharArray();
+                    literalTypes[first][j] = types.get(group.get(j));
+                }
+            }
+        }
+    }
+
+    // Literal names are the token text wrapped in single quotes, without escaping
+    static String unquote(String literal) {
+        return literal.substring(1, literal.length() - 1);
+    }
+
+    // Letter : [a-zA-Z_] ; and (Letter | Digit)
+    static final boolean[] letter = new boolean[128];
+    static final boolean[] letterOrDigit = new boolean[128];
+
+    static {
+        for(char c = 0; c < 128; c++) {
+            letter[c] = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+            letterOrDigit[c] = letter[c] || (c >= '0' && c <= '9');
+        }
+    }
+
+    static boolean isLetter(char c) {
+        return c < 128 && letter[c];
+    }
+
+    static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    CharStream input;
+    Pair<TokenSource, CharStream> source;
+    TokenFactory<?> factory = CommonTokenFactory.DEFAULT;
+    ANTLRErrorListener listener = ConsoleErrorListener.INSTANCE;
+
+    // One char per code point of the input, so positions are CharStream indices
+    char[] data;
+    int length;
+
+    int position = 0;
+    int line = 1;
+    int column = 0;
+
+    KotlinTokenSource(CharStream input) {
+        this.input = input;
+        this.source = new Pair<TokenSource, CharStream>(this, input);
+        this.length = input.size();
+        this.data = new char[length];
+
+        String text = input.getText(Interval.of(0, length - 1));
+        for(int i = 0, j = 0; i < length; i++) {
+            int codePoint = text.codePointAt(j);
+            data[i] = codePoint > Character.MAX_VALUE ? Character.MAX_VALUE : (char)codePoint;
+            j += Character.charCount(codePoint);
+        }
+    }
+
+    @Override
+    public Token nextToken() {
+        while(position < length) {
+            int start = position;
+            char c = data[start];
+
+            // Skip (only Newline contains a line break, so every other token just moves the column)
+            if(c == ' ' || c == '\t') {
+                do {
+                    position++;
+                } while(position < length && (data[position] == ' ' || data[position] == '\t'));
+                column += position - start;
+                continue;
+            } else if(c == '\n') {
+                position++;
+                line++;
+                column = 0;
+                continue;
+            } else if(c == '\r') {
+                position++;
+                if(position < length && data[position] == '\n') {
+                    position++;
+                    line++;
+                    column = 0;
+                } else {
+                    column++;
+                }
+                continue;
+            } else if(c == '/' && start + 1 < length && data[start + 1] == '/') {
+                while(position < length && data[position] != '\r' && data[position] != '\n') {
+                    position++;
+                }
+                column += position - start;
+                continue;
+            }
+
+            // Longest match, the rule defined first (lowest token type) wins a tie
+            int bestLength = 0;
+            int bestType = Token.INVALID_TYPE;
+
+            if(c < 128 && literals[c] != null) {
+                char[][] candidates = literals[c];
+                for(int i = 0; i < candidates.length; i++) {
+                    if(matches(candidates[i], start)) {
+                        bestLength = candidates[i].length;
+                        bestType = literalTypes[c][i];
+                        break;
+                    }
+                }
+            }
+
+            if(isLetter(c)) {
+                int end = start + 1;
+                while(end < length && data[end] < 128 && letterOrDigit[data[end]]) {
+                    end++;
+                }
+                if(end - start > bestLength) {
+                    bestLength = end - start;
+                    bestType = KotlinLexer.Id;
+                }
+            } else if(isDigit(c) || c == '.') {
+                int decimalLength = decimalEnd(start) - start;
+                int doubleLength = doubleEnd(start) - start;
+
+                if(decimalLength > bestLength) {
+                    bestLength = decimalLength;
+                    bestType = KotlinLexer.UnsignedDecimalLiteral;
+                }
+                if(doubleLength > bestLength) {
+                    bestLength = doubleLength;
+                    bestType = KotlinLexer.UnsignedDoubleLiteral;
+                }
+            }
+
+            int tokenLine = line;
+            int tokenColumn = column;
+
+            if(bestLength == 0) {
+                listener.syntaxError(null, null, tokenLine, tokenColumn, "token recognition error at: '" + input.getText(Interval.of(start, start)) + "'", null);
+                bestLength = 1;
+            }
+
+            position += bestLength;
+            column += bestLength;
+
+            if(bestType == Token.INVALID_TYPE) {
+                continue;
+            }
+
+            return factory.create(source, bestType, null, Token.DEFAULT_CHANNEL, start, start + bestLength - 1, tokenLine, tokenColumn);
+        }
+
+        return factory.create(source, Token.EOF, null, Token.DEFAULT_CHANNEL, position, position - 1, line, column);
+    }
+
+    boolean matches(char[] literal, int start) {
+        if(start + literal.length > length) {
+            return false;
+        }
+        for(int i = 1; i < literal.length; i++) {
+            if(data[start + i] != literal[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // UnsignedDecimalLiteral : '0' | NonZeroDigit Digit*
+    int decimalEnd(int start) {
+        if(data[start] == '0') {
+            return start + 1;
+        } else if(data[start] >= '1' && data[start] <= '9') {
+            int end = start + 1;
+            while(end < length && isDigit(data[end])) {
+                end++;
+            }
+            return end;
+        }
+        return start;
+    }
+
+    // UnsignedDoubleLiteral : (Digit* '.' Digit+ | UnsignedDecimalLiteral) ([eE] [+-]? Digit+)?
+    int doubleEnd(int start) {
+        int end = start;
+
+        int i = start;
+        while(i < length && isDigit(data[i])) {
+            i++;
+        }
+        if(i + 1 < length && data[i] == '.' && isDigit(data[i + 1])) {
+            i += 2;
+            while(i < length && isDigit(data[i])) {
+                i++;
+            }
+            end = exponentEnd(i);
+        }
+
+        int decimal = decimalEnd(start);
+        if(decimal > start) {
+            end = Math.max(end, exponentEnd(decimal));
+        }
+
+        return end;
+    }
+
+    int exponentEnd(int start) {
+        int i = start;
+
+        if(i < length && (data[i] == 'e' || data[i] == 'E')) {
+            i++;
+            if(i < length && (data[i] == '+' || data[i] == '-')) {
+                i++;
+            }
+            if(i < length && isDigit(data[i])) {
+                while(i < length && isDigit(data[i])) {
+                    i++;
+                }
+                return i;
+            }
+        }
+
+        return start;
+    }
+
+    @Override
+    public int getLine() {
+        return line;
+    }
+
+    @Override
+    public int getCharPositionInLine() {
+        return column;
+    }
+
+    @Override
+    public CharStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public String getSourceName() {
+        return input.getSourceName();
+    }
+
+    @Override
+    public void setTokenFactory(TokenFactory<?> factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public TokenFactory<?> getTokenFactory() {
+        return factory;
+    }
+}
@@ -0,0 +1,834 @@
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.*;
+
+// Builds the KotlinIR of the parse tree; statements and declarations return KotlinIR, expressions KotlinIR.Expression
+class KotlinWalker extends KotlinBaseVisitor {
+    KotlinSymbolTable symbols = new KotlinSymbolTable();
+
+    // Numeric promotion: Int < Long < Double, everything else is not numeric
+    int typePriority(Type type) {
+        switch(type.kind) {
+            case Int: return 1;
+            case Long: return 2;
+            case Double: return 3;
+            default: return 0;
+        }
+    }
+
+    // Type of an operation on the types. A nullable operand like Int? is unboxed, the result is never null.
+    // A String on the left is a concatenation; other mixes have no common Java type here.
+    Type typeInference(Type... types) {
+        Type type = types[0].nonNull();
+
+        if(type == Type.String) {
+            return type;
+        }
+
+        for (Type t: types) {
+            t = t.nonNull();
+
+            if(typePriority(type) == 0 || typePriority(t) == 0) {
+                if(t != type) {
+                    return Type.None;
+                }
+            } else if(typePriority(type) < typePriority(t)) {
+                type = t;
+            }
+        }
+
+        return type;
+    }
+    
+    String nullSafe(Object string) {
+        if(string == null) {
+            return "";
+        } else if(string instanceof String) {
+            return (String)string;
+        } else {
+            return string.toString();
+        }
+    }
+
+    // Identifiers are interned, so every IR node and symbol table key for a name shares one String
+    String id(TerminalNode id) {
+        if(id == null) {
+            return ""; // Missing after a syntax error
+        }
+        return id.getText().intern();
+    }
+
+    List<KotlinIR> children(RuleNode node, int startIndex, int endIndex) {
+        List<KotlinIR> children = new ArrayList<>();
+
+        for(int i = startIndex; i < endIndex; i++) {
+            if(node.getChild(i) instanceof TerminalNode) {
+                if(!node.getChild(i).getText().equals("<EOF>")) {
+                    children.add(new KotlinIR.Text(nullSafe(node.getChild(i).getText())));
+                }
+            } else {
+                children.add((KotlinIR)node.getChild(i).accept(this));
+            }
+        }
+
+        return children;
+    }
+
+    List<KotlinIR> children(RuleNode node) {
+        return children(node, 0, node.getChildCount());
+    }
+
+    @Override
+    public KotlinIR visitChildren(RuleNode node) {
+        return new KotlinIR.Group(children(node), "");
+    }
+
+    @Override
+    public KotlinIR visitProg(KotlinParser.ProgContext ctx) {
+        List<KotlinIR> elements = children(ctx);
+        if(ctx.importList() == null && ctx.topLevelBody() != null) {
+            elements.add(ctx.packageDeclaration() == null ? 0 : 1, new KotlinIR.Imports(new ArrayList<>()));
+        }
+        return new KotlinIR.Program(elements);
+    }
+
+    @Override
+    public KotlinIR visitPackageDeclaration(KotlinParser.PackageDeclarationContext ctx) {
+        return new KotlinIR.Package(ctx.packageName().getText());
+    }
+
+    @Override
+    public KotlinIR visitImportList(KotlinParser.ImportListContext ctx) {
+        return new KotlinIR.Imports(children(ctx));
+    }
+
+    @Override
+    public KotlinIR visitImportDeclaration(KotlinParser.ImportDeclarationContext ctx) {
+        return new KotlinIR.Import(ctx.importName().getText());
+    }
+
+    @Override
+    public KotlinIR visitTopLevelBody(KotlinParser.TopLevelBodyContext ctx) {
+        List<KotlinIR> members = new ArrayList<>();
+
+        for(KotlinParser.TopLevelBodyElementContext element: ctx.topLevelBodyElement()) {
+            declareFunction(element.functionDeclaration());
+        }
+
+        // Each element's subtree is released as soon as its IR is built, so the tree and the IR are not both held
+        for(int i = 0; i < ctx.getChildCount(); i++) {
+            members.addAll(children(ctx, i, i + 1));
+            ctx.children.set(i, null);
+        }
+
+        return new KotlinIR.MainClass(members);
+    }
+
+    @Override
+    public KotlinIR visitTopLevelBodyElement(KotlinParser.TopLevelBodyElementContext ctx) {
+        List<KotlinIR> children = children(ctx);
+        return children.size() == 1 ? children.get(0) : new KotlinIR.Group(children, "\n");
+    }
+
+    @Override
+    public KotlinIR visitBodyElement(KotlinParser.BodyElementContext ctx) {
+        // Error recovery can leave an element with nothing in it but a token, or nothing at all
+        if(ctx.getChildCount() == 0 || ctx.getChild(0) instanceof TerminalNode) {
+            return new KotlinIR.Text(ctx.getText());
+        } else if(ctx.expression() != null) {
+            return new KotlinIR.ExpressionStatement(this.visitExpression(ctx.expression()));
+        }
+
+        KotlinIR element = (KotlinIR)this.visit(ctx.getChild(0));
+        if(ctx.functionCallStatement() != null) {
+            return new KotlinIR.ExpressionStatement(expression(element, ctx));
+        } else {
+            return element;
+        }
+    }
+
+    // A function can be called before it is declared, so the top-level ones are declared before any
+    // body is walked with their return type, or Unit for a block body without one. Without one an
+    // expression body has the type of the expression, which is only known once it is walked.
+    void declareFunction(KotlinParser.FunctionDeclarationContext function) {
+        if(function == null || function.Id() == null) {
+            return;
+        } else if(function.type() != null) {
+            symbols.declareFunction(id(function.Id()), this.type(function.type()));
+        } else if(function.compoundStatement() != null) {
+            symbols.declareFunction(id(function.Id()), Type.Void);
+        }
+    }
+
+    // The same for --stream, which walks each element before the next one is parsed: the input is parsed
+    // once before, and each element is dropped with its tokens as soon as its function is declared.
+    // Syntax errors are left to be reported by the real parse. SLL prediction is enough for the signatures;
+    // where it would fail the input has a syntax error for it, and it is recovered from the same way.
+    void declareFunctions(TokenSource lexer) {
+        KotlinTokenBuffer tokens = new KotlinTokenBuffer(lexer);
+        KotlinParser parser = new KotlinParser(tokens);
+        parser.removeErrorListeners();
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+
+        parser.addParseListener(new ParseTreeListener() {
+            @Override
+            public void exitEveryRule(ParserRuleContext ctx) {
+                if(ctx instanceof KotlinParser.TopLevelBodyElementContext) {
+                    declareFunction(((KotlinParser.TopLevelBodyElementContext)ctx).functionDeclaration());
+                    ctx.getParent().removeLastChild();
+                    tokens.discard(tokens.index() - 1);
+                }
+            }
+
+            @Override
+            public void enterEveryRule(ParserRuleContext ctx) {
+            }
+
+            @Override
+            public void visitTerminal(TerminalNode node) {
+            }
+
+            @Override
+            public void visitErrorNode(ErrorNode node) {
+            }
+        });
+        parser.prog();
+    }
+
+    @Override
+    public KotlinIR visitFunctionDeclaration(KotlinParser.FunctionDeclarationContext ctx) {
+        String name = id(ctx.Id());
+        Type type = ctx.type() != null ? this.type(ctx.type()) : Type.Void;
+        List<KotlinIR.Parameter> parameters = new ArrayList<>();
+        KotlinIR body = null;
+
+        symbols.declareFunction(name, type);
+        symbols.push();
+
+        if(!name.equals("main") && ctx.functionDeclarationParameterList() != null) {
+            this.visitFunctionDeclarationParameterList(ctx.functionDeclarationParameterList(), parameters);
+        }
+
+        if(ctx.expression() != null) {
+            KotlinIR.Expression expression = this.visitExpression(ctx.expression());
+
+            // fun f() = expression returns the type of the expression
+            if(ctx.type() == null && expression.getType() != Type.None) {
+                type = expression.getType();
+            }
+            body = expression;
+        } else if(ctx.compoundStatement() != null) {
+            body = this.visitCompoundStatement(ctx.compoundStatement());
+        }
+
+        symbols.pop();
+        symbols.declareFunction(name, type);
+
+        return new KotlinIR.Function(name, type, parameters, body);
+    }
+
+    void visitFunctionDeclarationParameterList(KotlinParser.FunctionDeclarationParameterListContext ctx, List<KotlinIR.Parameter> parameters) {
+        if(ctx.functionDeclarationParameterList() != null) {
+            this.visitFunctionDeclarationParameterList(ctx.functionDeclarationParameterList(), parameters);
+        }
+
+        String name = id(ctx.Id());
+        symbols.declareVariable(name, this.type(ctx.type()));
+        parameters.add(new KotlinIR.Parameter(this.type(ctx.type()), name));
+    }
+
+    @Override
+    public KotlinIR.Expression visitFunctionCallStatement(KotlinParser.FunctionCallStatementContext ctx) {
+        return visitFunctionCallStatement(ctx, null);
+    }
+
+    // receiver is the type of what the call is a member of, null for a plain call. Members are
+    // not looked up, the symbol table only knows local functions, but calls on a list or a String know it
+    KotlinIR.Expression visitFunctionCallStatement(KotlinParser.FunctionCallStatementContext ctx, Type receiver) {
+        String name;
+        List<KotlinIR.Expression> arguments = new ArrayList<>();
+        KotlinIR.Block block = null;
+        KotlinIR.Expression member = null;
+        Type argumentType = Type.None;
+        Type element = receiver != null && receiver.isCollection() ? receiver.subType : null;
+        Type type;
+
+        if(ctx.Id() != null) {
+            name = id(ctx.Id());
+        } else {
+            name = String.valueOf(this.typeName(ctx.type()));
+        }
+
+        if(ctx.compoundStatement() != null) {
+            symbols.push();
+            if(element != null) {
+                symbols.declareVariable("it", element);
+            }
+            block = this.visitCompoundStatement(ctx.compoundStatement());
+            symbols.pop();
+        } else if(ctx.functionCallArgumentList() != null) {
+            argumentType = this.visitFunctionCallArgumentList(ctx.functionCallArgumentList(), arguments);
+        }
+
+        if(element != null) {
+            type = listCallType(name, element, block);
+        } else if(receiver == Type.String) {
+            type = stringCallType(name);
+        } else if(name.equals("listOf")) {
+            type = Type.list(argumentType);
+        } else if(name.equals("setOf")) {
+            type = Type.set(argumentType);
+        } else if(receiver == null && ctx.Id() != null) {
+            type = symbols.function(name).type;
+        } else {
+            type = Type.None;
+        }
+
+        if(ctx.functionCallStatement() != null) {
+            member = this.visitFunctionCallStatement(ctx.functionCallStatement(), type);
+            type = member.getType();
+        } else if(ctx.variable() != null) {
+            member = this.visitVariable(ctx.variable(), type);
+            type = member.getType();
+        }
+
+        return new KotlinIR.Call(name, arguments, block, member, type, element);
+    }
+
+    // Result of the collection functions on a List of element
+    Type listCallType(String name, Type element, KotlinIR.Block block) {
+        switch(name) {
+            case "filter": case "filterNot": case "sorted": case "sortedBy": case "sortedDescending": case "reversed": case "distinct":
+                return Type.list(element);
+            case "map":
+                return Type.list(blockType(block));
+            case "forEach":
+                return Type.Void;
+            case "any": case "all": case "none": case "contains": case "isEmpty":
+                return Type.Boolean;
+            case "count":
+                return Type.Int;
+            case "sum": case "first": case "last":
+                return element;
+            default:
+                return Type.None;
+        }
+    }
+
+    // Result of the String functions
+    Type stringCallType(String name) {
+        switch(name) {
+            case "toUpperCase": case "toLowerCase": case "trim": case "substring": case "replace": case "repeat": case "reversed":
+                return Type.String;
+            case "startsWith": case "endsWith": case "contains": case "isEmpty": case "isNotEmpty": case "equals":
+                return Type.Boolean;
+            case "indexOf": case "compareTo":
+                return Type.Int;
+            default:
+                return Type.None;
+        }
+    }
+
+    // A lambda returns its last expression
+    Type blockType(KotlinIR.Block block) {
+        if(block == null || block.statements.isEmpty() || !(block.statements.get(block.statements.size() - 1) instanceof KotlinIR.ExpressionStatement)) {
+            return Type.None;
+        }
+        return ((KotlinIR.ExpressionStatement)block.statements.get(block.statements.size() - 1)).expression.getType();
+    }
+
+    // Adds the arguments to the list and returns their common type
+    Type visitFunctionCallArgumentList(KotlinParser.FunctionCallArgumentListContext ctx, List<KotlinIR.Expression> arguments) {
+        if(ctx.functionCallArgumentList() != null) {
+            Type type = this.visitFunctionCallArgumentList(ctx.functionCallArgumentList(), arguments);
+            KotlinIR.Expression expression = this.visitExpression(ctx.expression());
+            arguments.add(expression);
+
+            return typeInference(type, expression.getType());
+        } else {
+            KotlinIR.Expression expression = this.visitExpression(ctx.expression());
+            arguments.add(expression);
+
+            return expression.getType();
+        }
+    }
+
+    @Override
+    public KotlinIR visitStatementBody(KotlinParser.StatementBodyContext ctx) {
+        if(ctx == null) {
+            return new KotlinIR.Block(new ArrayList<>());
+        } else if(ctx.bodyElement() != null) {
+            return this.visitBodyElement(ctx.bodyElement());
+        } else if(ctx.compoundStatement() != null) {
+            return this.visitCompoundStatement(ctx.compoundStatement());
+        } else {
+            return new KotlinIR.Block(new ArrayList<>()); // Empty after a syntax error
+        }
+    }
+
+    @Override
+    public KotlinIR.Block visitCompoundStatement(KotlinParser.CompoundStatementContext ctx) {
+        symbols.push();
+        List<KotlinIR> statements = ctx.body() != null ? children(ctx.body()) : new ArrayList<>();
+        symbols.pop();
+
+        return new KotlinIR.Block(statements);
+    }
+
+    @Override
+    public KotlinIR visitReturnStatement(KotlinParser.ReturnStatementContext ctx) {
+        if(ctx.expression() != null) {
+            return new KotlinIR.Return(this.visitExpression(ctx.expression()));
+        } else {
+            return new KotlinIR.Return(null);
+        }
+    }
+
+    @Override
+    public KotlinIR visitIfStatement(KotlinParser.IfStatementContext ctx) {
+        if(ctx.ifExpression() != null) {
+            return this.visitIfExpression(ctx.ifExpression());
+        } else {
+            KotlinIR.Expression condition = this.visitExpression(ctx.expression());
+            return new KotlinIR.If(condition, this.visitStatementBody(ctx.statementBody()), null);
+        }
+    }
+
+    @Override
+    public KotlinIR.Expression visitIfExpression(KotlinParser.IfExpressionContext ctx) { //TODO
+        KotlinIR.Expression condition = this.visitExpression(ctx.expression());
+        KotlinIR then = this.visitStatementBody(ctx.statementBody(0));
+        KotlinIR otherwise = this.visitStatementBody(ctx.statementBody(1));
+
+        return new KotlinIR.If(condition, then, otherwise);
+    }
+
+    @Override
+    public KotlinIR visitForStatement(KotlinParser.ForStatementContext ctx) {
+        KotlinIR statement;
+
+        if(ctx.variable() == null) {
+            return new KotlinIR.Block(new ArrayList<>()); // Missing after a syntax error
+        }
+
+        symbols.push();
+        if(isRange(ctx.expression())) {
+            statement = visitForRange(ctx.expression(), ctx.variable(), ctx.statementBody());
+        } else {
+            KotlinIR.Expression variableTarget = this.visitExpression(ctx.expression());
+            Type type = variableTarget.getType().isCollection() ? variableTarget.getType().subType : Type.None; //TODO: Other iterables
+            symbols.declareVariable(id(ctx.variable().Id()), type);
+            KotlinIR.Expression variable = this.visitVariable(ctx.variable());
+
+            statement = new KotlinIR.ForEach(type, variable, variableTarget, this.visitStatementBody(ctx.statementBody()));
+        }
+        symbols.pop();
+
+        return statement;
+    }
+
+    @Override
+    public KotlinIR visitWhileStatement(KotlinParser.WhileStatementContext ctx) {
+        KotlinIR.Expression condition = this.visitExpression(ctx.expression());
+        return new KotlinIR.While(condition, this.visitStatementBody(ctx.statementBody()));
+    }
+
+    @Override
+    public KotlinIR.Expression visitWhenStatement(KotlinParser.WhenStatementContext ctx) {
+        KotlinIR.Expression subject = null;
+        List<KotlinIR.WhenBranch> branches = new ArrayList<>();
+        KotlinParser.WhenListContext list = ctx.whenList();
+
+        if(ctx.expression() != null) {
+            subject = this.visitExpression(ctx.expression());
+        }
+
+        for(int i = 0; list != null && i < list.whenCondition().size(); i++) {
+            KotlinParser.WhenConditionContext condition = list.whenCondition(i);
+            boolean negated = condition.getChildCount() > 0 && condition.getChild(0).getText().equals("!");
+
+            if(condition.Else() != null) {
+                branches.add(new KotlinIR.WhenBranch(KotlinIR.WhenBranch.Kind.Else, false, null, null, this.visitStatementBody(list.statementBody(i))));
+            } else if(condition.Is() != null) {
+                branches.add(new KotlinIR.WhenBranch(KotlinIR.WhenBranch.Kind.Is, negated, null, this.type(condition.type()), this.visitStatementBody(list.statementBody(i))));
+            } else if(condition.In() != null) {
+                branches.add(new KotlinIR.WhenBranch(KotlinIR.WhenBranch.Kind.In, negated, this.visitExpression(condition.expression()), null, this.visitStatementBody(list.statementBody(i))));
+            } else {
+                KotlinIR.Expression value = this.visitExpression(condition.expression());
+                branches.add(new KotlinIR.WhenBranch(KotlinIR.WhenBranch.Kind.Value, false, value, null, this.visitStatementBody(list.statementBody(i))));
+            }
+        }
+
+        return new KotlinIR.When(subject, branches, this.whenType(branches));
+    }
+
+    // Type of a when used as a value: the type of every branch, Object when they differ
+    Type whenType(List<KotlinIR.WhenBranch> branches) {
+        Type type = Type.None;
+
+        for(KotlinIR.WhenBranch branch: branches) {
+            KotlinIR.Expression value = KotlinWhenLowering.value(branch.body);
+            if(value == null) {
+                continue; // return, throw
+            } else if(value.getType() == Type.None) {
+                return Type.None;
+            }
+            type = type == Type.None || type == value.getType() ? value.getType() : Type.Object;
+        }
+        return type;
+    }
+
+    @Override
+    public KotlinIR visitType(KotlinParser.TypeContext ctx) {
+        return new KotlinIR.Text(nullSafe(this.typeName(ctx)));
+    }
+
+    String typeName(KotlinParser.TypeContext ctx) {
+        return ctx != null ? this.type(ctx).toString() : null;
+    }
+
+    Type type(KotlinParser.TypeContext ctx) {
+        return ctx != null ? this.type(ctx.getText()) : Type.None;
+    }
+
+    // String? and Any? are String and Object, which are nullable in Java already
+    Type type(String text) {
+        if(text.startsWith("List<") && text.endsWith(">")) {
+            return Type.list(this.type(text.substring(5, text.length() - 1)));
+        } else {
+            switch(text) {
+                case "Int": return Type.Int;
+                case "Int?": return Type.Integer;
+                case "Long": return Type.Long;
+                case "Double": return Type.Double;
+                case "Boolean": return Type.Boolean;
+                case "String": case "String?": return Type.String;
+                case "Unit": return Type.Void;
+                case "Long?": return Type.Long.nullable();
+                case "Double?": return Type.Double.nullable();
+                case "Boolean?": return Type.Boolean.nullable();
+                case "Any": case "Any?": return Type.Object;
+                default: return Type.None;
+            }
+        }
+    }
+
+    // Whitespace is skipped by the lexer, so the text of a template is taken from the source,
+    // including the whitespace between its parts
+    @Override
+    public KotlinIR.Expression visitStringLiteral(KotlinParser.StringLiteralContext ctx) {
+        List<KotlinIR.Expression> parts = new ArrayList<>();
+        int end = ctx.start.getStopIndex() + 1;
+
+        for(int i = 1; i < ctx.getChildCount(); i++) {
+            ParseTree child = ctx.getChild(i);
+            Token first = child instanceof TerminalNode ? ((TerminalNode)child).getSymbol() : ((ParserRuleContext)child).start;
+
+            if(first.getStartIndex() > end) {
+                parts.add(new KotlinIR.StringText(source(first, end, first.getStartIndex() - 1)));
+            }
+            if(i == ctx.getChildCount() - 1) {
+                break;
+            }
+
+            if(child instanceof TerminalNode) {
+                parts.add(new KotlinIR.Literal(child.getText(), Type.None));
+                end = first.getStopIndex() + 1;
+            } else {
+                parts.add((KotlinIR.Expression)child.accept(this));
+                end = ((ParserRuleContext)child).stop.getStopIndex() + 1;
+            }
+        }
+
+        return new KotlinIR.StringTemplate(parts);
+    }
+
+    String source(Token token, int start, int stop) {
+        return token.getInputStream().getText(Interval.of(start, stop));
+    }
+
+    @Override
+    public KotlinIR.Expression visitStringReference(KotlinParser.StringReferenceContext ctx) {
+        String name = id(ctx.Id());
+        return new KotlinIR.Variable(name, null, null, symbols.variable(name).type);
+    }
+
+    @Override
+    public KotlinIR.Expression visitStringExpression(KotlinParser.StringExpressionContext ctx) {
+        return this.visitExpression(ctx.expression());
+    }
+
+    @Override
+    public KotlinIR.Expression visitStringText(KotlinParser.StringTextContext ctx) {
+        return new KotlinIR.StringText(source(ctx.start, ctx.start.getStartIndex(), ctx.stop.getStopIndex()));
+    }
+
+    boolean isRange(KotlinParser.ExpressionContext ctx) {
+        return ctx instanceof KotlinParser.ExpressionRangeContext || ctx instanceof KotlinParser.ExpressionInfixContext;
+    }
+
+    KotlinIR visitForRange(KotlinParser.ExpressionContext ctx, KotlinParser.VariableContext variableContext, KotlinParser.StatementBodyContext body) {
+        KotlinParser.ExpressionContext range = ctx;
+        KotlinParser.ExpressionContext step = null;
+
+        if(range instanceof KotlinParser.ExpressionInfixContext && ((KotlinParser.ExpressionInfixContext)range).op.getType() == KotlinParser.Step) {
+            step = ((KotlinParser.ExpressionInfixContext)range).expression(1);
+            range = ((KotlinParser.ExpressionInfixContext)range).expression(0);
+        }
+
+        boolean downTo = range instanceof KotlinParser.ExpressionInfixContext;
+        KotlinIR.Expression startExpression = this.visitExpression(range.getRuleContext(KotlinParser.ExpressionContext.class, 0));
+        KotlinIR.Expression endExpression = this.visitExpression(range.getRuleContext(KotlinParser.ExpressionContext.class, 1));
+        KotlinIR.Expression stepExpression = null;
+        Type type;
+
+        if(step != null) {
+            stepExpression = this.visitExpression(step);
+            type = typeInference(startExpression.getType(), endExpression.getType(), stepExpression.getType());
+        } else {
+            type = typeInference(startExpression.getType(), endExpression.getType());
+        }
+
+        symbols.declareVariable(id(variableContext.Id()), type);
+        KotlinIR.Expression variable = this.visitVariable(variableContext);
+
+        return new KotlinIR.ForRange(type, variable, startExpression, endExpression, stepExpression, downTo, this.visitStatementBody(body));
+    }
+
+    @Override
+    public KotlinIR.Expression visitVariable(KotlinParser.VariableContext ctx) {
+        return visitVariable(ctx, null);
+    }
+
+    // receiver is the type of what the variable is a member of, null for a local. Members are not looked
+    // up, the symbol table only knows local variables, but the length of a String and the size of a list
+    // are known, and are methods in Java
+    KotlinIR.Expression visitVariable(KotlinParser.VariableContext ctx, Type receiver) {
+        boolean isMember = receiver != null;
+        String name = id(ctx.Id());
+        KotlinIR.Expression index = null;
+        KotlinIR.Expression member = null;
+        Type type = isMember ? Type.None : symbols.variable(name).type;
+
+        if(isMember && ctx.getChildCount() == 1 && (name.equals("length") && receiver == Type.String || name.equals("size") && receiver.isCollection())) {
+            return new KotlinIR.Call(name, new ArrayList<>(), null, null, Type.Int);
+        }
+
+        // true and false are lexed as identifiers
+        if(!isMember && (name.equals("true") || name.equals("false")) && ctx.getChildCount() == 1) {
+            return new KotlinIR.Literal(name, Type.Boolean);
+        }
+
+        if(ctx.expression() != null) {
+            Type listType = type;
+            index = this.visitExpression(ctx.expression());
+            type = listType.kind == Type.Kind.List ? listType.subType : Type.None;
+        }
+
+        if(ctx.functionCallStatement() != null) {
+            member = this.visitFunctionCallStatement(ctx.functionCallStatement(), type);
+            type = member.getType();
+        } else if(ctx.variable() != null) {
+            member = this.visitVariable(ctx.variable(), type);
+            type = member.getType();
+        }
+
+        return new KotlinIR.Variable(name, index, member, type);
+    }
+
+    @Override
+    public KotlinIR visitAssignStatement(KotlinParser.AssignStatementContext ctx) {
+        boolean constant = ctx.Mode().getText().equals("val");
+        String name = id(ctx.Id());
+
+        // The variable is declared after its value, which cannot refer to it
+        if(ctx.type() != null) {
+            KotlinIR.Expression value = ctx.expression() != null ? this.visitExpression(ctx.expression()) : null;
+            symbols.declareVariable(name, this.type(ctx.type()));
+            return new KotlinIR.Declaration(constant, this.type(ctx.type()), name, value);
+        } else if(ctx.expression() != null) {
+            KotlinIR.Expression value = this.visitExpression(ctx.expression());
+            symbols.declareVariable(name, value.getType());
+            return new KotlinIR.Declaration(constant, value.getType(), name, value);
+        } else {
+            symbols.declareVariable(name, Type.None);
+            return new KotlinIR.Declaration(constant, null, name, null);
+        }
+    }
+
+    public KotlinIR.Expression visitExpression(KotlinParser.ExpressionContext ctx) {
+        return expression(ctx != null ? (KotlinIR)ctx.accept(this) : null, ctx);
+    }
+
+    // After a syntax error the parser leaves expressions without an alternative, which are visited
+    // as a Group of their children; they are kept as text of no type
+    KotlinIR.Expression expression(KotlinIR ir, ParserRuleContext ctx) {
+        if(ir instanceof KotlinIR.Expression) {
+            return (KotlinIR.Expression)ir;
+        }
+        return new KotlinIR.Literal(ctx != null ? ctx.getText() : "", Type.None);
+    }
+
+    KotlinIR.Expression visitBinary(KotlinParser.ExpressionContext left, String operator, KotlinParser.ExpressionContext right, Type type) {
+        KotlinIR.Expression expression1 = this.visitExpression(left);
+        KotlinIR.Expression expression2 = this.visitExpression(right);
+
+        if(type == null) {
+            type = typeInference(expression1.getType(), expression2.getType());
+        }
+
+        return new KotlinIR.Binary(expression1, operator, expression2, type);
+    }
+
+    String tokenText(Token token) {
+        return token == null ? "" : token.getText();
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionPostfix(KotlinParser.ExpressionPostfixContext ctx) {
+        return new KotlinIR.Postfix(this.visitExpression(ctx.expression()), ctx.op.getText());
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionPrefix(KotlinParser.ExpressionPrefixContext ctx) {
+        // -2147483648 is the one Int literal whose digits alone are too big for an Int
+        if(ctx.op.getText().equals("-") && ctx.expression().getText().equals("2147483648")) {
+            return new KotlinIR.Prefix("-", new KotlinIR.Literal("2147483648", Type.Int));
+        }
+        return new KotlinIR.Prefix(ctx.op.getText(), this.visitExpression(ctx.expression()));
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionMultiplicative(KotlinParser.ExpressionMultiplicativeContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), null);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionAdditive(KotlinParser.ExpressionAdditiveContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), null);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionRange(KotlinParser.ExpressionRangeContext ctx) {
+        KotlinIR.Expression start = this.visitExpression(ctx.expression(0));
+        KotlinIR.Expression end = this.visitExpression(ctx.expression(1));
+        return new KotlinIR.Range(start, end);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionInfix(KotlinParser.ExpressionInfixContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), Type.None); //TODO
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionElvis(KotlinParser.ExpressionElvisContext ctx) {
+        KotlinIR.Expression left = this.visitExpression(ctx.expression(0));
+        KotlinIR.Expression right = this.visitExpression(ctx.expression(1));
+        return new KotlinIR.Binary(left, "?:", right, elvisType(left.getType(), right.getType()));
+    }
+
+    // a ?: b is only null when b can be: Int? ?: Int is an Int, Int? ?: Int? an Int?
+    Type elvisType(Type left, Type right) {
+        if(left.nonNull() == right) {
+            return right;
+        } else if(left == right && left != Type.None) {
+            return left;
+        } else {
+            return Type.Object;
+        }
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionIn(KotlinParser.ExpressionInContext ctx) {
+        return visitBinary(ctx.expression(0), tokenText(ctx.negation) + "in", ctx.expression(1), Type.Boolean);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionIs(KotlinParser.ExpressionIsContext ctx) {
+        return new KotlinIR.Is(this.visitExpression(ctx.expression()), ctx.negation != null, this.type(ctx.type()));
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionComparison(KotlinParser.ExpressionComparisonContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), Type.Boolean);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionEquality(KotlinParser.ExpressionEqualityContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), Type.Boolean);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionConjunction(KotlinParser.ExpressionConjunctionContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), Type.Boolean);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionDisjunction(KotlinParser.ExpressionDisjunctionContext ctx) {
+        return visitBinary(ctx.expression(0), ctx.op.getText(), ctx.expression(1), Type.Boolean);
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionAssign(KotlinParser.ExpressionAssignContext ctx) {
+        KotlinIR.Expression variable = this.visitVariable(ctx.variable());
+        return new KotlinIR.Assign(variable, ctx.op.getText(), this.visitExpression(ctx.expression()));
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionWhen(KotlinParser.ExpressionWhenContext ctx) {
+        return this.visitWhenStatement(ctx.whenStatement());
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionString(KotlinParser.ExpressionStringContext ctx) {
+        return this.visitStringLiteral(ctx.stringLiteral());
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionIf(KotlinParser.ExpressionIfContext ctx) {
+        return this.visitIfExpression(ctx.ifExpression());
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionBlock(KotlinParser.ExpressionBlockContext ctx) {
+        return this.visitCompoundStatement(ctx.compoundStatement()); //TODO
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionParen(KotlinParser.ExpressionParenContext ctx) {
+        return new KotlinIR.Paren(this.visitExpression(ctx.expression()));
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionCall(KotlinParser.ExpressionCallContext ctx) {
+        return this.visitFunctionCallStatement(ctx.functionCallStatement());
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionVariable(KotlinParser.ExpressionVariableContext ctx) {
+        return this.visitVariable(ctx.variable());
+    }
+
+    @Override
+    public KotlinIR.Expression visitExpressionNumber(KotlinParser.ExpressionNumberContext ctx) {
+        return this.visitUnsignedNumericLiteral(ctx.unsignedNumericLiteral());
+    }
+
+    @Override
+    public KotlinIR.Expression visitUnsignedNumericLiteral(KotlinParser.UnsignedNumericLiteralContext ctx) {
+        if(ctx.UnsignedDecimalLiteral() != null) {
+            if(ctx.getChildCount() == 2) {
+                return new KotlinIR.Literal(ctx.getText(), Type.Long);
+            } else if(ctx.getText().length() > 10 || Long.parseLong(ctx.getText()) > Integer.MAX_VALUE) {
+                return new KotlinIR.Literal(ctx.getText() + "L", Type.Long); // Too big for an Int
+            } else {
+                return new KotlinIR.Literal(ctx.getText(), Type.Int);
+            }
+        } else {
+            return new KotlinIR.Literal(ctx.getText(), Type.Double);
+        }
+    }
+}
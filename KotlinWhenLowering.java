@@ -0,0 +1,684 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+
+// Lowers when. An Int or String subject with constant branches becomes a Java switch, which javac
+// compiles to a tableswitch/lookupswitch (on the hash code for Strings); anything else becomes an
+// if/else chain evaluating the subject once, through a temporary unless it is a variable or literal.
+// A when used as a value is given a place to store it in each branch: a return for a return or an
+// expression body, an assignment for a declaration or assignment. Elsewhere in an expression it is
+// written with ?: when its branches are single expressions, and computed into a temporary before
+// the statement otherwise, after the operands to its left, which are stored in temporaries first.
+class KotlinWhenLowering extends KotlinIRTransformer {
+    static final int maxConditional = 4; // Branches of a ?: chain, a switch is faster past that
+
+    KotlinConstantFolding folding = new KotlinConstantFolding();
+    KotlinIR result = null; // Last statement of a trailing block, which is the lambda's result
+
+    // Finds a break that would leave a switch instead of the loop around it
+    static class BreakScan extends KotlinIRTransformer {
+        boolean found = false;
+
+        @Override
+        public KotlinIR visitJump(KotlinIR.Jump statement) {
+            found |= statement.keyword.equals("break");
+            return statement;
+        }
+
+        @Override
+        public KotlinIR visitForRange(KotlinIR.ForRange statement) {
+            return statement;
+        }
+
+        @Override
+        public KotlinIR visitForEach(KotlinIR.ForEach statement) {
+            return statement;
+        }
+
+        @Override
+        public KotlinIR visitWhile(KotlinIR.While statement) {
+            return statement;
+        }
+
+        @Override
+        public KotlinIR visitCall(KotlinIR.Call expression) {
+            return expression;
+        }
+
+        static boolean breaks(KotlinIR body) {
+            BreakScan scan = new BreakScan();
+            scan.transform(body);
+            return scan.found;
+        }
+    }
+
+    // Finds the variables that statements assign
+    static class AssignScan extends KotlinIRTransformer {
+        HashSet<String> names = new HashSet<>();
+
+        void assigned(KotlinIR.Expression target) {
+            if(target instanceof KotlinIR.Variable) {
+                names.add(((KotlinIR.Variable)target).name);
+            }
+        }
+
+        @Override
+        public KotlinIR visitAssign(KotlinIR.Assign expression) {
+            assigned(expression.target);
+            return super.visitAssign(expression);
+        }
+
+        @Override
+        public KotlinIR visitPrefix(KotlinIR.Prefix expression) {
+            if(expression.operator.equals("++") || expression.operator.equals("--")) {
+                assigned(expression.operand);
+            }
+            return super.visitPrefix(expression);
+        }
+
+        @Override
+        public KotlinIR visitPostfix(KotlinIR.Postfix expression) {
+            assigned(expression.operand);
+            return super.visitPostfix(expression);
+        }
+    }
+
+    // ==========================================================
+    // Statement
+    // ==========================================================
+
+    // A when statement, or one whose value is a when, is replaced by the statements of the when
+    @Override
+    KotlinIR rewrite(KotlinIR statement) {
+        KotlinIR.When when = null;
+        Function<KotlinIR.Expression, KotlinIR> sink = null;
+
+        if(statement instanceof KotlinIR.When) {
+            when = (KotlinIR.When)statement;
+        } else if(statement instanceof KotlinIR.ExpressionStatement && ((KotlinIR.ExpressionStatement)statement).expression instanceof KotlinIR.When) {
+            when = (KotlinIR.When)((KotlinIR.ExpressionStatement)statement).expression;
+        } else if(statement instanceof KotlinIR.Return && ((KotlinIR.Return)statement).value instanceof KotlinIR.When) {
+            when = (KotlinIR.When)((KotlinIR.Return)statement).value;
+            sink = KotlinIR.Return::new;
+        } else if(statement instanceof KotlinIR.Declaration && ((KotlinIR.Declaration)statement).value instanceof KotlinIR.When) {
+            KotlinIR.Declaration declaration = (KotlinIR.Declaration)statement;
+            KotlinIR.Variable variable = new KotlinIR.Variable(declaration.name, null, null, declaration.value.getType());
+
+            when = (KotlinIR.When)declaration.value;
+            sink = value -> assign(variable, value);
+            before(new KotlinIR.Declaration(declaration.constant, declaration.type, declaration.name, null));
+        } else if(statement instanceof KotlinIR.ExpressionStatement && ((KotlinIR.ExpressionStatement)statement).expression instanceof KotlinIR.Assign) {
+            KotlinIR.Assign assign = (KotlinIR.Assign)((KotlinIR.ExpressionStatement)statement).expression;
+
+            if(assign.operator.equals("=") && assign.value instanceof KotlinIR.When && simple(assign.target)) {
+                when = (KotlinIR.When)assign.value;
+                sink = value -> assign(assign.target, value);
+            }
+        }
+
+        if(statement == result && statement instanceof KotlinIR.When) {
+            return new KotlinIR.ExpressionStatement(expression(when));
+        } else if(when == null || statement == result) {
+            return transform(statement);
+        }
+        lower(when, sink);
+        return null;
+    }
+
+    // A while condition is evaluated on every iteration, so statements it needs go at the top of the
+    // loop: while(true) { statements; if(!(condition)) break; body }
+    @Override
+    public KotlinIR visitWhile(KotlinIR.While statement) {
+        List<KotlinIR> outer = pending;
+        pending = null;
+        KotlinIR.Expression condition = expression(statement.condition);
+        List<KotlinIR> statements = pending;
+        pending = outer;
+        KotlinIR body = statement(statement.body);
+
+        if(statements != null && hoisted(statements)) {
+            statements.forEach(this::before);
+        } else if(statements != null) {
+            KotlinIR.Expression exit = new KotlinIR.Prefix("!", new KotlinIR.Paren(condition));
+            statements.add(new KotlinIR.If(exit, new KotlinIR.Jump("break"), null));
+            if(unwrap(body) instanceof KotlinIR.Block) {
+                statements.addAll(((KotlinIR.Block)unwrap(body)).statements);
+            } else {
+                statements.add(body);
+            }
+            return new KotlinIR.While(new KotlinIR.Literal("true", Type.Boolean), new KotlinIR.Block(statements));
+        }
+
+        if(condition == statement.condition && body == statement.body) {
+            return statement;
+        }
+        return new KotlinIR.While(condition, body);
+    }
+
+    // Adds the statements of the when to pending, with each value given to sink when there is one
+    void lower(KotlinIR.When when, Function<KotlinIR.Expression, KotlinIR> sink) {
+        KotlinIR.Expression subject = expression(when.subject);
+        List<KotlinIR.WhenBranch> branches = new ArrayList<>();
+        boolean exhaustive = false;
+
+        for(KotlinIR.WhenBranch branch: when.branches) {
+            KotlinIR body = unwrap(branch.body);
+            body = statement(sink != null ? store(body, sink) : body);
+            branches.add(new KotlinIR.WhenBranch(branch.kind, branch.negated, expression(branch.condition), branch.type, body));
+            exhaustive |= branch.kind == KotlinIR.WhenBranch.Kind.Else;
+        }
+
+        // A when with a value has to take a branch, as Kotlin throws when none matches
+        if(sink != null && !exhaustive) {
+            KotlinIR.Call exception = new KotlinIR.Call("new IllegalStateException", new ArrayList<>(), null, null, Type.Object);
+            branches.add(new KotlinIR.WhenBranch(KotlinIR.WhenBranch.Kind.Else, false, null, null, new KotlinIR.Throw(exception)));
+        }
+
+        if(switchable(subject, branches)) {
+            if(subject.getType() == Type.String && !(subject instanceof KotlinIR.StringTemplate)) {
+                subject = nullToEmpty(temporary(subject));
+            }
+            before(new KotlinIR.When(subject, cases(branches, subject.getType()), when.getType()));
+            return;
+        }
+
+        KotlinIR chain = chain(subject != null ? temporary(subject) : null, branches, 0);
+        if(chain != null) {
+            before(chain);
+        }
+    }
+
+    // if(c1) { ... } else if(c2) { ... } else { ... }
+    KotlinIR chain(KotlinIR.Expression subject, List<KotlinIR.WhenBranch> branches, int i) {
+        if(i == branches.size()) {
+            return null;
+        }
+
+        KotlinIR.WhenBranch branch = branches.get(i);
+        if(branch.kind == KotlinIR.WhenBranch.Kind.Else) {
+            return block(branch.body);
+        }
+
+        KotlinIR otherwise = chain(subject, branches, i + 1);
+        return new KotlinIR.If(condition(subject, branch), block(branch.body), otherwise);
+    }
+
+    KotlinIR.Expression condition(KotlinIR.Expression subject, KotlinIR.WhenBranch branch) {
+        switch(branch.kind) {
+            case Is:
+                return new KotlinIR.Is(subject, branch.negated, branch.type);
+            case In:
+                return new KotlinIR.Binary(subject, branch.negated ? "!in" : "in", branch.condition, Type.Boolean);
+            default:
+                return subject == null ? branch.condition : equal(subject, branch.condition);
+        }
+    }
+
+    // == on primitives, Objects.equals (which is Kotlin's ==) on anything else
+    static KotlinIR.Expression equal(KotlinIR.Expression a, KotlinIR.Expression b) {
+        if(primitive(a.getType()) && primitive(b.getType())) {
+            return new KotlinIR.Binary(a, "==", b, Type.Boolean);
+        }
+        return new KotlinIR.Call("Objects.equals", new ArrayList<>(Arrays.asList(a, b)), null, null, Type.Boolean);
+    }
+
+    static boolean primitive(Type type) {
+        return type == Type.Int || type == Type.Long || type == Type.Double || type == Type.Boolean;
+    }
+
+    // ==========================================================
+    // Switch
+    // ==========================================================
+
+    // An Int or String subject, only constant branches and no break meant for a loop around it.
+    // A null String is switched on as "", so "" cannot be a case.
+    boolean switchable(KotlinIR.Expression subject, List<KotlinIR.WhenBranch> branches) {
+        if(subject == null || subject instanceof KotlinIR.Literal || (subject.getType() != Type.Int && subject.getType() != Type.String)) {
+            return false;
+        }
+
+        for(KotlinIR.WhenBranch branch: branches) {
+            if(branch.kind == KotlinIR.WhenBranch.Kind.Else) {
+                continue;
+            }
+
+            KotlinIR.Expression label = branch.kind == KotlinIR.WhenBranch.Kind.Value ? label(branch.condition, subject.getType()) : null;
+            if(label == null || key(label).equals("\"") || BreakScan.breaks(branch.body)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The condition as a case label, null when it is not a constant of the type
+    KotlinIR.Expression label(KotlinIR.Expression condition, Type type) {
+        KotlinIR.Expression label = folding.expression(condition);
+
+        if(type == Type.Int) {
+            return label instanceof KotlinIR.Literal && label.getType() == Type.Int ? label : null;
+        }
+        if(!(label instanceof KotlinIR.StringTemplate) || ((KotlinIR.StringTemplate)label).parts.isEmpty()) {
+            return null;
+        }
+        for(KotlinIR.Expression part: ((KotlinIR.StringTemplate)label).parts) {
+            if(!(part instanceof KotlinIR.StringText)) {
+                return null;
+            }
+        }
+        return label;
+    }
+
+    // One block per case, ending with a break unless it cannot get there; a label seen before is never taken
+    List<KotlinIR.WhenBranch> cases(List<KotlinIR.WhenBranch> branches, Type type) {
+        List<KotlinIR.WhenBranch> cases = new ArrayList<>();
+        HashSet<String> labels = new HashSet<>();
+
+        for(KotlinIR.WhenBranch branch: branches) {
+            KotlinIR.Expression label = null;
+            if(branch.kind == KotlinIR.WhenBranch.Kind.Value) {
+                label = label(branch.condition, type);
+                if(!labels.add(key(label))) {
+                    continue;
+                }
+            }
+
+            List<KotlinIR> statements = new ArrayList<>();
+            if(branch.body instanceof KotlinIR.Block) {
+                statements.addAll(((KotlinIR.Block)branch.body).statements);
+            } else {
+                statements.add(branch.body);
+            }
+            if(completes(branch.body)) {
+                statements.add(new KotlinIR.Jump("break"));
+            }
+            cases.add(new KotlinIR.WhenBranch(branch.kind, false, label, null, new KotlinIR.Block(statements)));
+        }
+        return cases;
+    }
+
+    static String key(KotlinIR.Expression label) {
+        if(label instanceof KotlinIR.Literal) {
+            return String.valueOf(Integer.parseInt(((KotlinIR.Literal)label).text));
+        }
+
+        StringBuilder text = new StringBuilder("\"");
+        for(KotlinIR.Expression part: ((KotlinIR.StringTemplate)label).parts) {
+            text.append(((KotlinIR.StringText)part).text);
+        }
+        return text.toString();
+    }
+
+    // Whether Java lets the statement be followed by another, following its rules for unreachable code
+    static boolean completes(KotlinIR statement) {
+        if(statement instanceof KotlinIR.Return || statement instanceof KotlinIR.Throw || statement instanceof KotlinIR.Jump) {
+            return false;
+        } else if(statement instanceof KotlinIR.ExpressionStatement && ((KotlinIR.ExpressionStatement)statement).expression instanceof KotlinIR.Variable) {
+            // The grammar has no break or continue, so they are walked as names
+            KotlinIR.Variable variable = (KotlinIR.Variable)((KotlinIR.ExpressionStatement)statement).expression;
+            return variable.index != null || variable.member != null || (!variable.name.equals("break") && !variable.name.equals("continue"));
+        } else if(statement instanceof KotlinIR.Block) {
+            List<KotlinIR> statements = ((KotlinIR.Block)statement).statements;
+            return statements.isEmpty() || completes(statements.get(statements.size() - 1));
+        } else if(statement instanceof KotlinIR.If) {
+            KotlinIR.If branch = (KotlinIR.If)statement;
+            return branch.otherwise == null || completes(branch.then) || completes(branch.otherwise);
+        } else if(statement instanceof KotlinIR.While) {
+            KotlinIR.While loop = (KotlinIR.While)statement;
+            return !(loop.condition instanceof KotlinIR.Literal && ((KotlinIR.Literal)loop.condition).text.equals("true")) || BreakScan.breaks(loop.body);
+        } else if(statement instanceof KotlinIR.When) {
+            // A switch of ours: one that has no default, or a case with a break
+            boolean fallback = false;
+            for(KotlinIR.WhenBranch branch: ((KotlinIR.When)statement).branches) {
+                List<KotlinIR> statements = ((KotlinIR.Block)branch.body).statements;
+                fallback |= branch.kind == KotlinIR.WhenBranch.Kind.Else;
+                if(!statements.isEmpty() && statements.get(statements.size() - 1) instanceof KotlinIR.Jump && ((KotlinIR.Jump)statements.get(statements.size() - 1)).keyword.equals("break")) {
+                    return true;
+                }
+            }
+            return !fallback;
+        } else {
+            return true;
+        }
+    }
+
+    // A String switch throws on null, where Kotlin takes the else branch
+    static KotlinIR.Expression nullToEmpty(KotlinIR.Expression subject) {
+        KotlinIR.Expression isNull = new KotlinIR.Binary(subject, "==", new KotlinIR.Literal("null", Type.None), Type.Boolean);
+        KotlinIR.Expression empty = new KotlinIR.StringTemplate(Collections.singletonList(new KotlinIR.StringText("")));
+        return new KotlinIR.Conditional(isNull, empty, subject, Type.String);
+    }
+
+    // ==========================================================
+    // Expression
+    // ==========================================================
+
+    // A when inside a larger expression
+    @Override
+    public KotlinIR visitWhen(KotlinIR.When expression) {
+        int declared = pending == null ? 0 : pending.size();
+        int named = names;
+        KotlinIR.Expression conditional = conditional(expression);
+        if(conditional != null) {
+            return new KotlinIR.Paren(conditional);
+        }
+        if(pending != null) {
+            pending.subList(declared, pending.size()).clear();
+        }
+        names = named;
+
+        String name = name("when");
+        KotlinIR.Variable variable = new KotlinIR.Variable(name, null, null, expression.getType());
+        before(new KotlinIR.Declaration(false, declared(expression), name, null));
+        lower(expression, value -> assign(variable, value));
+        return variable;
+    }
+
+    // c1 ? v1 : c2 ? v2 : v3, which needs no statements, when every branch is a single expression of the type.
+    // A subject that is not simple is stored by the first condition, ($whenN = s) == c1, as that one is always evaluated.
+    KotlinIR.Expression conditional(KotlinIR.When when) {
+        KotlinIR.Expression subject = isolated(when.subject);
+        if(when.getType() == Type.Object || when.branches.isEmpty() || (when.subject != null && subject == null)
+            || (when.branches.size() > maxConditional && switchable(subject, when.branches))) {
+            return null;
+        }
+        boolean stored = subject != null && !simple(subject);
+        if(stored && when.branches.get(0).kind == KotlinIR.WhenBranch.Kind.Else) {
+            return null;
+        }
+
+        List<KotlinIR.Expression> values = new ArrayList<>();
+        List<KotlinIR.Expression> conditions = new ArrayList<>();
+        for(KotlinIR.WhenBranch branch: when.branches) {
+            KotlinIR body = unwrap(branch.body);
+            if(!(body instanceof KotlinIR.ExpressionStatement) || ((KotlinIR.ExpressionStatement)body).expression instanceof KotlinIR.Block) {
+                return null;
+            }
+
+            KotlinIR.Expression value = isolated(((KotlinIR.ExpressionStatement)body).expression);
+            KotlinIR.Expression condition = isolated(branch.condition);
+            if(value == null || (branch.condition != null && condition == null)) {
+                return null;
+            }
+            values.add(value);
+            conditions.add(condition);
+        }
+        if(when.branches.get(when.branches.size() - 1).kind != KotlinIR.WhenBranch.Kind.Else) {
+            return null; // No else
+        }
+
+        KotlinIR.Expression first = subject;
+        if(stored) {
+            String name = name("when");
+            before(new KotlinIR.Declaration(false, declared(subject), name, null));
+            KotlinIR.Variable variable = new KotlinIR.Variable(name, null, null, subject.getType());
+            first = new KotlinIR.Paren(new KotlinIR.Assign(variable, "=", subject));
+            subject = variable;
+        }
+
+        KotlinIR.Expression result = null;
+        for(int i = when.branches.size() - 1; i >= 0; i--) {
+            KotlinIR.WhenBranch branch = when.branches.get(i);
+            if(branch.kind == KotlinIR.WhenBranch.Kind.Else) {
+                result = values.get(i); // Branches after an else are never taken
+            } else {
+                KotlinIR.WhenBranch lowered = new KotlinIR.WhenBranch(branch.kind, branch.negated, conditions.get(i), branch.type, branch.body);
+                result = new KotlinIR.Conditional(condition(i == 0 ? first : subject, lowered), values.get(i), result, when.getType());
+            }
+        }
+        return result;
+    }
+
+    // The right side of &&, || and ?: is only evaluated sometimes, so statements it needs only run
+    // then: boolean $whenN = a; if($whenN) { statements; $whenN = b; } for a && b
+    @Override
+    public KotlinIR visitBinary(KotlinIR.Binary expression) {
+        String operator = expression.operator;
+        if(!operator.equals("&&") && !operator.equals("||") && !operator.equals("?:")) {
+            List<KotlinIR.Expression> operands = operands(Arrays.asList(expression.left, expression.right));
+            if(operands.get(0) == expression.left && operands.get(1) == expression.right) {
+                return expression;
+            }
+            return new KotlinIR.Binary(operands.get(0), operator, operands.get(1), expression.getType());
+        }
+
+        KotlinIR.Expression left = expression(expression.left);
+        List<KotlinIR> outer = pending;
+        pending = null;
+        KotlinIR.Expression right = expression(expression.right);
+        List<KotlinIR> statements = pending;
+        pending = outer;
+
+        if(statements != null && hoisted(statements)) {
+            statements.forEach(this::before);
+        } else if(statements != null) {
+            if(operator.equals("?:") && (left instanceof KotlinIR.Literal || primitive(left.getType()))) {
+                return left; // Never null, so b is not evaluated
+            }
+
+            String name = name("when");
+            Type type = operator.equals("?:") ? expression.getType() : Type.Boolean;
+            KotlinIR.Variable variable = new KotlinIR.Variable(name, null, null, type);
+            before(new KotlinIR.Declaration(false, operator.equals("?:") ? declared(left) : Type.Boolean, name, left));
+
+            KotlinIR.Expression evaluated = operator.equals("&&") ? variable
+                : operator.equals("||") ? new KotlinIR.Prefix("!", variable)
+                : new KotlinIR.Binary(variable, "==", new KotlinIR.Literal("null", Type.None), Type.Boolean);
+            statements.add(assign(variable, right));
+            before(new KotlinIR.If(evaluated, new KotlinIR.Block(statements), null));
+            return variable;
+        }
+
+        if(left == expression.left && right == expression.right) {
+            return expression;
+        }
+        return new KotlinIR.Binary(left, operator, right, expression.getType());
+    }
+
+    // The result of a trailing block is a value, not a statement
+    @Override
+    public KotlinIR visitCall(KotlinIR.Call expression) {
+        List<KotlinIR.Expression> arguments = operands(expression.arguments);
+        KotlinIR outer = result;
+        if(expression.block != null && !expression.name.equals("forEach") && !expression.block.statements.isEmpty()) {
+            result = expression.block.statements.get(expression.block.statements.size() - 1);
+        }
+        KotlinIR.Block block = (KotlinIR.Block)transform(expression.block);
+        result = outer;
+        KotlinIR.Expression member = expression(expression.member);
+
+        if(arguments == expression.arguments && block == expression.block && member == expression.member) {
+            return expression;
+        }
+        return new KotlinIR.Call(expression.name, arguments, block, member, expression.getType(), expression.itType);
+    }
+
+    @Override
+    public KotlinIR visitStringTemplate(KotlinIR.StringTemplate expression) {
+        List<KotlinIR.Expression> parts = operands(expression.parts);
+        return parts == expression.parts ? expression : new KotlinIR.StringTemplate(parts);
+    }
+
+    @Override
+    public KotlinIR visitRange(KotlinIR.Range expression) {
+        List<KotlinIR.Expression> operands = operands(Arrays.asList(expression.start, expression.end));
+        if(operands.get(0) == expression.start && operands.get(1) == expression.end) {
+            return expression;
+        }
+        return new KotlinIR.Range(operands.get(0), operands.get(1));
+    }
+
+    // a[i] = v evaluates i before v
+    @Override
+    public KotlinIR visitAssign(KotlinIR.Assign expression) {
+        if(!(expression.target instanceof KotlinIR.Variable) || ((KotlinIR.Variable)expression.target).index == null
+            || ((KotlinIR.Variable)expression.target).member != null) {
+            return super.visitAssign(expression);
+        }
+
+        KotlinIR.Variable target = (KotlinIR.Variable)expression.target;
+        List<KotlinIR.Expression> operands = operands(Arrays.asList(target.index, expression.value));
+        if(operands.get(0) == target.index && operands.get(1) == expression.value) {
+            return expression;
+        }
+        KotlinIR.Variable element = new KotlinIR.Variable(target.name, operands.get(0), null, target.getType());
+        return new KotlinIR.Assign(element, expression.operator, operands.get(1));
+    }
+
+    // The operands lowered in order. When one needs statements before the statement, the operands
+    // before it are stored in temporaries after their own statements and before its statements, so
+    // they are still evaluated first. One that has no effect and reads no variable those statements
+    // assign gives the same value later, and stays where it is.
+    List<KotlinIR.Expression> operands(List<KotlinIR.Expression> operands) {
+        List<KotlinIR.Expression> result = null;
+        boolean[] stored = new boolean[operands.size()];
+
+        for(int i = 0; i < operands.size(); i++) {
+            int start = pending == null ? 0 : pending.size();
+            KotlinIR.Expression operand = expression(operands.get(i));
+
+            if(result == null && operand != operands.get(i)) {
+                result = new ArrayList<>(operands.subList(0, i));
+            }
+            if(pending != null && !hoisted(pending.subList(start, pending.size()))) {
+                if(result == null) {
+                    result = new ArrayList<>(operands.subList(0, i));
+                }
+
+                AssignScan scan = new AssignScan();
+                scan.transform(new KotlinIR.Block(new ArrayList<>(pending.subList(start, pending.size()))));
+                List<KotlinIR> temporaries = new ArrayList<>();
+
+                for(int j = 0; j < i; j++) {
+                    KotlinIR.Expression earlier = result.get(j);
+                    if(stored[j] || stays(earlier, scan.names)) {
+                        continue;
+                    }
+                    String name = name("when");
+                    temporaries.add(new KotlinIR.Declaration(true, declared(earlier), name, earlier));
+                    result.set(j, new KotlinIR.Variable(name, null, null, earlier.getType()));
+                    stored[j] = true;
+                }
+                pending.addAll(start, temporaries);
+            }
+            if(result != null) {
+                result.add(operand);
+            }
+        }
+
+        return result == null ? operands : result;
+    }
+
+    // Only declarations of temporaries without a value, which do nothing
+    static boolean hoisted(List<KotlinIR> statements) {
+        for(KotlinIR statement: statements) {
+            if(!(statement instanceof KotlinIR.Declaration) || ((KotlinIR.Declaration)statement).value != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean stays(KotlinIR.Expression operand, HashSet<String> assigned) {
+        if(operand instanceof KotlinIR.StringText) {
+            return true;
+        } else if(!KotlinConstantFolding.removable(operand)) {
+            return false;
+        }
+
+        KotlinDeadCodePruning.ReferenceScan scan = new KotlinDeadCodePruning.ReferenceScan();
+        scan.transform(operand);
+        return Collections.disjoint(scan.names, assigned);
+    }
+
+    // The expression lowered on its own, null when it needs statements before it; the temporaries
+    // it declares without a value are still declared before the statement
+    KotlinIR.Expression isolated(KotlinIR.Expression expression) {
+        List<KotlinIR> outer = pending;
+        pending = null;
+        KotlinIR.Expression result = expression(expression);
+        List<KotlinIR> statements = pending;
+        pending = outer;
+
+        if(statements == null) {
+            return result;
+        } else if(!hoisted(statements)) {
+            return null;
+        }
+        for(KotlinIR statement: statements) {
+            before(statement);
+        }
+        return result;
+    }
+
+    // ==========================================================
+    // Helper
+    // ==========================================================
+
+    // The subject itself when evaluating it again is free, a temporary holding it otherwise
+    KotlinIR.Expression temporary(KotlinIR.Expression subject) {
+        if(simple(subject)) {
+            return subject;
+        }
+
+        String name = name("when");
+        before(new KotlinIR.Declaration(true, declared(subject), name, subject));
+        return new KotlinIR.Variable(name, null, null, subject.getType());
+    }
+
+    // A local variable or a literal
+    static boolean simple(KotlinIR.Expression expression) {
+        if(expression instanceof KotlinIR.Variable) {
+            return ((KotlinIR.Variable)expression).index == null && ((KotlinIR.Variable)expression).member == null;
+        }
+        return expression instanceof KotlinIR.Literal;
+    }
+
+    // Type of a variable holding the expression, Object when it is not known
+    static Type declared(KotlinIR.Expression expression) {
+        return expression.getType() == Type.None ? Type.Object : expression.getType();
+    }
+
+    static KotlinIR assign(KotlinIR.Expression target, KotlinIR.Expression value) {
+        return new KotlinIR.ExpressionStatement(new KotlinIR.Assign(target, "=", value));
+    }
+
+    // A statement body always gets braces, so an else cannot attach to an if inside it
+    static KotlinIR.Block block(KotlinIR body) {
+        return body instanceof KotlinIR.Block ? (KotlinIR.Block)body : new KotlinIR.Block(Collections.singletonList(body));
+    }
+
+    // { ... } as a branch is parsed as an expression, but is a block of statements
+    static KotlinIR unwrap(KotlinIR body) {
+        if(body instanceof KotlinIR.ExpressionStatement && ((KotlinIR.ExpressionStatement)body).expression instanceof KotlinIR.Block) {
+            return ((KotlinIR.ExpressionStatement)body).expression;
+        }
+        return body;
+    }
+
+    // The body with its value, the last expression, given to sink
+    static KotlinIR store(KotlinIR body, Function<KotlinIR.Expression, KotlinIR> sink) {
+        if(body instanceof KotlinIR.ExpressionStatement) {
+            return sink.apply(((KotlinIR.ExpressionStatement)body).expression);
+        } else if(body instanceof KotlinIR.Block && !((KotlinIR.Block)body).statements.isEmpty()) {
+            List<KotlinIR> statements = new ArrayList<>(((KotlinIR.Block)body).statements);
+            statements.set(statements.size() - 1, store(unwrap(statements.get(statements.size() - 1)), sink));
+            return new KotlinIR.Block(statements);
+        }
+        return body; // return, throw
+    }
+
+    // Value of a branch body: its expression, or the last one of a block; null for return or throw
+    static KotlinIR.Expression value(KotlinIR body) {
+        body = unwrap(body);
+        if(body instanceof KotlinIR.ExpressionStatement) {
+            return ((KotlinIR.ExpressionStatement)body).expression;
+        } else if(body instanceof KotlinIR.Block && !((KotlinIR.Block)body).statements.isEmpty()) {
+            List<KotlinIR> statements = ((KotlinIR.Block)body).statements;
+            return value(statements.get(statements.size() - 1));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Immutable type descriptor. Types are interned, so each one exists once and is compared with ==,
+// however often it is written: List<List<Int>> is one instance with its own element type, and
+// its Java name is built once. Only the primitives have a nullable form (Int? is Integer), as
+// String? and Any? are the same Java type as String and Any.
+final class Type {
+    enum Kind {
+        Int, Double, String, Long, Object, Boolean, None, List, Set, Void
+    }
+
+    // Element type -> the List or Set of it, created on the first lookup
+    static final ConcurrentHashMap<Type, Type> lists = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<Type, Type> sets = new ConcurrentHashMap<>();
+
+    static final Type Int = new Type(Kind.Int, null, false);
+    static final Type Integer = new Type(Kind.Int, null, true);
+    static final Type Double = new Type(Kind.Double, null, false);
+    static final Type String = new Type(Kind.String, null, false);
+    static final Type Long = new Type(Kind.Long, null, false);
+    static final Type Object = new Type(Kind.Object, null, false);
+    static final Type Boolean = new Type(Kind.Boolean, null, false);
+    static final Type None = new Type(Kind.None, null, false);
+    static final Type Void = new Type(Kind.Void, null, false);
+
+    static final Type NullableDouble = new Type(Kind.Double, null, true);
+    static final Type NullableLong = new Type(Kind.Long, null, true);
+    static final Type NullableBoolean = new Type(Kind.Boolean, null, true);
+
+    final Kind kind;
+    final Type subType; // Element type of a List or Set, null for the others
+    final boolean nullable;
+    final String name;
+    final String boxed;
+
+    private Type(Kind kind, Type subType, boolean nullable) {
+        this.kind = kind;
+        this.subType = subType;
+        this.nullable = nullable;
+
+        switch(kind) {
+            case Int: boxed = "Integer"; name = nullable ? boxed : "int"; break;
+            case Double: boxed = "Double"; name = nullable ? boxed : "double"; break;
+            case Long: boxed = "Long"; name = nullable ? boxed : "long"; break;
+            case Boolean: boxed = "Boolean"; name = nullable ? boxed : "boolean"; break;
+            case String: boxed = name = "String"; break;
+            case Object: boxed = name = "Object"; break;
+            case Void: boxed = name = "void"; break;
+            case List: boxed = name = "List<" + subType.boxed + ">"; break;
+            case Set: boxed = name = "Set<" + subType.boxed + ">"; break;
+            default: boxed = name = "None"; break;
+        }
+    }
+
+    static Type list(Type element) {
+        return lists.computeIfAbsent(element, type -> new Type(Kind.List, type, false));
+    }
+
+    static Type set(Type element) {
+        return sets.computeIfAbsent(element, type -> new Type(Kind.Set, type, false));
+    }
+
+    // Int? for Int; the other types are nullable in Java as they are
+    Type nullable() {
+        switch(kind) {
+            case Int: return Integer;
+            case Long: return NullableLong;
+            case Double: return NullableDouble;
+            case Boolean: return NullableBoolean;
+            default: return this;
+        }
+    }
+
+    Type nonNull() {
+        switch(kind) {
+            case Int: return Int;
+            case Long: return Long;
+            case Double: return Double;
+            case Boolean: return Boolean;
+            default: return this;
+        }
+    }
+
+    boolean primitive() {
+        return kind == Kind.Int || kind == Kind.Long || kind == Kind.Double || kind == Kind.Boolean;
+    }
+
+    boolean isCollection() {
+        return kind == Kind.List || kind == Kind.Set;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    // Name as a type argument, where primitives are not allowed
+    String boxed() {
+        return boxed;
+    }
+}
@@ -0,0 +1,57 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Per-call cost of a hot function using a constant collection literal,
+//
+//     fun isVowel(c: String): Boolean {
+//         return setOf("a", "e", "i", "o", "u").contains(c)
+//     }
+//     fun weight(i: Int): Int {
+//         val weights = listOf(3, 1, 4, 1, 5, 9, 2, 6)
+//         return weights[i]
+//     }
+//
+// as the Java built on every call before KotlinConstantHoisting, and read from its field after.
+// Run with make bench; the gc profiler reports the bytes allocated per call as gc.alloc.rate.norm.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HoistingBenchmark {
+    static final Set<String> $IS_VOWEL_SET = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList("a", "e", "i", "o", "u")));
+    static final List<Integer> $WEIGHTS = Collections.unmodifiableList(Arrays.asList(3, 1, 4, 1, 5, 9, 2, 6));
+
+    String letter = "i";
+    int index = 5;
+
+    @Benchmark
+    public boolean isVowelBuilt() {
+        return new LinkedHashSet<>(Arrays.asList("a", "e", "i", "o", "u")).contains(letter);
+    }
+
+    @Benchmark
+    public boolean isVowelHoisted() {
+        return $IS_VOWEL_SET.contains(letter);
+    }
+
+    @Benchmark
+    public int weightBuilt() {
+        final List<Integer> weights = Arrays.asList(3, 1, 4, 1, 5, 9, 2, 6);
+        return weights.get(index);
+    }
+
+    @Benchmark
+    public int weightHoisted() {
+        final List<Integer> weights = $WEIGHTS;
+        return weights.get(index);
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.*;
+
+// Per-call cost of the Java that KotlinLambdaLowering and KotlinLoopFusion generate for
+//
+//     val limit = 3
+//     return words.filter { it.length > limit }.count()   // and 1 + ... of it, which is not fused
+//     return words.map { it.length }.sum()
+//
+// next to what a capturing lambda, or a stream collected into a list first, would cost.
+// Run with make bench; the gc profiler reports the bytes allocated per call as gc.alloc.rate.norm.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LambdaBenchmark {
+    List<String> words = Arrays.asList("apple", "kiwi", "banana", "fig", "cherry", "plum", "melon", "pear");
+    int limit = 3;
+
+    // The val is inlined, so the lambda captures nothing and is created once
+    @Benchmark
+    public int countInlined() {
+        return 1 + (int)words.stream().filter((String it) -> it.length() > 3).count();
+    }
+
+    @Benchmark
+    public int countCapturing() {
+        final int limit = this.limit;
+        return 1 + (int)words.stream().filter((String it) -> it.length() > limit).count();
+    }
+
+    // count() after the stream before it was run by the stream
+    @Benchmark
+    public int countCollected() {
+        return 1 + words.stream().filter((String it) -> it.length() > 3).collect(Collectors.toList()).size();
+    }
+
+    // The statement form, fused into one loop
+    @Benchmark
+    public int countFused() {
+        final int limit = 3;
+        int $count1 = 0;
+        for(String $it0: words) {
+            if(!($it0.length() > limit))
+                continue;
+            $count1++;
+        }
+        return $count1;
+    }
+
+    @Benchmark
+    public int sumReference() {
+        return words.stream().map(String::length).mapToInt(Integer::intValue).sum();
+    }
+
+    @Benchmark
+    public int sumCapturing() {
+        final int limit = this.limit;
+        return words.stream().map((String it) -> it.length() + limit - limit).mapToInt(Integer::intValue).sum();
+    }
+}
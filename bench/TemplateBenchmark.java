@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Per-call cost of the println loops KotlinTemplateFolding generates for
+//
+//     fun report(name: String, n: Int) {
+//         for (i in 1..n) {
+//             println("Item $i of $name: ${i * 2} $UNIT, ${"fixed"} " + "text")
+//         }
+//     }
+//     fun lines(n: Int) {
+//         for (i in 1..n) {
+//             println("[$i]")
+//             println("Total: ${i * 3} of $n")
+//         }
+//     }
+//
+// which is one concatenation of the folded parts, next to a concatenation of every part as written and
+// to the presized StringBuilder reused across iterations that was generated before. System.out is
+// replaced by a stream dropping what is printed, so the terminal is not measured.
+// Run with make bench; the gc profiler reports the bytes allocated per call as gc.alloc.rate.norm.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark {
+    static final String UNIT = "kg";
+
+    PrintStream out = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+    String name = "box";
+    int n = 100;
+
+    @Benchmark
+    public void reportUnfolded() {
+        for(int i = 1; i <= n; i ++)
+        {
+            out.println("Item " + i + " of " + name + ": " + (i * 2) + " " + UNIT + ", " + "fixed" + " " + "text");
+        };
+    }
+
+    @Benchmark
+    public void reportReused() {
+        final StringBuilder $sb0 = new StringBuilder(74);
+        for(int i = 1; i <= n; i ++)
+        {
+            $sb0.setLength(0);
+            out.println($sb0.append("Item ").append(i).append(" of ").append(name).append(": ").append(i * 2).append(" ").append(UNIT).append(", fixed ").toString() + "text");
+        };
+    }
+
+    @Benchmark
+    public void reportFolded() {
+        for(int i = 1; i <= n; i ++)
+        {
+            out.println("Item " + i + " of " + name + ": " + (i * 2) + " " + UNIT + ", fixed " + "text");
+        };
+    }
+
+    @Benchmark
+    public void linesReused() {
+        final StringBuilder $sb0 = new StringBuilder(13);
+        final StringBuilder $sb1 = new StringBuilder(33);
+        for(int i = 1; i <= n; i ++)
+        {
+            $sb0.setLength(0);
+            out.println($sb0.append("[").append(i).append("]").toString());
+            $sb1.setLength(0);
+            out.println($sb1.append("Total: ").append(i * 3).append(" of ").append(n).toString());
+        };
+    }
+
+    @Benchmark
+    public void linesFolded() {
+        for(int i = 1; i <= n; i ++)
+        {
+            out.println("[" + i + "]");
+            out.println("Total: " + (i * 3) + " of " + n);
+        };
+    }
+}
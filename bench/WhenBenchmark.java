@@ -0,0 +1,305 @@
+package bench;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Per-call cost of a 50-branch when as KotlinWhenLowering generates it, a switch on an Int or a
+// String subject,
+//
+//     fun code(x: Int): Int {
+//         return when (x) {
+//             0 -> 1
+//             3 -> 8
+//             ...
+//             147 -> 344
+//             else -> -1
+//         }
+//     }
+//     fun name(s: String): Int {
+//         return when (s) {
+//             "k0" -> 0
+//             ...
+//             "k49" -> 49
+//             else -> -1
+//         }
+//     }
+//
+// next to the if/else chain it would be without one. Every call goes through the same 64 subjects,
+// the branches in a mixed order and some matching none.
+// Run with make bench; the gc profiler reports the bytes allocated per call as gc.alloc.rate.norm.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhenBenchmark {
+    int[] codes = new int[64];
+    String[] names = new String[64];
+
+    @Setup
+    public void setUp() {
+        for(int i = 0; i < 64; i++) {
+            int branch = i * 37 % 57; // 50 to 56 match no branch
+            codes[i] = branch * 3;
+            names[i] = "k" + branch;
+        }
+    }
+
+    @Benchmark
+    public int intSwitch() {
+        int total = 0;
+        for(int x: codes) {
+            total += code(x);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int intChain() {
+        int total = 0;
+        for(int x: codes) {
+            total += codeChain(x);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int stringSwitch() {
+        int total = 0;
+        for(String s: names) {
+            total += name(s);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int stringChain() {
+        int total = 0;
+        for(String s: names) {
+            total += nameChain(s);
+        }
+        return total;
+    }
+
+    static int code(int x){
+        switch(x) {
+        case 0: { return 1; }
+        case 3: { return 8; }
+        case 6: { return 15; }
+        case 9: { return 22; }
+        case 12: { return 29; }
+        case 15: { return 36; }
+        case 18: { return 43; }
+        case 21: { return 50; }
+        case 24: { return 57; }
+        case 27: { return 64; }
+        case 30: { return 71; }
+        case 33: { return 78; }
+        case 36: { return 85; }
+        case 39: { return 92; }
+        case 42: { return 99; }
+        case 45: { return 106; }
+        case 48: { return 113; }
+        case 51: { return 120; }
+        case 54: { return 127; }
+        case 57: { return 134; }
+        case 60: { return 141; }
+        case 63: { return 148; }
+        case 66: { return 155; }
+        case 69: { return 162; }
+        case 72: { return 169; }
+        case 75: { return 176; }
+        case 78: { return 183; }
+        case 81: { return 190; }
+        case 84: { return 197; }
+        case 87: { return 204; }
+        case 90: { return 211; }
+        case 93: { return 218; }
+        case 96: { return 225; }
+        case 99: { return 232; }
+        case 102: { return 239; }
+        case 105: { return 246; }
+        case 108: { return 253; }
+        case 111: { return 260; }
+        case 114: { return 267; }
+        case 117: { return 274; }
+        case 120: { return 281; }
+        case 123: { return 288; }
+        case 126: { return 295; }
+        case 129: { return 302; }
+        case 132: { return 309; }
+        case 135: { return 316; }
+        case 138: { return 323; }
+        case 141: { return 330; }
+        case 144: { return 337; }
+        case 147: { return 344; }
+        default: { return -1; }
+        }
+    }
+
+    static int codeChain(int x){
+        if(x == 0) { return 1; }
+        else if(x == 3) { return 8; }
+        else if(x == 6) { return 15; }
+        else if(x == 9) { return 22; }
+        else if(x == 12) { return 29; }
+        else if(x == 15) { return 36; }
+        else if(x == 18) { return 43; }
+        else if(x == 21) { return 50; }
+        else if(x == 24) { return 57; }
+        else if(x == 27) { return 64; }
+        else if(x == 30) { return 71; }
+        else if(x == 33) { return 78; }
+        else if(x == 36) { return 85; }
+        else if(x == 39) { return 92; }
+        else if(x == 42) { return 99; }
+        else if(x == 45) { return 106; }
+        else if(x == 48) { return 113; }
+        else if(x == 51) { return 120; }
+        else if(x == 54) { return 127; }
+        else if(x == 57) { return 134; }
+        else if(x == 60) { return 141; }
+        else if(x == 63) { return 148; }
+        else if(x == 66) { return 155; }
+        else if(x == 69) { return 162; }
+        else if(x == 72) { return 169; }
+        else if(x == 75) { return 176; }
+        else if(x == 78) { return 183; }
+        else if(x == 81) { return 190; }
+        else if(x == 84) { return 197; }
+        else if(x == 87) { return 204; }
+        else if(x == 90) { return 211; }
+        else if(x == 93) { return 218; }
+        else if(x == 96) { return 225; }
+        else if(x == 99) { return 232; }
+        else if(x == 102) { return 239; }
+        else if(x == 105) { return 246; }
+        else if(x == 108) { return 253; }
+        else if(x == 111) { return 260; }
+        else if(x == 114) { return 267; }
+        else if(x == 117) { return 274; }
+        else if(x == 120) { return 281; }
+        else if(x == 123) { return 288; }
+        else if(x == 126) { return 295; }
+        else if(x == 129) { return 302; }
+        else if(x == 132) { return 309; }
+        else if(x == 135) { return 316; }
+        else if(x == 138) { return 323; }
+        else if(x == 141) { return 330; }
+        else if(x == 144) { return 337; }
+        else if(x == 147) { return 344; }
+        else { return -1; }
+    }
+
+    static int name(String s){
+        switch(s == null ? "" : s) {
+        case "k0": { return 0; }
+        case "k1": { return 1; }
+        case "k2": { return 2; }
+        case "k3": { return 3; }
+        case "k4": { return 4; }
+        case "k5": { return 5; }
+        case "k6": { return 6; }
+        case "k7": { return 7; }
+        case "k8": { return 8; }
+        case "k9": { return 9; }
+        case "k10": { return 10; }
+        case "k11": { return 11; }
+        case "k12": { return 12; }
+        case "k13": { return 13; }
+        case "k14": { return 14; }
+        case "k15": { return 15; }
+        case "k16": { return 16; }
+        case "k17": { return 17; }
+        case "k18": { return 18; }
+        case "k19": { return 19; }
+        case "k20": { return 20; }
+        case "k21": { return 21; }
+        case "k22": { return 22; }
+        case "k23": { return 23; }
+        case "k24": { return 24; }
+        case "k25": { return 25; }
+        case "k26": { return 26; }
+        case "k27": { return 27; }
+        case "k28": { return 28; }
+        case "k29": { return 29; }
+        case "k30": { return 30; }
+        case "k31": { return 31; }
+        case "k32": { return 32; }
+        case "k33": { return 33; }
+        case "k34": { return 34; }
+        case "k35": { return 35; }
+        case "k36": { return 36; }
+        case "k37": { return 37; }
+        case "k38": { return 38; }
+        case "k39": { return 39; }
+        case "k40": { return 40; }
+        case "k41": { return 41; }
+        case "k42": { return 42; }
+        case "k43": { return 43; }
+        case "k44": { return 44; }
+        case "k45": { return 45; }
+        case "k46": { return 46; }
+        case "k47": { return 47; }
+        case "k48": { return 48; }
+        case "k49": { return 49; }
+        default: { return -1; }
+        }
+    }
+
+    static int nameChain(String s){
+        if(Objects.equals(s, "k0")) { return 0; }
+        else if(Objects.equals(s, "k1")) { return 1; }
+        else if(Objects.equals(s, "k2")) { return 2; }
+        else if(Objects.equals(s, "k3")) { return 3; }
+        else if(Objects.equals(s, "k4")) { return 4; }
+        else if(Objects.equals(s, "k5")) { return 5; }
+        else if(Objects.equals(s, "k6")) { return 6; }
+        else if(Objects.equals(s, "k7")) { return 7; }
+        else if(Objects.equals(s, "k8")) { return 8; }
+        else if(Objects.equals(s, "k9")) { return 9; }
+        else if(Objects.equals(s, "k10")) { return 10; }
+        else if(Objects.equals(s, "k11")) { return 11; }
+        else if(Objects.equals(s, "k12")) { return 12; }
+        else if(Objects.equals(s, "k13")) { return 13; }
+        else if(Objects.equals(s, "k14")) { return 14; }
+        else if(Objects.equals(s, "k15")) { return 15; }
+        else if(Objects.equals(s, "k16")) { return 16; }
+        else if(Objects.equals(s, "k17")) { return 17; }
+        else if(Objects.equals(s, "k18")) { return 18; }
+        else if(Objects.equals(s, "k19")) { return 19; }
+        else if(Objects.equals(s, "k20")) { return 20; }
+        else if(Objects.equals(s, "k21")) { return 21; }
+        else if(Objects.equals(s, "k22")) { return 22; }
+        else if(Objects.equals(s, "k23")) { return 23; }
+        else if(Objects.equals(s, "k24")) { return 24; }
+        else if(Objects.equals(s, "k25")) { return 25; }
+        else if(Objects.equals(s, "k26")) { return 26; }
+        else if(Objects.equals(s, "k27")) { return 27; }
+        else if(Objects.equals(s, "k28")) { return 28; }
+        else if(Objects.equals(s, "k29")) { return 29; }
+        else if(Objects.equals(s, "k30")) { return 30; }
+        else if(Objects.equals(s, "k31")) { return 31; }
+        else if(Objects.equals(s, "k32")) { return 32; }
+        else if(Objects.equals(s, "k33")) { return 33; }
+        else if(Objects.equals(s, "k34")) { return 34; }
+        else if(Objects.equals(s, "k35")) { return 35; }
+        else if(Objects.equals(s, "k36")) { return 36; }
+        else if(Objects.equals(s, "k37")) { return 37; }
+        else if(Objects.equals(s, "k38")) { return 38; }
+        else if(Objects.equals(s, "k39")) { return 39; }
+        else if(Objects.equals(s, "k40")) { return 40; }
+        else if(Objects.equals(s, "k41")) { return 41; }
+        else if(Objects.equals(s, "k42")) { return 42; }
+        else if(Objects.equals(s, "k43")) { return 43; }
+        else if(Objects.equals(s, "k44")) { return 44; }
+        else if(Objects.equals(s, "k45")) { return 45; }
+        else if(Objects.equals(s, "k46")) { return 46; }
+        else if(Objects.equals(s, "k47")) { return 47; }
+        else if(Objects.equals(s, "k48")) { return 48; }
+        else if(Objects.equals(s, "k49")) { return 49; }
+        else { return -1; }
+    }
+}